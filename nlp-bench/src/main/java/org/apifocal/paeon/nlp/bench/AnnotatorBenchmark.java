@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.fit.factory.AggregateBuilder;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.jcas.JCas;
+import org.apifocal.paeon.nlp.service.PaeonConfig;
+import org.apifocal.paeon.nlp.service.PipelineStage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time spent in each pipeline stage in isolation.
+ * <p>
+ * Before each invocation the stages preceding the measured one run on a fresh CAS
+ * (untimed), so the measured annotator sees the same input as in the full pipeline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx6g"})
+public class AnnotatorBenchmark {
+
+    @Param({"segment", "sentence", "tokenizer", "lvg", "context-tokenizer", "pos", "chunker",
+        "chunk-adjuster", "lookup-windows", "remove-enclosed-windows", "dictionary",
+        "dependency-parser", "polarity", "uncertainty", "semantic-roles", "constituency-parser",
+        "time", "event", "event-properties", "add-event", "doctimerel", "event-time", "event-event"})
+    public String stage;
+
+    @Param({Notes.SMALL})
+    public String size;
+
+    /** lookup descriptor of the dictionary stage; compare with -p dictionary=<PipelineStage.MAPPED_DICTIONARY> */
+    @Param({PipelineStage.DEFAULT_DICTIONARY})
+    public String dictionary;
+
+    private AnalysisEngine preceding;
+    private AnalysisEngine annotator;
+    private JCas jcas;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        PipelineStage measured = PipelineStage.fromName(stage);
+        List<PipelineStage> before = new ArrayList<>();
+        for (PipelineStage s : PipelineStage.values()) {
+            if (s == measured) {
+                break;
+            }
+            before.add(s);
+        }
+
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_DICTIONARY, dictionary);
+        AggregateBuilder builder = new AggregateBuilder();
+        for (PipelineStage s : before) {
+            builder.add(s.getName(), s.createDescription(config));
+        }
+        preceding = before.isEmpty() ? null : builder.createAggregate();
+        annotator = AnalysisEngineFactory.createEngine(measured.createDescription(config));
+        jcas = annotator.newJCas();
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        jcas.reset();
+        jcas.setDocumentText(Notes.get(size));
+        if (preceding != null) {
+            preceding.process(jcas);
+        }
+    }
+
+    @Benchmark
+    public JCas annotate() throws Exception {
+        annotator.process(jcas);
+        return jcas;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (preceding != null) {
+            preceding.destroy();
+        }
+        annotator.destroy();
+    }
+
+}
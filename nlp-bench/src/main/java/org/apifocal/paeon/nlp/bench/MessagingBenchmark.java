@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apifocal.paeon.nlp.service.NLPProcessor;
+import org.apifocal.paeon.nlp.service.NLPRequest;
+import org.apifocal.paeon.nlp.service.PaeonConfig;
+import org.apifocal.paeon.nlp.service.PaeonService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMS request/reply round trip through PaeonService and an embedded broker.
+ * <p>
+ * The service uses a processor echoing the document back, so only the messaging
+ * overhead (transport, listener, reply) is measured; ProcessorBenchmark covers NLP.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MessagingBenchmark {
+    private static final String QUEUE = "paeon.bench.nlp";
+
+    @Param({Notes.SMALL, Notes.LARGE})
+    public String size;
+
+    @Param({"tcp", "vm"})
+    public String transport;
+
+    private final AtomicLong ids = new AtomicLong();
+    private BrokerService broker;
+    private PaeonService service;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private MessageConsumer replies;
+    private Destination replyTo;
+    private String note;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("bench");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        String url = broker.addConnector("tcp://localhost:0").getPublishableConnectString();
+        broker.start();
+        broker.waitUntilStarted();
+        if ("vm".equals(transport)) {
+            url = "vm://bench?create=false";
+        }
+
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_BROKER, url);
+        config.setProperty(PaeonConfig.PAEON_CFG_LISTENON, QUEUE);
+        config.setProperty(PaeonConfig.PAEON_CFG_METRICS_INTERVAL, "0");
+        config.setProperty(PaeonConfig.PAEON_CFG_METRICS_JMX, "false");
+        service = new PaeonService(config, new EchoProcessor());
+        service.start();
+
+        connection = new ActiveMQConnectionFactory(url).createConnection();
+        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        producer = session.createProducer(session.createQueue(QUEUE));
+        replyTo = session.createTemporaryQueue();
+        replies = session.createConsumer(replyTo);
+        connection.start();
+        note = Notes.get(size);
+    }
+
+    @Benchmark
+    public Message roundTrip() throws Exception {
+        Message request = session.createTextMessage(note);
+        request.setJMSCorrelationID("CID-" + ids.incrementAndGet());
+        request.setJMSReplyTo(replyTo);
+        producer.send(request);
+        Message reply = replies.receive(10000);
+        if (reply == null) {
+            throw new IllegalStateException("No reply for " + request.getJMSCorrelationID());
+        }
+        return reply;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        connection.close();
+        service.stop();
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    static class EchoProcessor implements NLPProcessor {
+
+        public String process(String text) {
+            return text;
+        }
+
+        public String process(NLPRequest request) {
+            return request.getText();
+        }
+
+        public boolean process(NLPRequest request, OutputStream out) throws IOException {
+            out.write(request.getText().getBytes(StandardCharsets.UTF_8));
+            return true;
+        }
+
+        public AnalysisEngine getPipeline() {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.bench;
+
+/**
+ * Sample clinical notes of different sizes used as benchmark input.
+ */
+public final class Notes {
+
+    public static final String SMALL = "small";
+    public static final String MEDIUM = "medium";
+    public static final String LARGE = "large";
+
+    public static final String NOTE_NUTRITIONS = "Dr. Nutritious\n" +
+            " \n" +
+            "Medical Nutrition Therapy for Hyperlipidemia\n" +
+            "Referral from: Julie Tester, RD, LD, CNSD\n" +
+            "Phone contact: (555) 555-1212\n" +
+            "Height: 144 cm Current Weight: 45 kg Date of current weight: 02-29-2001\n" +
+            "Admit Weight: 53 kg BMI: 18 kg/m2\n" +
+            "Diet: General\n" +
+            "Daily Calorie needs (kcals): 1500 calories, assessed as HB + 20% for activity.\n" +
+            "Daily Protein needs: 40 grams, assessed as 1.0 g/kg.\n" +
+            "Pt has been on a 3-day calorie count and has had an average intake of 1100 calories.\n" +
+            "She was instructed to drink 2-3 cans of liquid supplement to help promote weight gain.\n" +
+            "She agrees with the plan and has my number for further assessment. May want a Resting\n" +
+            "Metabolic Rate as well. She takes an aspirin a day for knee pain.";
+
+    private Notes() {
+    }
+
+    /**
+     * Returns a note of the given size: small is one note (~1KB), medium 8 and large 64 notes.
+     */
+    public static String get(String size) {
+        if (MEDIUM.equals(size)) {
+            return repeat(8);
+        }
+        if (LARGE.equals(size)) {
+            return repeat(64);
+        }
+        return NOTE_NUTRITIONS;
+    }
+
+    private static String repeat(int count) {
+        StringBuilder sb = new StringBuilder(count * (NOTE_NUTRITIONS.length() + 2));
+        for (int i = 0; i < count; i++) {
+            sb.append(NOTE_NUTRITIONS).append("\n\n");
+        }
+        return sb.toString();
+    }
+
+}
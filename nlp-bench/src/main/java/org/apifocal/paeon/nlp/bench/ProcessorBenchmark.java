@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apifocal.paeon.nlp.service.CtakesProcessor;
+import org.apifocal.paeon.nlp.service.NLPRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end CtakesProcessor.process, including serialization, per profile and note size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgs = {"-Xmx6g"})
+public class ProcessorBenchmark {
+
+    @Param({Notes.SMALL, Notes.MEDIUM, Notes.LARGE})
+    public String size;
+
+    @Param({"full-temporal", "fast"})
+    public String profile;
+
+    private CtakesProcessor processor;
+    private NLPRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        processor = new CtakesProcessor(1, 1, 60000);
+        request = new NLPRequest(Notes.get(size));
+        request.setProfile(profile);
+    }
+
+    @Benchmark
+    public String process() {
+        return processor.process(request);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        processor.destroy();
+    }
+
+}
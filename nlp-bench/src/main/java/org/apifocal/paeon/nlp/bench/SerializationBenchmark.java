@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.bench;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.jcas.JCas;
+import org.apifocal.paeon.nlp.service.CtakesProcessor;
+import org.apifocal.paeon.nlp.service.JsonCasWriter;
+import org.apifocal.paeon.nlp.service.Projection;
+import org.apifocal.paeon.nlp.service.ReusableByteArrayOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Result serialization formats, on a CAS processed once by the full pipeline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx6g"})
+public class SerializationBenchmark {
+
+    @Param({Notes.SMALL, Notes.MEDIUM, Notes.LARGE})
+    public String size;
+
+    private AnalysisEngine pipeline;
+    private JCas jcas;
+    private final Projection projection = new Projection(Projection.DEFAULT_SPEC);
+    private final ReusableByteArrayOutputStream buffer = new ReusableByteArrayOutputStream(64 * 1024, Integer.MAX_VALUE);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        CtakesProcessor processor = new CtakesProcessor(1, 1, 60000);
+        pipeline = processor.getPipeline();
+        jcas = pipeline.newJCas();
+        jcas.setDocumentText(Notes.get(size));
+        pipeline.process(jcas);
+    }
+
+    @Benchmark
+    public String toXmlFormat() {
+        return CtakesProcessor.toXmlFormat(jcas);
+    }
+
+    @Benchmark
+    public String toPrettyFormat() {
+        return CtakesProcessor.toPrettyFormat(jcas);
+    }
+
+    /**
+     * What the listener does: serialize into a reused buffer, then decode once.
+     */
+    @Benchmark
+    public String writeXmlReused() {
+        buffer.reset();
+        CtakesProcessor.writeXml(jcas, buffer);
+        return new String(buffer.getBuffer(), 0, buffer.size(), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String toJsonDefaultProjection() throws IOException {
+        StringWriter out = new StringWriter();
+        JsonCasWriter.write(jcas, projection, out);
+        return out.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pipeline.destroy();
+    }
+
+}
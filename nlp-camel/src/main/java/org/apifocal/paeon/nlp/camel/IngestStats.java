@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.camel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress and throughput of a bulk ingestion, logged periodically by the route.
+ */
+public class IngestStats {
+    private static final Logger LOG = LoggerFactory.getLogger(IngestStats.class);
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong replied = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong start = new AtomicLong();
+    private volatile long reportedReplies;
+    private volatile long reportedAt;
+
+    /**
+     * Counts a note sent to the service.
+     */
+    public void sent() {
+        start.compareAndSet(0, System.nanoTime());
+        sent.incrementAndGet();
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Counts a reply; failed if the service reported an error or none came back.
+     */
+    public void replied(boolean failure) {
+        replied.incrementAndGet();
+        inFlight.decrementAndGet();
+        if (failure) {
+            failed.incrementAndGet();
+        }
+    }
+
+    public void fileDone() {
+        files.incrementAndGet();
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getReplied() {
+        return replied.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the replies per second since the first note was sent.
+     */
+    public double getThroughput() {
+        long begin = start.get();
+        double secs = (System.nanoTime() - begin) / 1e9;
+        return begin == 0 || secs <= 0 ? 0 : replied.get() / secs;
+    }
+
+    /**
+     * Logs the progress, with the throughput overall and since the previous report.
+     */
+    public synchronized void report() {
+        long now = System.nanoTime();
+        long replies = replied.get();
+        if (replies == reportedReplies && inFlight.get() == 0) {
+            return; // idle
+        }
+        double secs = (now - reportedAt) / 1e9;
+        double recent = reportedAt == 0 || secs <= 0 ? getThroughput() : (replies - reportedReplies) / secs;
+        LOG.info(String.format("Ingested %d files, %d notes (%d failed), %d in flight; %.1f notes/s (overall %.1f notes/s)",
+            files.get(), replies, failed.get(), inFlight.get(), recent, getThroughput()));
+        reportedReplies = replies;
+        reportedAt = now;
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.camel;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aggregates the replies to the notes of an input file into one output file.
+ * <p>
+ * Notes are sent in parallel and replied to in any order; replies are written in the
+ * order of the notes, separated by the delimiter, holding only the ones that arrive
+ * ahead of their turn (at most the requests in flight). The output is written to a
+ * {@code .part} file, renamed when the input file is done.
+ * <p>
+ * A result too large for the broker is not in its reply, but in the result store of the
+ * service; it is fetched from the {@code PaeonClaimUrl} of the reply.
+ */
+public class ReplyWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(ReplyWriter.class);
+
+    /** Exchange property with the name of the input file, which survives the request/reply */
+    public static final String PAEON_FILE = "PaeonFile";
+    /** Reply property with the reason a note was not processed, see PaeonMessageListener */
+    public static final String PAEON_ERROR = "PaeonError";
+    /** Reply property with the reference of a result kept in the result store of the service */
+    public static final String PAEON_CLAIM = "PaeonClaim";
+    /** Reply property with the URL of a result kept in the result store of the service */
+    public static final String PAEON_CLAIM_URL = "PaeonClaimUrl";
+
+    private static final String PART = ".part";
+
+    private final Path output;
+    private final String suffix;
+    private final byte[] delimiter;
+    private final IngestStats stats;
+    private final ConcurrentMap<String, Results> files = new ConcurrentHashMap<>();
+
+    public ReplyWriter(String output, String suffix, String delimiter, IngestStats stats) {
+        this.output = Paths.get(output);
+        this.suffix = suffix;
+        this.delimiter = delimiter.getBytes(StandardCharsets.UTF_8);
+        this.stats = stats;
+    }
+
+    /**
+     * Writes the reply to a note.
+     */
+    public void write(Exchange exchange) throws IOException {
+        Message in = exchange.getIn();
+        boolean failure = in.getHeader(PAEON_ERROR) != null;
+        String claim = in.getHeader(PAEON_CLAIM_URL, String.class);
+        byte[] data;
+        if (claim != null) {
+            try {
+                data = fetch(claim);
+            } catch (IOException e) {
+                LOG.warn("No result for note {} of {}: {}", index(exchange), file(exchange), e.getMessage());
+                data = new byte[0];
+                failure = true;
+            }
+        } else if (in.getHeader(PAEON_CLAIM) != null) {
+            LOG.warn("No result for note {} of {}: stored without a URL", index(exchange), file(exchange));
+            data = new byte[0];
+            failure = true;
+        } else {
+            Object body = in.getBody();
+            data = body instanceof byte[] ? (byte[])body
+                : body == null ? new byte[0] : in.getBody(String.class).getBytes(StandardCharsets.UTF_8);
+        }
+        add(file(exchange), index(exchange), data);
+        stats.replied(failure);
+    }
+
+    /**
+     * Writes an empty result for a note that got no reply.
+     */
+    public void fail(Exchange exchange) throws IOException {
+        Exception e = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+        LOG.warn("No result for note {} of {}: {}", index(exchange), file(exchange), e == null ? null : e.getMessage());
+        add(file(exchange), index(exchange), new byte[0]);
+        stats.replied(true);
+    }
+
+    /**
+     * Completes the output of an input file, once all its notes are replied to.
+     */
+    public void close(Exchange exchange) throws IOException {
+        close(file(exchange));
+        stats.fileDone();
+    }
+
+    /**
+     * Fetches a result from the result store of the service.
+     */
+    static byte[] fetch(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Failed to fetch " + url + ": HTTP " + connection.getResponseCode());
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 1024));
+            try (InputStream in = connection.getInputStream()) {
+                byte[] b = new byte[64 * 1024];
+                for (int n; (n = in.read(b)) > 0;) {
+                    out.write(b, 0, n);
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    void add(String file, int index, byte[] data) throws IOException {
+        results(file).add(index, data);
+    }
+
+    void close(String file) throws IOException {
+        Results results = files.remove(file);
+        if (results == null) {
+            results = new Results(file); // no notes
+        }
+        results.close();
+    }
+
+    private Results results(String file) {
+        Results results = files.get(file);
+        if (results == null) {
+            Results created = new Results(file);
+            results = files.putIfAbsent(file, created);
+            if (results == null) {
+                results = created;
+            }
+        }
+        return results;
+    }
+
+    private static String file(Exchange exchange) {
+        return exchange.getProperty(PAEON_FILE, String.class);
+    }
+
+    private static int index(Exchange exchange) {
+        Integer index = exchange.getProperty(Exchange.SPLIT_INDEX, Integer.class);
+        return index == null ? 0 : index;
+    }
+
+    private class Results {
+        private final Path target;
+        private final Path part;
+        private final Map<Integer, byte[]> ahead = new HashMap<>();
+        private OutputStream out;
+        private int next;
+
+        Results(String file) {
+            this.target = output.resolve(file + suffix);
+            this.part = output.resolve(file + suffix + PART);
+        }
+
+        synchronized void add(int index, byte[] data) throws IOException {
+            ahead.put(index, data);
+            byte[] d;
+            while ((d = ahead.remove(next)) != null) {
+                append(d);
+                next++;
+            }
+        }
+
+        synchronized void close() throws IOException {
+            if (!ahead.isEmpty()) {
+                // FIXME: notes without a reply or a failure should not happen
+                LOG.warn("Missing results before note {} of {}", next, target);
+                for (Integer index : new TreeSet<>(ahead.keySet())) {
+                    append(ahead.remove(index));
+                    next++;
+                }
+            }
+            if (out == null) {
+                open();
+            }
+            out.close();
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+            LOG.debug("Wrote {} results to {}", next, target);
+        }
+
+        private void append(byte[] data) throws IOException {
+            if (out == null) {
+                open();
+            } else {
+                out.write(delimiter);
+            }
+            out.write(data);
+        }
+
+        private void open() throws IOException {
+            Files.createDirectories(part.getParent());
+            out = new BufferedOutputStream(Files.newOutputStream(part), 64 * 1024);
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.camel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+public class ReplyWriterTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRepliesInNoteOrder() throws Exception {
+        Path dir = Files.createTempDirectory("paeon");
+        IngestStats stats = new IngestStats();
+        ReplyWriter writer = new ReplyWriter(dir.toString(), ".xml", "|", stats);
+        writer.add("notes/a.txt", 2, bytes("two"));
+        writer.add("notes/a.txt", 0, bytes("zero"));
+        Assert.assertTrue(Files.exists(dir.resolve("notes/a.txt.xml.part")));
+        writer.add("notes/a.txt", 1, bytes(""));
+        writer.add("b.txt", 0, bytes("other"));
+        writer.close("notes/a.txt");
+        writer.close("b.txt");
+
+        Assert.assertFalse(Files.exists(dir.resolve("notes/a.txt.xml.part")));
+        Assert.assertEquals("zero||two", new String(Files.readAllBytes(dir.resolve("notes/a.txt.xml")), StandardCharsets.UTF_8));
+        Assert.assertEquals("other", new String(Files.readAllBytes(dir.resolve("b.txt.xml")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testClaimCheck() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/results/", new HttpHandler() {
+            public void handle(HttpExchange http) throws IOException {
+                byte[] result = bytes("stored result");
+                boolean found = http.getRequestURI().getPath().endsWith("/1-0");
+                http.sendResponseHeaders(found ? 200 : 404, found ? result.length : -1);
+                try (OutputStream out = http.getResponseBody()) {
+                    if (found) {
+                        out.write(result);
+                    }
+                }
+            }
+        });
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort() + "/results/";
+            Path dir = Files.createTempDirectory("paeon");
+            IngestStats stats = new IngestStats();
+            ReplyWriter writer = new ReplyWriter(dir.toString(), ".xml", "|", stats);
+            writer.write(reply("a.txt", 0, base + "1-0"));
+            writer.write(reply("a.txt", 1, base + "2-0"));
+            writer.close("a.txt");
+
+            Assert.assertEquals("stored result|", new String(Files.readAllBytes(dir.resolve("a.txt.xml")), StandardCharsets.UTF_8));
+            Assert.assertEquals(2, stats.getReplied());
+            Assert.assertEquals("a result no longer stored is a failure", 1, stats.getFailed());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static Exchange reply(String file, int index, String claim) {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.setProperty(ReplyWriter.PAEON_FILE, file);
+        exchange.setProperty(Exchange.SPLIT_INDEX, index);
+        exchange.getIn().setBody("");
+        exchange.getIn().setHeader(ReplyWriter.PAEON_CLAIM, claim.substring(claim.lastIndexOf('/') + 1));
+        exchange.getIn().setHeader(ReplyWriter.PAEON_CLAIM_URL, claim);
+        return exchange;
+    }
+
+    @Test
+    public void testEmptyFile() throws Exception {
+        Path dir = Files.createTempDirectory("paeon");
+        ReplyWriter writer = new ReplyWriter(dir.toString(), ".xml", "|", new IngestStats());
+        writer.close("empty.txt");
+        Assert.assertEquals(0, Files.size(dir.resolve("empty.txt.xml")));
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        IngestStats stats = new IngestStats();
+        stats.sent();
+        stats.sent();
+        stats.replied(false);
+        stats.replied(true);
+        stats.fileDone();
+        Assert.assertEquals(2, stats.getSent());
+        Assert.assertEquals(2, stats.getReplied());
+        Assert.assertEquals(1, stats.getFailed());
+        Assert.assertEquals(0, stats.getInFlight());
+        Assert.assertEquals(1, stats.getFiles());
+        Assert.assertTrue(stats.getThroughput() > 0);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumer loop that processes messages in micro-batches on a transacted session.
+ * <p>
+ * Up to {@code size} messages, or as many as arrive within {@code timeout} millis of the
+ * first one, are processed and replied to, then acknowledged together with their replies
+ * in a single commit. If anything fails the whole batch is rolled back, so its messages
+ * are redelivered (and eventually dead lettered by the broker) and none of its replies
+ * are sent.
+ */
+public class BatchingConsumer implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingConsumer.class);
+
+    // how often an idle consumer checks if it was stopped
+    private static final long POLL = 500;
+
+    private final Session session;
+    private final MessageConsumer consumer;
+    private final PaeonMessageListener listener;
+    private final int size;
+    private final long timeout;
+    private volatile boolean running = true;
+
+    public BatchingConsumer(Session session, MessageConsumer consumer, PaeonMessageListener listener, int size, long timeout) {
+        if (!isTransacted(session)) {
+            throw new IllegalArgumentException("Micro-batching needs a transacted session");
+        }
+        this.session = session;
+        this.consumer = consumer;
+        this.listener = listener;
+        this.size = Math.max(1, size);
+        this.timeout = Math.max(0, timeout);
+    }
+
+    private static boolean isTransacted(Session session) {
+        try {
+            return session.getTransacted();
+        } catch (JMSException e) {
+            return false;
+        }
+    }
+
+    public void run() {
+        while (running) {
+            int count = 0;
+            try {
+                Message message = consumer.receive(POLL);
+                if (message == null) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                long deadline = start + timeout * 1000000L;
+                while (message != null) {
+                    listener.handle(message);
+                    count++;
+                    if (count >= size) {
+                        break;
+                    }
+                    long left = (deadline - System.nanoTime()) / 1000000L;
+                    message = left > 0 ? consumer.receive(left) : consumer.receiveNoWait();
+                }
+                session.commit();
+                PaeonMetrics.histogram(PaeonMetrics.BATCH).recordSince(start);
+                LOG.debug("Committed batch of {} messages", count);
+            } catch (JMSException | RuntimeException e) {
+                LOG.error("Batch of {} message(s) failed; rolling back", count, e);
+                rollback();
+            }
+        }
+    }
+
+    private void rollback() {
+        try {
+            session.rollback();
+        } catch (JMSException e) {
+            LOG.warn("Failed to roll back batch: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Stops the loop once the current batch is committed.
+     */
+    public void stop() {
+        running = false;
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageEOFException;
+
+import org.apache.uima.UIMAException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+
+/**
+ * Encoding of binary replies, and the client side decoder.
+ * <p>
+ * A binary reply starts with a 6 byte header: the "PAEO" magic, a version byte and the
+ * OutputFormat code, followed by the CAS in UIMA's compressed binary serialization.
+ * Clients decode it into a CAS with the cTAKES type system, e.g.:
+ * <pre>
+ *   JCas jcas = BinaryCasFormat.createJCas();
+ *   BinaryCasFormat.decode((BytesMessage)reply, jcas.getCas());
+ * </pre>
+ */
+public final class BinaryCasFormat {
+
+    public static final byte[] MAGIC = {'P', 'A', 'E', 'O'};
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = MAGIC.length + 2;
+
+    private BinaryCasFormat() {
+    }
+
+    public static void writeHeader(OutputStream out, OutputFormat format) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(format.getCode());
+    }
+
+    /**
+     * Writes the header followed by the compressed CAS.
+     */
+    public static void encode(CAS cas, OutputStream out) throws IOException {
+        writeHeader(out, OutputFormat.BINARY);
+        try {
+            Serialization.serializeWithCompression(cas, out);
+        } catch (ResourceInitializationException e) {
+            throw new IOException("Could not serialize CAS to compressed binary", e);
+        }
+    }
+
+    /**
+     * Reads and checks the header.
+     *
+     * @return the format of the payload following the header
+     */
+    public static OutputFormat readHeader(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        new DataInputStream(in).readFully(header);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                throw new IOException("Not a Paeon binary reply");
+            }
+        }
+        if (header[MAGIC.length] != VERSION) {
+            throw new IOException("Unsupported Paeon binary reply version " + header[MAGIC.length]);
+        }
+        OutputFormat format = OutputFormat.fromCode(header[MAGIC.length + 1]);
+        if (format == null) {
+            throw new IOException("Unknown Paeon reply format " + header[MAGIC.length + 1]);
+        }
+        return format;
+    }
+
+    /**
+     * Decodes a binary reply into the given (empty) CAS.
+     */
+    public static void decode(InputStream in, CAS cas) throws IOException {
+        OutputFormat format = readHeader(in);
+        if (format != OutputFormat.BINARY) {
+            throw new IOException("Expecting a binary CAS, found " + format.getName());
+        }
+        Serialization.deserializeCAS(cas, in);
+    }
+
+    public static void decode(BytesMessage message, CAS cas) throws IOException, JMSException {
+        decode(new BytesMessageInputStream(message), cas);
+    }
+
+    /**
+     * Creates an empty CAS with all the type systems found on the classpath (i.e. cTAKES').
+     */
+    public static JCas createJCas() throws UIMAException {
+        return JCasFactory.createJCas();
+    }
+
+    /**
+     * Reads a BytesMessage body as a stream, without copying it in a separate array.
+     */
+    static class BytesMessageInputStream extends InputStream {
+        private final BytesMessage message;
+
+        BytesMessageInputStream(BytesMessage message) throws JMSException {
+            this.message = message;
+            message.reset();
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return message.readByte() & 0xff;
+            } catch (MessageEOFException e) {
+                return -1;
+            } catch (JMSException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                if (off == 0) {
+                    return message.readBytes(b, len);
+                }
+                byte[] chunk = new byte[len];
+                int n = message.readBytes(chunk, len);
+                if (n > 0) {
+                    System.arraycopy(chunk, 0, b, off, n);
+                }
+                return n;
+            } catch (JMSException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.ctakes.core.util.collection.CollectionMap;
+import org.apache.ctakes.core.util.collection.HashSetMap;
+import org.apache.ctakes.dictionary.lookup2.concept.Concept;
+import org.apache.ctakes.dictionary.lookup2.concept.ConceptFactory;
+import org.apache.ctakes.dictionary.lookup2.util.CuiCodeUtil;
+import org.apache.uima.UimaContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConceptFactory that caches the concepts created by another one, typically the
+ * JdbcConceptFactory, so the TUIs and preferred terms of frequent CUIs are not queried
+ * again for every document.
+ * <p>
+ * The cache is a CuiCache shared by all factories with the same name, i.e. by all
+ * pipeline instances using the same lookup descriptor. CUIs the delegate has no concept
+ * for are cached too, so they are not queried again either. Properties, in addition to the
+ * ones of the delegate:
+ * <ul>
+ *   <li>{@code delegate}: class name of the ConceptFactory to cache</li>
+ *   <li>{@code cacheSize}: max number of cached concepts (default 65536)</li>
+ *   <li>{@code prewarm}: optional file of CUIs to load at startup, one per line, most
+ *       frequent first; anything after the CUI on a line (e.g. a count) is ignored</li>
+ * </ul>
+ * The time of lookups is recorded in the {@code concept.cache.hit} and {@code concept.cache.miss}
+ * histograms, one sample per call: a call with any CUI missing is a miss, and includes the time
+ * spent in the delegate. The hit rate of the CUIs is logged with the metrics, as
+ * {@code concept.cache.<name>}.
+ */
+public class CachingConceptFactory implements ConceptFactory {
+    private static final Logger LOG = LoggerFactory.getLogger(CachingConceptFactory.class);
+
+    public static final String DELEGATE = "delegate";
+    public static final String CACHE_SIZE = "cacheSize";
+    public static final String PREWARM = "prewarm";
+
+    public static final String CACHE_HIT = "concept.cache.hit";
+    public static final String CACHE_MISS = "concept.cache.miss";
+
+    private static final int DEFAULT_CACHE_SIZE = 65536;
+    private static final Map<String, CuiCache<Concept>> CACHES = new HashMap<>();
+    // cached for the CUIs the delegate has no concept for
+    private static final Concept NONE = none();
+
+    private final String name;
+    private final ConceptFactory delegate;
+    private final CuiCache<Concept> cache;
+
+    public CachingConceptFactory(String name, UimaContext uimaContext, Properties properties) throws IOException {
+        this.name = name;
+        this.delegate = createDelegate(name, uimaContext, properties);
+        String prewarm = properties.getProperty(PREWARM);
+        this.cache = cache(name, Integer.parseInt(properties.getProperty(CACHE_SIZE, String.valueOf(DEFAULT_CACHE_SIZE)).trim()),
+            delegate, prewarm == null ? null : DictionaryIndex.locate(prewarm));
+    }
+
+    public CachingConceptFactory(String name, ConceptFactory delegate, CuiCache<Concept> cache) {
+        this.name = name;
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the cache shared by the factories with the given name, creating it if needed.
+     */
+    public static CuiCache<Concept> cache(String name, int size) throws IOException {
+        return cache(name, size, null, null);
+    }
+
+    /**
+     * Returns the cache shared by the factories with the given name, creating it and
+     * prewarming it from the file with the delegate if needed; pipeline instances
+     * initialized in parallel wait for the first one to load it.
+     */
+    private static synchronized CuiCache<Concept> cache(String name, int size, ConceptFactory delegate, Path prewarm) throws IOException {
+        CuiCache<Concept> cache = CACHES.get(name);
+        if (cache == null) {
+            cache = new CuiCache<>(size);
+            if (prewarm != null) {
+                prewarm(name, cache, delegate, prewarm);
+            }
+            CACHES.put(name, cache);
+            PaeonMetrics.statistics("concept.cache." + name, cache);
+        }
+        return cache;
+    }
+
+    private static Concept none() {
+        CollectionMap<String, String, ? extends Collection<String>> codes = new HashSetMap<>();
+        return new Concept("C0000000", null, codes);
+    }
+
+    private static ConceptFactory createDelegate(String name, UimaContext uimaContext, Properties properties) throws IOException {
+        String className = properties.getProperty(DELEGATE);
+        if (className == null) {
+            throw new IOException("Caching concept factory '" + name + "' needs a '" + DELEGATE + "' property");
+        }
+        try {
+            Class<? extends ConceptFactory> type = Class.forName(className.trim()).asSubclass(ConceptFactory.class);
+            Constructor<? extends ConceptFactory> constructor = type.getConstructor(String.class, UimaContext.class, Properties.class);
+            return constructor.newInstance(name, uimaContext, properties);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Failed to create concept factory " + className, e.getCause());
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IOException("Failed to create concept factory " + className, e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ConceptFactory getDelegate() {
+        return delegate;
+    }
+
+    public CuiCache<Concept> getCache() {
+        return cache;
+    }
+
+    public Concept createConcept(Long cuiCode) {
+        long start = System.nanoTime();
+        Concept concept = cache.get(cuiCode);
+        if (concept != null) {
+            PaeonMetrics.histogram(CACHE_HIT).recordSince(start);
+            return concept == NONE ? null : concept;
+        }
+        concept = delegate.createConcept(cuiCode);
+        cache.put(cuiCode, concept == null ? NONE : concept);
+        PaeonMetrics.histogram(CACHE_MISS).recordSince(start);
+        return concept;
+    }
+
+    public Map<Long, Concept> createConcepts(Collection<Long> cuiCodes) {
+        long start = System.nanoTime();
+        Map<Long, Concept> concepts = new HashMap<>(cuiCodes.size() * 2);
+        List<Long> missing = null;
+        for (Long cuiCode : cuiCodes) {
+            Concept concept = cache.get(cuiCode);
+            if (concept == NONE) {
+                continue;
+            }
+            if (concept != null) {
+                concepts.put(cuiCode, concept);
+            } else {
+                if (missing == null) {
+                    missing = new ArrayList<>();
+                }
+                missing.add(cuiCode);
+            }
+        }
+        if (missing == null) {
+            PaeonMetrics.histogram(CACHE_HIT).recordSince(start);
+            return concepts;
+        }
+        // one batch for all the missing ones
+        Map<Long, Concept> created = delegate.createConcepts(missing);
+        for (Long cuiCode : missing) {
+            Concept concept = created.get(cuiCode);
+            if (concept != null) {
+                cache.put(cuiCode, concept);
+                concepts.put(cuiCode, concept);
+            } else {
+                cache.put(cuiCode, NONE);
+            }
+        }
+        PaeonMetrics.histogram(CACHE_MISS).recordSince(start);
+        return concepts;
+    }
+
+    /**
+     * Loads the CUIs listed in the file, most frequent first, up to half the cache
+     * capacity so the working set still has room.
+     */
+    public void prewarm(Path file) throws IOException {
+        prewarm(name, cache, delegate, file);
+    }
+
+    private static void prewarm(String name, CuiCache<Concept> cache, ConceptFactory delegate, Path file) throws IOException {
+        long start = System.currentTimeMillis();
+        int limit = cache.getCapacity() / 2;
+        List<Long> cuis = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null && cuis.size() < limit) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String cui = line.split("[\\s,|]", 2)[0];
+                try {
+                    cuis.add(CuiCodeUtil.getInstance().getCuiCode(cui));
+                } catch (RuntimeException e) {
+                    LOG.warn("Ignoring invalid CUI '{}' in {}", cui, file);
+                }
+            }
+        }
+        // least frequent first, so the most frequent ones end up in the first slot of their pair
+        Map<Long, Concept> concepts = delegate.createConcepts(cuis);
+        for (int i = cuis.size() - 1; i >= 0; i--) {
+            Concept concept = concepts.get(cuis.get(i));
+            if (concept != null) {
+                cache.put(cuis.get(i), concept);
+            }
+        }
+        LOG.info("Concept cache '{}' prewarmed with {} CUIs from {} in {} ms", name, cuis.size(), file,
+            System.currentTimeMillis() - start);
+    }
+
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.uima.cas.ArrayFS;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CommonArrayFS;
+import org.apache.uima.cas.DoubleArrayFS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.FloatArrayFS;
+import org.apache.uima.cas.IntArrayFS;
+import org.apache.uima.cas.LongArrayFS;
+import org.apache.uima.cas.StringArrayFS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+
+/**
+ * The feature structures annotated within a span of a CAS, encoded with offsets relative
+ * to the span, so they can be replayed into another CAS, at another offset.
+ * <p>
+ * The structures are encoded along with all the structures they reference, by type and
+ * feature names, so a fragment can be replayed into the CAS of any pipeline with the same
+ * types. A fragment cannot refer to structures outside of it, except for the span annotation
+ * itself, which is replayed as the span annotation of the target.
+ */
+public class CasFragment {
+
+    // value kinds of the features and array elements
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte INT = 4;
+    private static final byte LONG = 5;
+    private static final byte FLOAT = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte STRING = 8;
+    private static final byte REF = 9;
+    private static final byte BEGIN = 10;
+    private static final byte END = 11;
+
+    // references that are not to structures of the fragment
+    private static final int NULL = -1;
+    private static final int SPAN = -2;
+
+    private final byte[] data;
+
+    CasFragment(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Returns the size of the encoded fragment, in bytes.
+     */
+    public int size() {
+        return data.length;
+    }
+
+    /**
+     * Encodes structures within a span and the structures they reference.
+     *
+     * @param span the annotation the fragment is relative to, e.g. a sentence
+     * @param roots the indexed structures within the span
+     * @param indexed the indexed structures of the CAS, to tell which referenced structures are indexed
+     * @param encoded the structures already encoded in other fragments; updated with the ones of this fragment
+     * @return the fragment, or null if a structure is also in another fragment, refers to an
+     *         annotation outside the span or cannot be encoded
+     */
+    public static CasFragment encode(AnnotationFS span, Collection<? extends FeatureStructure> roots,
+            Set<FeatureStructure> indexed, Set<FeatureStructure> encoded) {
+        TypeSystem types = span.getCAS().getTypeSystem();
+        Type annotation = span.getCAS().getAnnotationType();
+        Map<Type, TypeCodec> codecs = new LinkedHashMap<>();
+        // FeatureStructure equality is by address, the same structure may have several Java objects
+        Map<FeatureStructure, Integer> ids = new HashMap<>();
+        List<FeatureStructure> order = new ArrayList<>();
+        Deque<FeatureStructure> pending = new ArrayDeque<>();
+        for (FeatureStructure fs : roots) {
+            if (!encoded.add(fs)) {
+                return null;
+            }
+            ids.put(fs, order.size());
+            order.add(fs);
+            pending.add(fs);
+        }
+        while (!pending.isEmpty()) {
+            FeatureStructure fs = pending.poll();
+            TypeCodec codec = codec(types, annotation, codecs, fs.getType());
+            if (codec == null) {
+                return null;
+            }
+            for (FeatureStructure ref : codec.references(fs)) {
+                if (ref == null || ref.equals(span) || ids.containsKey(ref)) {
+                    continue;
+                }
+                if (types.subsumes(annotation, ref.getType()) && !within((AnnotationFS)ref, span)) {
+                    return null;
+                }
+                if (!encoded.add(ref)) {
+                    return null;
+                }
+                ids.put(ref, order.size());
+                order.add(ref);
+                pending.add(ref);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 32 * order.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(codecs.size());
+            for (TypeCodec codec : codecs.values()) {
+                codec.writeHeader(out);
+            }
+            out.writeInt(order.size());
+            // all the structures are created before any reference is set
+            for (FeatureStructure fs : order) {
+                TypeCodec codec = codecs.get(fs.getType());
+                out.writeShort(codec.index);
+                out.writeBoolean(indexed.contains(fs));
+                if (codec.elementKind != 0) {
+                    out.writeInt(((CommonArrayFS)fs).size());
+                }
+            }
+            for (FeatureStructure fs : order) {
+                codecs.get(fs.getType()).writeValues(out, fs, span, ids);
+            }
+        } catch (IOException e) {
+            // strings over 64K, not in a sentence
+            return null;
+        }
+        return new CasFragment(bytes.toByteArray());
+    }
+
+    private static boolean within(AnnotationFS a, AnnotationFS span) {
+        return a.getBegin() >= span.getBegin() && a.getEnd() <= span.getEnd();
+    }
+
+    private static TypeCodec codec(TypeSystem types, Type annotation, Map<Type, TypeCodec> codecs, Type type) {
+        TypeCodec codec = codecs.get(type);
+        if (codec == null) {
+            codec = new TypeCodec(type, codecs.size());
+            if (type.isArray()) {
+                codec.elementKind = elementKind(type);
+                if (codec.elementKind == 0) {
+                    return null;
+                }
+            } else {
+                boolean isAnnotation = types.subsumes(annotation, type);
+                for (Feature feature : type.getFeatures()) {
+                    String name = feature.getShortName();
+                    if (CAS.FEATURE_BASE_NAME_SOFA.equals(name)) {
+                        continue;
+                    }
+                    byte kind = isAnnotation && CAS.FEATURE_BASE_NAME_BEGIN.equals(name) ? BEGIN
+                            : isAnnotation && CAS.FEATURE_BASE_NAME_END.equals(name) ? END
+                            : kind(types, feature.getRange());
+                    if (kind == 0) {
+                        return null;
+                    }
+                    codec.features.add(feature);
+                    codec.kinds.add(kind);
+                }
+            }
+            codecs.put(type, codec);
+        }
+        return codec;
+    }
+
+    private static byte kind(TypeSystem types, Type range) {
+        switch (range.getName()) {
+            case CAS.TYPE_NAME_BOOLEAN: return BOOLEAN;
+            case CAS.TYPE_NAME_BYTE: return BYTE;
+            case CAS.TYPE_NAME_SHORT: return SHORT;
+            case CAS.TYPE_NAME_INTEGER: return INT;
+            case CAS.TYPE_NAME_LONG: return LONG;
+            case CAS.TYPE_NAME_FLOAT: return FLOAT;
+            case CAS.TYPE_NAME_DOUBLE: return DOUBLE;
+            default:
+                // including the string subtypes with allowed values
+                if (types.subsumes(types.getType(CAS.TYPE_NAME_STRING), range)) {
+                    return STRING;
+                }
+                return range.isPrimitive() ? 0 : REF;
+        }
+    }
+
+    private static byte elementKind(Type array) {
+        switch (array.getName()) {
+            case CAS.TYPE_NAME_FS_ARRAY: return REF;
+            case CAS.TYPE_NAME_INTEGER_ARRAY: return INT;
+            case CAS.TYPE_NAME_LONG_ARRAY: return LONG;
+            case CAS.TYPE_NAME_FLOAT_ARRAY: return FLOAT;
+            case CAS.TYPE_NAME_DOUBLE_ARRAY: return DOUBLE;
+            case CAS.TYPE_NAME_STRING_ARRAY: return STRING;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Creates the structures of the fragment in the CAS, relative to the given span, and
+     * indexes the ones that were indexed.
+     *
+     * @throws IllegalStateException if a type or feature of the fragment is not in the CAS
+     */
+    public void replay(CAS cas, AnnotationFS span) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            TypeSystem types = cas.getTypeSystem();
+            int typeCount = in.readShort();
+            Type[] fsTypes = new Type[typeCount];
+            byte[] elementKinds = new byte[typeCount];
+            Feature[][] features = new Feature[typeCount][];
+            byte[][] kinds = new byte[typeCount][];
+            for (int t = 0; t < typeCount; t++) {
+                String name = in.readUTF();
+                fsTypes[t] = types.getType(name);
+                if (fsTypes[t] == null) {
+                    throw new IllegalStateException("Type " + name + " is not in the CAS");
+                }
+                elementKinds[t] = in.readByte();
+                features[t] = new Feature[in.readShort()];
+                kinds[t] = new byte[features[t].length];
+                for (int f = 0; f < features[t].length; f++) {
+                    String feature = in.readUTF();
+                    features[t][f] = fsTypes[t].getFeatureByBaseName(feature);
+                    if (features[t][f] == null) {
+                        throw new IllegalStateException("Feature " + name + ":" + feature + " is not in the CAS");
+                    }
+                    kinds[t][f] = in.readByte();
+                }
+            }
+
+            int count = in.readInt();
+            FeatureStructure[] fss = new FeatureStructure[count];
+            int[] fsType = new int[count];
+            boolean[] fsIndexed = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                fsType[i] = in.readShort();
+                fsIndexed[i] = in.readBoolean();
+                byte elementKind = elementKinds[fsType[i]];
+                fss[i] = elementKind != 0 ? createArray(cas, elementKind, in.readInt()) : cas.createFS(fsTypes[fsType[i]]);
+            }
+            int offset = span.getBegin();
+            for (int i = 0; i < count; i++) {
+                FeatureStructure fs = fss[i];
+                byte elementKind = elementKinds[fsType[i]];
+                if (elementKind != 0) {
+                    readElements(in, fs, elementKind, fss, span);
+                    continue;
+                }
+                Feature[] fsFeatures = features[fsType[i]];
+                byte[] fsKinds = kinds[fsType[i]];
+                for (int f = 0; f < fsFeatures.length; f++) {
+                    Feature feature = fsFeatures[f];
+                    switch (fsKinds[f]) {
+                        case BOOLEAN: fs.setBooleanValue(feature, in.readBoolean()); break;
+                        case BYTE: fs.setByteValue(feature, in.readByte()); break;
+                        case SHORT: fs.setShortValue(feature, in.readShort()); break;
+                        case INT: fs.setIntValue(feature, in.readInt()); break;
+                        case LONG: fs.setLongValue(feature, in.readLong()); break;
+                        case FLOAT: fs.setFloatValue(feature, in.readFloat()); break;
+                        case DOUBLE: fs.setDoubleValue(feature, in.readDouble()); break;
+                        case STRING: fs.setStringValue(feature, readString(in)); break;
+                        case REF: fs.setFeatureValue(feature, ref(in.readInt(), fss, span)); break;
+                        case BEGIN:
+                        case END: fs.setIntValue(feature, offset + in.readInt()); break;
+                        default: throw new IllegalStateException("Unknown value kind " + fsKinds[f]);
+                    }
+                }
+            }
+            // annotations are indexed by offsets, so only once they are set
+            for (int i = 0; i < count; i++) {
+                if (fsIndexed[i]) {
+                    cas.addFsToIndexes(fss[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt fragment", e);
+        }
+    }
+
+    private static FeatureStructure createArray(CAS cas, byte elementKind, int length) {
+        switch (elementKind) {
+            case REF: return cas.createArrayFS(length);
+            case INT: return cas.createIntArrayFS(length);
+            case LONG: return cas.createLongArrayFS(length);
+            case FLOAT: return cas.createFloatArrayFS(length);
+            case DOUBLE: return cas.createDoubleArrayFS(length);
+            case STRING: return cas.createStringArrayFS(length);
+            default: throw new IllegalStateException("Unknown element kind " + elementKind);
+        }
+    }
+
+    private static void readElements(DataInputStream in, FeatureStructure array, byte elementKind,
+            FeatureStructure[] fss, AnnotationFS span) throws IOException {
+        int length = in.readInt();
+        for (int i = 0; i < length; i++) {
+            switch (elementKind) {
+                case REF: ((ArrayFS)array).set(i, ref(in.readInt(), fss, span)); break;
+                case INT: ((IntArrayFS)array).set(i, in.readInt()); break;
+                case LONG: ((LongArrayFS)array).set(i, in.readLong()); break;
+                case FLOAT: ((FloatArrayFS)array).set(i, in.readFloat()); break;
+                case DOUBLE: ((DoubleArrayFS)array).set(i, in.readDouble()); break;
+                case STRING: ((StringArrayFS)array).set(i, readString(in)); break;
+                default: throw new IllegalStateException("Unknown element kind " + elementKind);
+            }
+        }
+    }
+
+    private static FeatureStructure ref(int id, FeatureStructure[] fss, AnnotationFS span) {
+        return id == NULL ? null : id == SPAN ? span : fss[id];
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * How the structures of a type are encoded.
+     */
+    private static final class TypeCodec {
+        final Type type;
+        final int index;
+        // 0 unless the type is an array
+        byte elementKind;
+        final List<Feature> features = new ArrayList<>();
+        final List<Byte> kinds = new ArrayList<>();
+
+        TypeCodec(Type type, int index) {
+            this.type = type;
+            this.index = index;
+        }
+
+        List<FeatureStructure> references(FeatureStructure fs) {
+            List<FeatureStructure> refs = new ArrayList<>();
+            if (elementKind == REF) {
+                ArrayFS array = (ArrayFS)fs;
+                for (int i = 0; i < array.size(); i++) {
+                    refs.add(array.get(i));
+                }
+            }
+            for (int f = 0; f < features.size(); f++) {
+                if (kinds.get(f) == REF) {
+                    refs.add(fs.getFeatureValue(features.get(f)));
+                }
+            }
+            return refs;
+        }
+
+        void writeHeader(DataOutputStream out) throws IOException {
+            out.writeUTF(type.getName());
+            out.writeByte(elementKind);
+            out.writeShort(features.size());
+            for (int f = 0; f < features.size(); f++) {
+                out.writeUTF(features.get(f).getShortName());
+                out.writeByte(kinds.get(f));
+            }
+        }
+
+        void writeValues(DataOutputStream out, FeatureStructure fs, AnnotationFS span,
+                Map<FeatureStructure, Integer> ids) throws IOException {
+            if (elementKind != 0) {
+                int length = ((CommonArrayFS)fs).size();
+                out.writeInt(length);
+                for (int i = 0; i < length; i++) {
+                    switch (elementKind) {
+                        case REF: out.writeInt(id(((ArrayFS)fs).get(i), span, ids)); break;
+                        case INT: out.writeInt(((IntArrayFS)fs).get(i)); break;
+                        case LONG: out.writeLong(((LongArrayFS)fs).get(i)); break;
+                        case FLOAT: out.writeFloat(((FloatArrayFS)fs).get(i)); break;
+                        case DOUBLE: out.writeDouble(((DoubleArrayFS)fs).get(i)); break;
+                        default: writeString(out, ((StringArrayFS)fs).get(i)); break;
+                    }
+                }
+                return;
+            }
+            for (int f = 0; f < features.size(); f++) {
+                Feature feature = features.get(f);
+                switch (kinds.get(f)) {
+                    case BOOLEAN: out.writeBoolean(fs.getBooleanValue(feature)); break;
+                    case BYTE: out.writeByte(fs.getByteValue(feature)); break;
+                    case SHORT: out.writeShort(fs.getShortValue(feature)); break;
+                    case INT: out.writeInt(fs.getIntValue(feature)); break;
+                    case LONG: out.writeLong(fs.getLongValue(feature)); break;
+                    case FLOAT: out.writeFloat(fs.getFloatValue(feature)); break;
+                    case DOUBLE: out.writeDouble(fs.getDoubleValue(feature)); break;
+                    case STRING: writeString(out, fs.getStringValue(feature)); break;
+                    case REF: out.writeInt(id(fs.getFeatureValue(feature), span, ids)); break;
+                    default: out.writeInt(fs.getIntValue(feature) - span.getBegin()); break;
+                }
+            }
+        }
+
+        private static int id(FeatureStructure ref, AnnotationFS span, Map<FeatureStructure, Integer> ids) {
+            return ref == null ? NULL : ref.equals(span) ? SPAN : ids.get(ref);
+        }
+    }
+
+}
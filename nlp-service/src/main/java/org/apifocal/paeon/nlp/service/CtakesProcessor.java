@@ -2,51 +2,62 @@ package org.apifocal.paeon.nlp.service;
 
 import com.google.common.collect.Lists;
 import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.apache.ctakes.assertion.medfacts.cleartk.PolarityCleartkAnalysisEngine;
-import org.apache.ctakes.assertion.medfacts.cleartk.UncertaintyCleartkAnalysisEngine;
-import org.apache.ctakes.chunker.ae.Chunker;
-import org.apache.ctakes.clinicalpipeline.ClinicalPipelineFactory;
-import org.apache.ctakes.constituency.parser.ae.ConstituencyParser;
-import org.apache.ctakes.contexttokenizer.ae.ContextDependentTokenizerAnnotator;
-import org.apache.ctakes.core.ae.SentenceDetector;
-import org.apache.ctakes.core.ae.SimpleSegmentAnnotator;
-import org.apache.ctakes.core.ae.TokenizerAnnotatorPTB;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.ctakes.core.cc.pretty.plaintext.PrettyTextWriter;
-import org.apache.ctakes.dependency.parser.ae.ClearNLPDependencyParserAE;
-import org.apache.ctakes.dependency.parser.ae.ClearNLPSemanticRoleLabelerAE;
-import org.apache.ctakes.dictionary.lookup2.ae.AbstractJCasTermAnnotator;
-import org.apache.ctakes.dictionary.lookup2.ae.DefaultJCasTermAnnotator;
-import org.apache.ctakes.dictionary.lookup2.ae.JCasTermAnnotator;
-import org.apache.ctakes.lvg.ae.LvgAnnotator;
-import org.apache.ctakes.postagger.POSTagger;
-import org.apache.ctakes.temporal.ae.*;
-import org.apache.ctakes.temporal.eval.Evaluation_ImplBase;
-import org.apache.ctakes.temporal.pipelines.FullTemporalExtractionPipeline;
 import org.apache.ctakes.typesystem.type.refsem.Event;
 import org.apache.ctakes.typesystem.type.refsem.EventProperties;
 import org.apache.ctakes.typesystem.type.textsem.EventMention;
 import org.apache.ctakes.typesystem.type.textspan.Sentence;
 import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.cas.impl.XmiCasSerializer;
-import org.apache.uima.collection.base_cpm.CasObjectProcessor;
 import org.apache.uima.fit.factory.AggregateBuilder;
-import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.fit.util.CasUtil;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
-import org.apache.uima.jcas.cas.TOP;
 import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.CasCopier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class CtakesProcessor implements NLPProcessor {
@@ -55,113 +66,543 @@ public class CtakesProcessor implements NLPProcessor {
 
     private static final NumberFormat SecondsFormatter = new DecimalFormat("#0.00000");
 
-    private static final String OUTPUT_TYPE_XML = "xml";
-    private static final String OUTPUT_TYPE_PRETTY = "pretty";
+    private static final long DEFAULT_TIMEOUT = 30000;
+    private static final int MAX_CACHED_PROJECTIONS = 64;
+    private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    private static final String DEFAULT_OPTIONAL_STAGES = "semantic-roles,constituency-parser";
+    private static final String WARMUP_RESOURCE = "org/apifocal/paeon/nlp/warmup-note.txt";
+    // a synthetic note exercising all the annotators
+    private static final String WARMUP_NOTE = loadWarmupNote();
 
-    // Reuse the pipeline for demo purposes
-    private AnalysisEngine defaultPipeline = null;
+    private final PaeonConfig config;
+    private final String defaultProfile;
+    private final int instances;
+    private final int casCount;
+    private final long timeout;
+    private final ConcurrentMap<String, PipelinePool> pools = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Object> poolLocks = new ConcurrentHashMap<>();
+    // profiles that failed to initialize, not loaded again for every request naming them
+    private final Set<String> failedProfiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ExecutorService initExecutor;
+    private final int warmupIterations;
+    private final Projection defaultProjection;
+    private final ConcurrentMap<String, Projection> projections = new ConcurrentHashMap<>();
+    private final ResultCache cache;
+    private final SentenceMemo sentenceMemo;
+    // whether each profile runs with sentence memoization, once its parts are loaded
+    private final ConcurrentMap<String, Boolean> memoized = new ConcurrentHashMap<>();
+    // result cache fingerprints of the profiles
+    private final ConcurrentMap<String, String> fingerprints = new ConcurrentHashMap<>();
+    private final int chunkThreshold;
+    private final int chunkSize;
+    private final SectionSplitter splitter;
+    private final ExecutorService chunkExecutor;
+    private final Set<PipelineStage> phaseStarts;
+    private final long defaultDeadline;
+    private final Set<PipelineStage> optionalStages;
+    private final int maxSentence;
+    // staged pipelines per profile
+    private final ConcurrentMap<String, StagedPipeline> stagedPipelines = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Object> stagedLocks = new ConcurrentHashMap<>();
+    // profiles that fall in a single phase, or failed to initialize
+    private final Set<String> unstaged = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public CtakesProcessor() {
+        this(1, 1, DEFAULT_TIMEOUT);
+    }
+
+    public CtakesProcessor(PaeonConfig config) {
+        this(config, config.getIntProperty(PaeonConfig.PAEON_CFG_PIPELINE_INSTANCES, 1),
+                config.getIntProperty(PaeonConfig.PAEON_CFG_PIPELINE_CASES, 0),
+                config.getLongProperty(PaeonConfig.PAEON_CFG_PIPELINE_TIMEOUT, DEFAULT_TIMEOUT));
+    }
+
+    /**
+     * @param instances number of pipeline instances, i.e. documents processed concurrently
+     * @param casCount number of pooled CASes; defaults to twice the instances if not positive,
+     *                 so serialization of one document overlaps with processing of the next
+     * @param timeout max millis to wait for a free pipeline or CAS
+     */
+    public CtakesProcessor(int instances, int casCount, long timeout) {
+        this(null, instances, casCount, timeout);
+    }
+
+    private CtakesProcessor(PaeonConfig config, int instances, int casCount, long timeout) {
+        this.config = config;
+        this.defaultProfile = PipelineProfile.defaultName(config);
+        this.instances = Math.max(1, instances);
+        this.casCount = casCount;
+        this.timeout = timeout;
+        this.defaultProjection = new Projection(config == null ? Projection.DEFAULT_SPEC
+                : config.getProperty(PaeonConfig.PAEON_CFG_PROJECTION, Projection.DEFAULT_SPEC));
+        this.cache = ResultCache.create(config);
+        this.sentenceMemo = SentenceMemo.create(config);
+        this.chunkThreshold = config == null ? 0 : config.getIntProperty(PaeonConfig.PAEON_CFG_CHUNK_THRESHOLD, 0);
+        this.chunkSize = config == null ? DEFAULT_CHUNK_SIZE
+                : Math.max(1, config.getIntProperty(PaeonConfig.PAEON_CFG_CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+        this.splitter = chunkThreshold > 0 ? createSplitter(config) : null;
+        this.chunkExecutor = splitter == null ? null
+                : createChunkExecutor(Math.max(1, config.getIntProperty(PaeonConfig.PAEON_CFG_CHUNK_THREADS, this.instances)));
+        this.phaseStarts = parseStages(config, PaeonConfig.PAEON_CFG_PIPELINE_PHASES, null);
+        this.defaultDeadline = config == null ? 0 : config.getLongProperty(PaeonConfig.PAEON_CFG_DEADLINE, 0);
+        this.optionalStages = parseStages(config, PaeonConfig.PAEON_CFG_DEADLINE_OPTIONAL, DEFAULT_OPTIONAL_STAGES);
+        this.maxSentence = config == null ? 0 : config.getIntProperty(PaeonConfig.PAEON_CFG_DEADLINE_MAX_SENTENCE, 0);
+        this.warmupIterations = config == null ? 0 : config.getIntProperty(PaeonConfig.PAEON_CFG_WARMUP_ITERATIONS, 0);
+        int initThreads = config == null ? 1 : config.getIntProperty(PaeonConfig.PAEON_CFG_PIPELINE_INIT_THREADS,
+                Runtime.getRuntime().availableProcessors());
+        this.initExecutor = initThreads > 1 ? createInitExecutor(initThreads) : null;
         initializePipeline();
     }
 
     /**
-     * Creates an aggregated AnalysisEngine Builder for the NLP Pipeline
-     * <p>
-     * Based on https://github.com/healthnlp/examples/blob/master/ctakes-temporal-demo
+     * Parses a list of stages: {@code paeon.pipeline.phases}, the stages that start a new phase
+     * of a staged pipeline, or {@code paeon.deadline.optional}, the stages skipped past the deadline.
      */
-    public AggregateBuilder createAnalysisEngineBuilder() {
-        AggregateBuilder builder = new AggregateBuilder();
+    private static Set<PipelineStage> parseStages(PaeonConfig config, String key, String def) {
+        Set<PipelineStage> stages = EnumSet.noneOf(PipelineStage.class);
+        String names = config == null ? def : config.getProperty(key, def);
+        if (names != null) {
+            for (String name : names.split(",")) {
+                if (name.trim().isEmpty()) {
+                    continue;
+                }
+                PipelineStage stage = PipelineStage.fromName(name);
+                if (stage == null) {
+                    LOG.warn("Ignoring unknown pipeline stage '{}' in '{}'", name.trim(), key);
+                } else {
+                    stages.add(stage);
+                }
+            }
+        }
+        return stages;
+    }
 
+    private static SectionSplitter createSplitter(PaeonConfig config) {
         try {
-            //  builder.add(ClinicalPipelineFactory.getFastPipeline());
-            //	builder.add( ClinicalPipelineFactory.getTokenProcessingPipeline() );
-            builder.add(AnalysisEngineFactory.createEngineDescription(SimpleSegmentAnnotator.class));
-            builder.add(SentenceDetector.createAnnotatorDescription());
-            builder.add(TokenizerAnnotatorPTB.createAnnotatorDescription());
-            builder.add(LvgAnnotator.createAnnotatorDescription());
-            builder.add(ContextDependentTokenizerAnnotator.createAnnotatorDescription());
-            builder.add(POSTagger.createAnnotatorDescription());
-            builder.add(Chunker.createAnnotatorDescription());
-            builder.add(ClinicalPipelineFactory.getStandardChunkAdjusterAnnotator());
-            builder.add(AnalysisEngineFactory.createEngineDescription(Evaluation_ImplBase.CopyNPChunksToLookupWindowAnnotations.class));
-            builder.add(AnalysisEngineFactory.createEngineDescription(Evaluation_ImplBase.RemoveEnclosedLookupWindows.class));
-
-            // TODO: the dictionary should be provided through a ProfileProvider.getDictiorary() (profile = customer = user)
-            builder.add(AnalysisEngineFactory.createEngineDescription(DefaultJCasTermAnnotator.class,
-                    AbstractJCasTermAnnotator.PARAM_WINDOW_ANNOT_KEY,
-                    "org.apache.ctakes.typesystem.type.textspan.Sentence",
-                    JCasTermAnnotator.DICTIONARY_DESCRIPTOR_KEY,
-                    "org/apache/ctakes/dictionary/lookup/fast/sno_rx_16ab.xml")
-            );
-            builder.add(ClearNLPDependencyParserAE.createAnnotatorDescription());
-            builder.add(PolarityCleartkAnalysisEngine.createAnnotatorDescription());
-            builder.add(UncertaintyCleartkAnalysisEngine.createAnnotatorDescription());
-            builder.add(AnalysisEngineFactory.createEngineDescription(ClearNLPSemanticRoleLabelerAE.class));
-            builder.add(AnalysisEngineFactory.createEngineDescription(ConstituencyParser.class));
-
-            // Add BackwardsTimeAnnotator
-            builder.add(BackwardsTimeAnnotator
-                    .createAnnotatorDescription("/org/apache/ctakes/temporal/ae/timeannotator/model.jar"));
-
-            // Add EventAnnotator
-            builder.add(EventAnnotator
-                    .createAnnotatorDescription("/org/apache/ctakes/temporal/ae/eventannotator/model.jar"));
-
-            builder.add(AnalysisEngineFactory.createEngineDescription(FullTemporalExtractionPipeline.CopyPropertiesToTemporalEventAnnotator.class));
-
-            // Add Document Time Relative Annotator
-            //link event to eventMention
-            builder.add(AnalysisEngineFactory.createEngineDescription(AddEvent.class));
-
-            builder.add(DocTimeRelAnnotator
-                    .createAnnotatorDescription("/org/apache/ctakes/temporal/ae/doctimerel/model.jar"));
-
-            // Add Event to Event Relation Annotator
-            builder.add(EventTimeSelfRelationAnnotator
-                    .createEngineDescription("/org/apache/ctakes/temporal/ae/eventtime/20150629/model.jar"));
-
-            // Add Event to Event Relation Annotator
-            builder.add(EventEventRelationAnnotator
-                    .createAnnotatorDescription("/org/apache/ctakes/temporal/ae/eventevent/20150630/model.jar"));
-
-        } catch (MalformedURLException e) {
-            // FIXME: don't ignore forever
-            LOG.error("Failed to create LVG Annotator: '{}'", e);
-        } catch (ResourceInitializationException e) {
+            return new SectionSplitter(config.getProperty(PaeonConfig.PAEON_CFG_CHUNK_SECTIONS, SectionSplitter.DEFAULT_SECTIONS));
+        } catch (IOException e) {
             // FIXME: don't ignore forever
-            LOG.error("Failed to create Annotator: '{}'", e);
+            LOG.error("Failed to load section patterns; long documents will not be chunked", e);
+            return null;
         }
+    }
 
-        return builder;
+    private static ExecutorService createInitExecutor(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "paeon-init-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // idle after startup, until another profile is requested
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
-    private JCas createCommonAnalysisSystem() {
-        try {
-            return getPipeline().newJCas();
-        } catch (ResourceInitializationException e) {
-            // FIXME: don't ignore forever
-            LOG.warn("Failed to create Java Common Analysis System");
+    private static ExecutorService createChunkExecutor(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "paeon-chunk-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Creates an aggregated AnalysisEngine Builder for the full NLP Pipeline
+     */
+    public AggregateBuilder createAnalysisEngineBuilder() {
+        return createAnalysisEngineBuilder(PipelineProfile.full());
+    }
+
+    /**
+     * Creates an aggregated AnalysisEngine Builder with the stages of the given profile
+     */
+    public AggregateBuilder createAnalysisEngineBuilder(PipelineProfile profile) {
+        AggregateBuilder builder = new AggregateBuilder();
+
+        for (PipelineStage stage : profile.getStages()) {
+            try {
+                AnalysisEngineDescription description = stage.createDescription(config);
+                // the process trace reports annotators by name, so name them after their stage
+                description.getAnalysisEngineMetaData().setName(stage.getName());
+                builder.add(stage.getName(), description);
+            } catch (MalformedURLException e) {
+                // FIXME: don't ignore forever
+                LOG.error("Failed to create '{}' Annotator: '{}'", stage.getName(), e);
+            } catch (ResourceInitializationException e) {
+                // FIXME: don't ignore forever
+                LOG.error("Failed to create '{}' Annotator: '{}'", stage.getName(), e);
+            }
+        }
+        if (!Collections.disjoint(profile.getStages(), optionalStages)) {
+            List<String> optional = new ArrayList<>();
+            for (PipelineStage stage : optionalStages) {
+                optional.add(stage.getName());
+            }
+            try {
+                builder.setFlowControllerDescription(DeadlineFlowController.createDescription(optional, maxSentence));
+            } catch (ResourceInitializationException e) {
+                // FIXME: don't ignore forever
+                LOG.error("Failed to create the deadline flow controller; no stage will be skipped", e);
+            }
         }
 
-        // FIXME: Nullable
-        return null;
+        return builder;
     }
 
+    /**
+     * Loads the default profile, the ones listed in {@code paeon.profiles} and the ones
+     * defined in the configuration, so requests naming them do not wait for them to load;
+     * built in profiles not listed are loaded when first requested.
+     */
     public void initializePipeline() {
         LOG.info("Initilizing Pipeline ...");
+        long start = System.currentTimeMillis();
+
+        Set<String> profiles = new LinkedHashSet<>();
+        List<Lane> lanes = config == null ? Collections.<Lane>emptyList() : Lane.fromConfig(config);
+        // with lanes, documents run on the pipelines of their lane
+        for (Lane lane : lanes) {
+            profiles.add(PipelineProfile.laneName(lane.getName(), lane.getProfile() != null ? lane.getProfile() : defaultProfile));
+        }
+        if (lanes.isEmpty()) {
+            profiles.add(defaultProfile);
+        }
+        Set<String> preload = new LinkedHashSet<>();
+        String listed = config == null ? null : config.getProperty(PaeonConfig.PAEON_CFG_PROFILES_PRELOAD);
+        if (listed != null) {
+            for (String profile : listed.split(",")) {
+                if (!profile.trim().isEmpty()) {
+                    preload.add(profile.trim());
+                }
+            }
+        }
+        preload.addAll(PipelineProfile.configuredNames(config));
+        for (String profile : preload) {
+            if (lanes.isEmpty()) {
+                profiles.add(profile);
+            }
+            for (Lane lane : lanes) {
+                profiles.add(PipelineProfile.laneName(lane.getName(), profile));
+            }
+        }
+        if (initExecutor == null || profiles.size() == 1) {
+            for (String profile : profiles) {
+                isAvailable(profile);
+            }
+        } else {
+            // the profiles load on their own threads, their instances on the init executor
+            List<Thread> loaders = new ArrayList<>();
+            for (final String profile : profiles) {
+                Thread loader = new Thread(new Runnable() {
+                    public void run() {
+                        isAvailable(profile);
+                    }
+                }, "paeon-load-" + profile);
+                loaders.add(loader);
+                loader.start();
+            }
+            for (Thread loader : loaders) {
+                try {
+                    loader.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        LOG.info("Pipeline initialized in '{}' secs", getTimeElapsedInSeconds(start));
+    }
+
+    public AnalysisEngine getPipeline() {
+        PipelinePool pool = getPool();
+        return pool == null ? null : pool.getEngine();
+    }
+
+    public PipelinePool getPool() {
+        return getPool(defaultProfile);
+    }
+
+    /**
+     * Returns the pipeline pool for a profile, creating it on first use.
+     *
+     * @return the pool, or null if the profile is unknown or failed to initialize
+     */
+    public PipelinePool getPool(String profileName) {
+        PipelinePool pool = pools.get(profileName);
+        if (pool != null || failedProfiles.contains(profileName)) {
+            return pool;
+        }
+        PipelineProfile profile;
+        try {
+            profile = PipelineProfile.lookup(config, profileName);
+        } catch (IllegalArgumentException e) {
+            LOG.error("Invalid Pipeline profile '{}': {}", profileName, e.getMessage());
+            return null;
+        }
+        if (profile == null) {
+            return null;
+        }
+        // one lock per profile, so profiles can be loaded concurrently
+        synchronized (lock(poolLocks, profileName)) {
+            pool = pools.get(profileName);
+            if (pool != null || failedProfiles.contains(profileName)) {
+                return pool;
+            }
+            try {
+                int size = poolSize(profileName);
+                LOG.info("Initilizing Pipeline profile {} with {} instance(s) ...", profile, size);
+                pool = new PipelinePool(createAnalysisEngineBuilder(profile).createAggregateDescription(),
+                        PipelineRegistry.getResourceManager(), size, casCount > 0 ? casCount : 2 * size, timeout, initExecutor);
+                warmUp(profileName, pool);
+                pools.put(profileName, pool);
+            } catch (ResourceInitializationException e) {
+                LOG.error("Failed initilizing Pipeline profile {}; not loaded again", profileName, e);
+                failedProfiles.add(profileName);
+            }
+            return pool;
+        }
+    }
+
+    private static Object lock(ConcurrentMap<String, Object> locks, String profileName) {
+        Object lock = new Object();
+        Object existing = locks.putIfAbsent(profileName, lock);
+        return existing != null ? existing : lock;
+    }
+
+    private int poolSize(String profileName) {
+        if (config == null) {
+            return instances;
+        }
+        String lane = PipelineProfile.laneOf(profileName);
+        if (lane != null) {
+            return Lane.instances(config, lane);
+        }
+        return Math.max(1, config.getIntProperty(
+                PaeonConfig.PAEON_CFG_PROFILE_PREFIX + profileName + PaeonConfig.PAEON_CFG_PROFILE_INSTANCES, instances));
+    }
+
+    private String fingerprint(String profileName) {
+        String fingerprint = fingerprints.get(profileName);
+        if (fingerprint == null) {
+            // the profile is known, it is loaded
+            fingerprint = ResultCache.fingerprint(config, PipelineProfile.lookup(config, profileName));
+            fingerprints.put(profileName, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Loads the pipeline of a profile: its staged pipeline if phases are configured, else
+     * the pools of its parts if it is memoized, else its pool.
+     *
+     * @return false if the profile is unknown or failed to initialize
+     */
+    private boolean isAvailable(String profileName) {
+        return getStagedPipeline(profileName) != null || isMemoized(profileName) || getPool(profileName) != null;
+    }
+
+    /**
+     * Returns true if the profile runs with sentence memoization, loading the pools of its
+     * head, memo and tail parts on first use. A profile is memoized if the sentence cache or
+     * the revision store is enabled and the profile detects sentences before its sentence
+     * local stages.
+     */
+    private boolean isMemoized(String profileName) {
+        if (sentenceMemo == null) {
+            return false;
+        }
+        Boolean known = memoized.get(profileName);
+        if (known != null) {
+            return known;
+        }
+        boolean memo = false;
+        try {
+            PipelineProfile profile = PipelineProfile.lookup(config, profileName);
+            PipelineProfile head = profile == null ? null : profile.memoPart(PipelineProfile.HEAD);
+            PipelineProfile tail = profile == null ? null : profile.memoPart(PipelineProfile.TAIL);
+            memo = head != null && head.getStages().contains(PipelineStage.SENTENCE)
+                    && profile.memoPart(PipelineProfile.MEMO) != null
+                    && getPool(head.getName()) != null
+                    && getPool(PipelineProfile.partName(profileName, PipelineProfile.MEMO)) != null
+                    && (tail == null || getPool(tail.getName()) != null);
+        } catch (IllegalArgumentException e) {
+            LOG.error("Invalid Pipeline profile '{}': {}", profileName, e.getMessage());
+        }
+        memoized.put(profileName, memo);
+        return memo;
+    }
+
+    /**
+     * Returns the staged pipeline for a profile, creating it on first use.
+     *
+     * @return the staged pipeline, or null if no phases are configured or the profile
+     *         falls in a single phase
+     */
+    public StagedPipeline getStagedPipeline(String profileName) {
+        if (phaseStarts.isEmpty()) {
+            return null;
+        }
+        StagedPipeline stagedPipeline = stagedPipelines.get(profileName);
+        if (stagedPipeline != null || unstaged.contains(profileName)) {
+            return stagedPipeline;
+        }
+        // one lock per profile, so loading one does not hold up the loaded ones
+        synchronized (lock(stagedLocks, profileName)) {
+            stagedPipeline = stagedPipelines.get(profileName);
+            if (stagedPipeline != null || unstaged.contains(profileName)) {
+                return stagedPipeline;
+            }
+            try {
+                PipelineProfile profile = PipelineProfile.lookup(config, profileName);
+                if (profile == null) {
+                    return null;
+                }
+                List<PipelineProfile> phases = profile.split(phaseStarts);
+                if (phases.size() > 1) {
+                    stagedPipeline = createStagedPipeline(profile, phases);
+                }
+            } catch (IllegalArgumentException e) {
+                LOG.error("Invalid Pipeline profile '{}': {}", profileName, e.getMessage());
+            } catch (ResourceInitializationException e) {
+                // FIXME: don't ignore forever
+                LOG.error("Failed initilizing staged Pipeline ...", e);
+            }
+            if (stagedPipeline != null) {
+                stagedPipelines.put(profileName, stagedPipeline);
+            } else {
+                unstaged.add(profileName);
+            }
+            return stagedPipeline;
+        }
+    }
 
+    private StagedPipeline createStagedPipeline(PipelineProfile profile, List<PipelineProfile> phases)
+            throws ResourceInitializationException {
+        int queueSize = Math.max(1, config.getIntProperty(PaeonConfig.PAEON_CFG_PIPELINE_PHASE_QUEUE, 2));
+        List<Integer> sizes = new ArrayList<>();
+        int workers = 0;
+        for (PipelineProfile phase : phases) {
+            int size = Math.max(1, config.getIntProperty(PaeonConfig.PAEON_CFG_PIPELINE_PHASE_PREFIX
+                    + phase.getStages().get(0).getName() + PaeonConfig.PAEON_CFG_PROFILE_INSTANCES, instances));
+            sizes.add(size);
+            workers += size;
+        }
+        List<PipelinePool> phasePools = new ArrayList<>();
         try {
-            defaultPipeline = createAnalysisEngineBuilder().createAggregate();
+            for (int i = 0; i < phases.size(); i++) {
+                // documents in flight: one per worker and per queue slot, all on CASes of the first phase
+                int cases = i > 0 ? 1 : casCount > 0 ? casCount : workers + phases.size() * queueSize;
+                LOG.info("Initilizing Pipeline phase {} with {} instance(s) ...", phases.get(i), sizes.get(i));
+                phasePools.add(new PipelinePool(createAnalysisEngineBuilder(phases.get(i)).createAggregateDescription(),
+                        PipelineRegistry.getResourceManager(), sizes.get(i), cases, timeout, initExecutor));
+            }
         } catch (ResourceInitializationException e) {
-            // FIXME: don't ignore forever
-            LOG.error("Failed initilizing Pipeline ...", e);
-            defaultPipeline = null;
+            for (PipelinePool pool : phasePools) {
+                pool.destroy();
+            }
+            throw e;
+        }
+        StagedPipeline stagedPipeline = new StagedPipeline(profile.getName(), phases, phasePools, queueSize);
+        if (warmupIterations > 0 && WARMUP_NOTE != null) {
+            long start = System.currentTimeMillis();
+            // enough documents to go through each instance of the widest phase
+            for (int i = 0; i < warmupIterations * Collections.max(sizes); i++) {
+                JCas jcas = stagedPipeline.getCasPool().borrowCas();
+                if (jcas == null) {
+                    break;
+                }
+                try {
+                    jcas.setDocumentText(WARMUP_NOTE);
+                    stagedPipeline.process(jcas);
+                } finally {
+                    stagedPipeline.getCasPool().returnCas(jcas);
+                }
+            }
+            LOG.info("Warmed up Pipeline {} in '{}' secs", profile.getName(), getTimeElapsedInSeconds(start));
         }
+        return stagedPipeline;
     }
 
-    public AnalysisEngine getPipeline() {
-        return defaultPipeline;
+    private void warmUp(String profileName, PipelinePool pool) {
+        if (warmupIterations <= 0 || WARMUP_NOTE == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            pool.warmUp(WARMUP_NOTE, warmupIterations);
+            LOG.info("Warmed up Pipeline {} in '{}' secs", profileName, getTimeElapsedInSeconds(start));
+        } catch (AnalysisEngineProcessException e) {
+            LOG.warn("Failed to warm up Pipeline {}", profileName, e);
+        }
+    }
+
+    private static String loadWarmupNote() {
+        InputStream in = CtakesProcessor.class.getClassLoader().getResourceAsStream(WARMUP_RESOURCE);
+        if (in == null) {
+            LOG.warn("Warm-up note '{}' not found", WARMUP_RESOURCE);
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(in);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOG.warn("Failed to read warm-up note '{}'", WARMUP_RESOURCE, e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Returns the result cache, or null if caching is disabled.
+     */
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the sentence cache, or null if sentence memoization is disabled.
+     */
+    public SentenceCache getSentenceCache() {
+        return sentenceMemo == null ? null : sentenceMemo.getCache();
+    }
+
+    /**
+     * Returns the revision store, or null if incremental re-analysis is disabled.
+     */
+    public RevisionStore getRevisions() {
+        return sentenceMemo == null ? null : sentenceMemo.getRevisions();
+    }
+
+    public void destroy() {
+        if (chunkExecutor != null) {
+            chunkExecutor.shutdownNow();
+        }
+        if (initExecutor != null) {
+            initExecutor.shutdownNow();
+        }
+        for (PipelinePool pool : pools.values()) {
+            pool.destroy();
+        }
+        pools.clear();
+        for (StagedPipeline stagedPipeline : stagedPipelines.values()) {
+            stagedPipeline.destroy();
+        }
+        stagedPipelines.clear();
+        unstaged.clear();
+        failedProfiles.clear();
     }
 
     private String getTimeElapsedInSeconds(long start) {
@@ -169,28 +610,420 @@ public class CtakesProcessor implements NLPProcessor {
     }
 
     public String process(String text) {
+        return process(new NLPRequest(text));
+    }
+
+    public String process(NLPRequest request) {
+        if (request.getFormat().isBinary()) {
+            throw new IllegalArgumentException("Binary output needs an OutputStream");
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            if (!process(request, output)) {
+                return null;
+            }
+        } catch (IOException e) {
+            LOG.error("Could not write results", e);
+            return null;
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public boolean process(NLPRequest request, OutputStream out) throws IOException {
+        String profile = request.getProfile() == null ? defaultProfile : request.getProfile();
+        boolean available = isAvailable(PipelineProfile.laneName(request.getLane(), profile));
+        if (!available && !profile.equals(defaultProfile)) {
+            LOG.warn("Unknown Pipeline profile '{}'; using '{}'", profile, defaultProfile);
+            profile = defaultProfile;
+            available = isAvailable(PipelineProfile.laneName(request.getLane(), profile));
+        }
+        if (!available) {
+            LOG.error("Pipeline not initialized; cannot process text");
+            request.setError("pipeline not initialized");
+            return false;
+        }
+        // the pipelines of the lane, if any
+        String pipeline = PipelineProfile.laneName(request.getLane(), profile);
+        String cacheKey = null;
+        ByteArrayOutputStream copy = null;
+        if (cache != null) {
+            cacheKey = ResultCache.key(request, fingerprint(profile),
+                    request.getProjection() != null ? request.getProjection() : defaultProjection.getSpec());
+            // a revision is analyzed to be kept for the next one, even if its result is cached
+            boolean revision = request.getDocumentId() != null && isMemoized(pipeline);
+            if (!revision && cache.get(cacheKey, out)) {
+                LOG.debug("Result found in cache");
+                return true;
+            }
+            copy = new ByteArrayOutputStream();
+            out = new TeeOutputStream(out, copy);
+        }
         // remember when the processing started to be able to log it further
         long start = System.currentTimeMillis();
-        JCas jcas = createCommonAnalysisSystem();
+        Deadline deadline = new Deadline(request.getDeadline() > 0 ? request.getDeadline() : defaultDeadline);
+        // a revision re-analyzed incrementally is not chunked, most of it is replayed
+        boolean chunked = splitter != null && request.getText().length() > chunkThreshold
+                && (request.getPreviousId() == null || !isMemoized(pipeline));
+        Analysis analysis = chunked ? analyzeChunked(request.getText(), pipeline, deadline)
+                : analyze(request.getText(), pipeline, deadline, request.getDocumentId(), request.getPreviousId());
+        if (analysis == null) {
+            request.setError("no pipeline available in time");
+            return false;
+        }
+
+        try {
+            if (!analysis.processed) {
+                // a stage failed or timed out, e.g. a phase or a chunk: the CAS is half annotated
+                request.setError("analysis failed or timed out");
+                return false;
+            }
+            request.setSkipped(deadline.getSkipped());
+            request.setBypassed(deadline.getBypassed());
+            if (deadline.isPartial()) {
+                LOG.warn("Partial analysis: skipped {}, long sentences bypassed by {}", request.getSkipped(), request.getBypassed());
+                PaeonMetrics.histogram(PaeonMetrics.PARTIAL).record((System.currentTimeMillis() - start) * 1000);
+            }
+            long serializeStart = System.nanoTime();
+            writeResults(analysis.jcas, request, out);
+            PaeonMetrics.histogram(PaeonMetrics.SERIALIZE).recordSince(serializeStart);
+            // a partial result is not what the same request gets within its budget
+            if (copy != null && !deadline.isPartial()) {
+                cache.put(cacheKey, copy.toByteArray());
+            }
+            LOG.info("Processed in '{}' secs", getTimeElapsedInSeconds(start) );
+            return true;
+        } finally {
+            Deadline.detach(analysis.jcas);
+            analysis.pool.returnCas(analysis.jcas);
+        }
+    }
+
+    /**
+     * Runs the whole text through the pipeline of the profile, staged or memoized if so configured.
+     *
+     * @param documentId the id to keep the sentence annotations under, or null
+     * @param previousId the id of the previous revision to re-analyze incrementally from, or null
+     */
+    private Analysis analyze(String text, String profile, Deadline deadline, String documentId, String previousId) {
+        StagedPipeline stagedPipeline = getStagedPipeline(profile);
+        if (stagedPipeline != null) {
+            return analyzeStaged(text, stagedPipeline, deadline);
+        }
+        return isMemoized(profile) ? analyzeMemoized(text, profile, deadline, documentId, previousId)
+                : analyze(text, getPool(profile), deadline);
+    }
+
+    /**
+     * Runs the text through the head, memo and tail parts of the profile, the memo part
+     * from the previous revision or the sentence cache where possible, see SentenceMemo.
+     *
+     * @return the analysis, or null if no CAS or pipeline was available in time
+     */
+    private Analysis analyzeMemoized(String text, String profile, Deadline deadline, String documentId, String previousId) {
+        PipelinePool headPool = getPool(PipelineProfile.partName(profile, PipelineProfile.HEAD));
+        String memoProfile = PipelineProfile.partName(profile, PipelineProfile.MEMO);
+        PipelinePool memoPool = getPool(memoProfile);
+        PipelinePool tailPool = getPool(PipelineProfile.partName(profile, PipelineProfile.TAIL));
+        PipelinePool casPool = tailPool != null ? tailPool : headPool;
+
+        long waitStart = System.nanoTime();
+        JCas jcas = casPool.borrowCas();
+        if (jcas == null) {
+            LOG.warn("No CAS available after {} ms", casPool.getTimeout());
+            return null;
+        }
         jcas.setDocumentText(text);
+        deadline.attach(jcas);
+        PaeonMetrics.histogram(PaeonMetrics.PIPELINE_WAIT).recordSince(waitStart);
+        long processStart = System.nanoTime();
+        boolean available = true;
+        boolean processed = false;
+        try {
+            // the lanes share the cached sentences and revisions
+            available = run(headPool, jcas) && sentenceMemo.process(jcas, memoPool,
+                    PipelineProfile.baseName(memoProfile), documentId, previousId)
+                    && (tailPool == null || run(tailPool, jcas));
+            processed = available;
+        } catch (AnalysisEngineProcessException e) {
+            LOG.error("jCAS: Failed to process text", e);
+        } catch (IllegalStateException e) {
+            LOG.error("jCAS: Failed to replay sentence annotations", e);
+        } finally {
+            PaeonMetrics.histogram(PaeonMetrics.PIPELINE_PROCESS).recordSince(processStart);
+        }
+        if (!available) {
+            Deadline.detach(jcas);
+            casPool.returnCas(jcas);
+            return null;
+        }
+        return new Analysis(casPool, jcas, processed);
+    }
 
+    /**
+     * Runs the pipeline of a pool on the CAS.
+     *
+     * @return false if no pipeline was available in time
+     */
+    static boolean run(PipelinePool pool, JCas jcas) throws AnalysisEngineProcessException {
+        AnalysisEngine engine = pool.borrowEngine();
+        if (engine == null) {
+            LOG.warn("No pipeline available after {} ms", pool.getTimeout());
+            return false;
+        }
         try {
-            getPipeline().process(jcas);
+            PaeonMetrics.recordStages(engine.process(jcas));
+            return true;
+        } finally {
+            pool.returnEngine(engine);
+        }
+    }
+
+    private Analysis analyzeStaged(String text, StagedPipeline stagedPipeline, Deadline deadline) {
+        PipelinePool casPool = stagedPipeline.getCasPool();
+        long waitStart = System.nanoTime();
+        JCas jcas = casPool.borrowCas();
+        if (jcas == null) {
+            LOG.warn("No CAS available after {} ms", casPool.getTimeout());
+            return null;
+        }
+        jcas.setDocumentText(text);
+        deadline.attach(jcas);
+        PaeonMetrics.histogram(PaeonMetrics.PIPELINE_WAIT).recordSince(waitStart);
+        long processStart = System.nanoTime();
+        boolean processed = stagedPipeline.process(jcas);
+        PaeonMetrics.histogram(PaeonMetrics.PIPELINE_PROCESS).recordSince(processStart);
+        return new Analysis(casPool, jcas, processed);
+    }
+
+    /**
+     * Runs the whole text through the pipeline in one CAS.
+     *
+     * @return the analysis, or null if no CAS or pipeline was available in time
+     */
+    private Analysis analyze(String text, PipelinePool pool, Deadline deadline) {
+        long waitStart = System.nanoTime();
+        JCas jcas = pool.borrowCas();
+        if (jcas == null) {
+            LOG.warn("No CAS available after {} ms", pool.getTimeout());
+            return null;
+        }
+        jcas.setDocumentText(text);
+        deadline.attach(jcas);
+        AnalysisEngine engine = pool.borrowEngine();
+        if (engine == null) {
+            LOG.warn("No pipeline available after {} ms", pool.getTimeout());
+            Deadline.detach(jcas);
+            pool.returnCas(jcas);
+            return null;
+        }
+        PaeonMetrics.histogram(PaeonMetrics.PIPELINE_WAIT).recordSince(waitStart);
+        long processStart = System.nanoTime();
+        boolean processed = false;
+        try {
+            PaeonMetrics.recordStages(engine.process(jcas));
+            processed = true;
         } catch (AnalysisEngineProcessException e) {
             LOG.error("jCAS: Failed to process text", e);
+        } finally {
+            pool.returnEngine(engine);
+            PaeonMetrics.histogram(PaeonMetrics.PIPELINE_PROCESS).recordSince(processStart);
         }
+        return new Analysis(pool, jcas, processed);
+    }
 
-        String result = formatResults(jcas, OUTPUT_TYPE_XML);
-        jcas.reset();
+    /**
+     * Splits a long text at section boundaries and runs the section scoped stages of the
+     * profile on each chunk in parallel, each on its own pipeline instance. The chunk
+     * annotations are merged into one CAS with the whole text, then the document scoped
+     * stages (cross-section relations) run on the merged CAS.
+     */
+    private Analysis analyzeChunked(String text, String profile, Deadline deadline) {
+        int[] bounds = splitter.split(text, chunkSize);
+        PipelinePool sectionPool = getPool(PipelineProfile.scopedName(profile, PipelineStage.Scope.SECTION));
+        if (bounds.length <= 2 || sectionPool == null) {
+            return analyze(text, profile, deadline, null, null);
+        }
+        PipelinePool documentPool = getPool(PipelineProfile.scopedName(profile, PipelineStage.Scope.DOCUMENT));
+        PipelinePool mergePool = documentPool != null ? documentPool : sectionPool;
 
-        LOG.info("Processed in '{}' secs", getTimeElapsedInSeconds(start) );
-        return result;
+        long waitStart = System.nanoTime();
+        final JCas merged = mergePool.borrowCas();
+        if (merged == null) {
+            LOG.warn("No CAS available after {} ms", mergePool.getTimeout());
+            return null;
+        }
+        merged.setDocumentText(text);
+        deadline.attach(merged);
+        PaeonMetrics.histogram(PaeonMetrics.PIPELINE_WAIT).recordSince(waitStart);
+        LOG.debug("Processing {} chars in {} chunks", text.length(), bounds.length - 1);
+
+        long processStart = System.nanoTime();
+        List<Future<Boolean>> chunks = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            chunks.add(chunkExecutor.submit(new ChunkTask(sectionPool, merged, deadline, text, bounds[i], bounds[i + 1])));
+        }
+        // the chunks write into the merged CAS, so wait for all of them even if interrupted
+        boolean processed = true;
+        boolean interrupted = false;
+        for (Future<Boolean> chunk : chunks) {
+            while (true) {
+                try {
+                    processed &= chunk.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    LOG.error("jCAS: Failed to process chunk", e.getCause());
+                    processed = false;
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (documentPool != null && processed) {
+            AnalysisEngine engine = documentPool.borrowEngine();
+            if (engine == null) {
+                LOG.warn("No pipeline available after {} ms", documentPool.getTimeout());
+                processed = false;
+            } else {
+                try {
+                    PaeonMetrics.recordStages(engine.process(merged));
+                } catch (AnalysisEngineProcessException e) {
+                    LOG.error("jCAS: Failed to process merged chunks", e);
+                    processed = false;
+                } finally {
+                    documentPool.returnEngine(engine);
+                }
+            }
+        }
+        PaeonMetrics.histogram(PaeonMetrics.PIPELINE_PROCESS).recordSince(processStart);
+        return new Analysis(mergePool, merged, processed);
     }
 
-    private String toPrettyFormat(JCas jcas) {
-        StringBuffer sb = new StringBuffer();
+    /**
+     * Copies the indexed feature structures of a chunk into the merged CAS, shifting the
+     * annotations by the offset of the chunk. The document annotation is not copied.
+     * <p>
+     * Annotations only reachable through features of indexed structures are copied, but
+     * not shifted; the cTAKES annotators index all the annotations they create.
+     */
+    static void copyChunk(CAS source, CAS target, int offset) {
+        CasCopier copier = new CasCopier(source, target);
+        TypeSystem types = target.getTypeSystem();
+        Type annotation = target.getAnnotationType();
+        Type document = types.getType(CAS.TYPE_NAME_DOCUMENT_ANNOTATION);
+        Feature begin = target.getBeginFeature();
+        Feature end = target.getEndFeature();
+        // the copier returns the same copy for structures referenced more than once
+        Set<FeatureStructure> copied = Collections.newSetFromMap(new IdentityHashMap<FeatureStructure, Boolean>());
+        for (FeatureStructure fs : CasUtil.selectAll(source)) {
+            if (types.subsumes(document, fs.getType())) {
+                continue;
+            }
+            FeatureStructure copy = copier.copyFs(fs);
+            if (!copied.add(copy)) {
+                continue;
+            }
+            if (types.subsumes(annotation, copy.getType())) {
+                // shift before indexing, the annotation index is sorted by offsets
+                copy.setIntValue(begin, copy.getIntValue(begin) + offset);
+                copy.setIntValue(end, copy.getIntValue(end) + offset);
+            }
+            target.addFsToIndexes(copy);
+        }
+    }
+
+    /**
+     * A processed CAS and the pool to return it to.
+     */
+    private static final class Analysis {
+        private final PipelinePool pool;
+        private final JCas jcas;
+        private final boolean processed;
+
+        Analysis(PipelinePool pool, JCas jcas, boolean processed) {
+            this.pool = pool;
+            this.jcas = jcas;
+            this.processed = processed;
+        }
+    }
+
+    /**
+     * Processes one chunk of a long document and merges it into the shared CAS.
+     */
+    private static final class ChunkTask implements Callable<Boolean> {
+        private final PipelinePool pool;
+        private final JCas merged;
+        private final Deadline deadline;
+        private final String text;
+        private final int begin;
+        private final int end;
+
+        ChunkTask(PipelinePool pool, JCas merged, Deadline deadline, String text, int begin, int end) {
+            this.pool = pool;
+            this.merged = merged;
+            this.deadline = deadline;
+            this.text = text;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        public Boolean call() {
+            JCas jcas = pool.borrowCas();
+            if (jcas == null) {
+                LOG.warn("No CAS available after {} ms", pool.getTimeout());
+                return false;
+            }
+            try {
+                jcas.setDocumentText(text.substring(begin, end));
+                deadline.attach(jcas);
+                AnalysisEngine engine = pool.borrowEngine();
+                if (engine == null) {
+                    LOG.warn("No pipeline available after {} ms", pool.getTimeout());
+                    return false;
+                }
+                long chunkStart = System.nanoTime();
+                try {
+                    PaeonMetrics.recordStages(engine.process(jcas));
+                } catch (AnalysisEngineProcessException e) {
+                    LOG.error("jCAS: Failed to process chunk [{}, {})", begin, end, e);
+                    return false;
+                } finally {
+                    pool.returnEngine(engine);
+                    PaeonMetrics.histogram(PaeonMetrics.CHUNK).recordSince(chunkStart);
+                }
+                // a CAS is not thread safe
+                synchronized (merged) {
+                    copyChunk(jcas.getCas(), merged.getCas(), begin);
+                }
+                return true;
+            } finally {
+                Deadline.detach(jcas);
+                pool.returnCas(jcas);
+            }
+        }
+    }
+
+    public static String toPrettyFormat(JCas jcas) {
         StringWriter sw = new StringWriter();
-        BufferedWriter writer = new BufferedWriter(sw);
+        writePretty(jcas, sw);
+        return sw.toString();
+    }
+
+    public static String toXmlFormat(JCas jcas) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeXml(jcas, output);
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the PrettyTextWriter rendering of each sentence; the writer is flushed, not closed.
+     */
+    public static void writePretty(JCas jcas, Writer out) {
+        BufferedWriter writer = new BufferedWriter(out);
         Collection<Sentence> sentences = JCasUtil.select(jcas,
                 Sentence.class);
         for (Sentence sentence : sentences) {
@@ -204,47 +1037,63 @@ public class CtakesProcessor implements NLPProcessor {
         }
 
         try {
-            writer.close();
+            writer.flush();
         } catch (IOException e) {
             // FIXME:
-            LOG.error("Could not close string Writer", e);
+            LOG.error("Could not flush PRETTY Writer", e);
         }
-        sb.append(sw.toString());
-        return sb.toString();
     }
 
-    private String toXmlFormat(JCas jcas) {
-        StringBuffer sb = new StringBuffer();
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-
+    /**
+     * Writes the CAS as UTF-8 encoded XMI straight into the stream.
+     */
+    public static void writeXml(JCas jcas, OutputStream out) {
         try {
-            XmiCasSerializer.serialize(jcas.getCas(), output);
+            XmiCasSerializer.serialize(jcas.getCas(), out);
         } catch (SAXException e) {
             // FIXME:
             LOG.error("Could not serialize to XML", e);
         }
-        sb.append(output.toString());
-        try {
-            output.close();
-        } catch (IOException e) {
-            // FIXME:
-            LOG.error("Could not close XML Writer", e);
-        }
-
-        return sb.toString();
     }
 
-    private String formatResults(JCas jcas, String format) {
-
-        Collection<TOP> annotations = JCasUtil.selectAll(jcas);
-        if (OUTPUT_TYPE_PRETTY.equalsIgnoreCase(format)) {
-            return toPrettyFormat(jcas);
+    private void writeResults(JCas jcas, NLPRequest request, OutputStream out) throws IOException {
+        switch (request.getFormat()) {
+            case BINARY:
+                BinaryCasFormat.encode(jcas.getCas(), out);
+                break;
+            case JSON:
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                JsonCasWriter.write(jcas, getProjection(request.getProjection()), writer);
+                break;
+            case PRETTY:
+                writePretty(jcas, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                break;
+            default:
+                writeXml(jcas, out);
         }
+    }
 
-        // if (OUTPUT_TYPE_XML.equalsIgnoreCase(format)) {
-        // default
-        return toXmlFormat(jcas);
-        // }
+    /**
+     * Returns the parsed projection for the spec, or the default one if the spec is null or invalid.
+     */
+    public Projection getProjection(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return defaultProjection;
+        }
+        Projection projection = projections.get(spec);
+        if (projection == null) {
+            try {
+                projection = new Projection(spec);
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Invalid projection '{}': {}; using '{}'", spec, e.getMessage(), defaultProjection);
+                return defaultProjection;
+            }
+            // specs come from clients, keep the cache bounded
+            if (projections.size() < MAX_CACHED_PROJECTIONS) {
+                projections.putIfAbsent(spec, projection);
+            }
+        }
+        return projection;
     }
 
     public static class AddEvent extends org.apache.uima.fit.component.JCasAnnotator_ImplBase {
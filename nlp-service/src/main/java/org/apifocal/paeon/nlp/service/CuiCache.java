@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock free cache keyed by primitive CUI codes.
+ * <p>
+ * Two way set associative: a CUI may live in one of two adjacent slots of a power of
+ * two sized table; a new entry takes an empty slot of its pair, else evicts the entry
+ * in the second slot, so the first slot holds the most recently added CUI of the pair.
+ * Entries are immutable, so concurrent readers and writers never see a torn entry;
+ * a race only costs a redundant load.
+ */
+public class CuiCache<V> {
+
+    private static final class Entry<V> {
+        final long cui;
+        final V value;
+
+        Entry(long cui, V value) {
+            this.cui = cui;
+            this.value = value;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry<V>> slots;
+    private final int mask;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity max number of entries, rounded up to a power of two
+     */
+    public CuiCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the cached value, or null.
+     */
+    public V get(long cui) {
+        int i = index(cui);
+        Entry<V> e = slots.get(i);
+        if (e == null || e.cui != cui) {
+            e = slots.get(i ^ 1);
+        }
+        if (e != null && e.cui == cui) {
+            hits.incrementAndGet();
+            return e.value;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(long cui, V value) {
+        int i = index(cui);
+        Entry<V> entry = new Entry<>(cui, value);
+        Entry<V> first = slots.get(i);
+        if (first == null || first.cui == cui) {
+            slots.set(i, entry);
+        } else {
+            // demote the first slot, dropping whatever was in the second one
+            slots.set(i ^ 1, first);
+            slots.set(i, entry);
+        }
+    }
+
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    public int size() {
+        int n = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double)h / total;
+    }
+
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private int index(long cui) {
+        // spread the bits, CUI codes are dense small numbers
+        long h = cui * 0x9e3779b97f4a7c15L;
+        return (int)(h >>> 32) & mask & ~1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d entries, hit rate %.1f%% (%d hits, %d misses)",
+            size(), getCapacity(), getHitRate() * 100, getHits(), getMisses());
+    }
+
+}
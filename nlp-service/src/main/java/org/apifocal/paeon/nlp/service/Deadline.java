@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.jcas.JCas;
+
+/**
+ * The time budget of a document, checked between the annotators by the DeadlineFlowController.
+ * <p>
+ * Once the budget is spent, the optional stages are skipped for the rest of the document.
+ * A running annotator cannot be interrupted, so the optional stages also bypass the sentences
+ * over a length limit, whatever the budget; run-on sentences are what keep the parsers busy
+ * for minutes. The stages skipped or bypassing sentences are reported, so the reply can be
+ * flagged as partial.
+ * <p>
+ * A deadline is attached to the CAS of the document, and to the CASes of its chunks, so it
+ * is found by the flow controller whatever thread runs the pipeline.
+ */
+public class Deadline {
+
+    // guarded by itself
+    private static final Map<CAS, Deadline> ATTACHED = new IdentityHashMap<>();
+
+    // System.nanoTime() of the expiry, 0 for never
+    private final long expiry;
+    private final Set<String> skipped = Collections.synchronizedSet(new LinkedHashSet<String>());
+    private final Set<String> bypassed = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    /**
+     * @param budget millis from now, or 0 for no budget
+     */
+    public Deadline(long budget) {
+        this.expiry = budget > 0 ? Math.max(1, System.nanoTime() + budget * 1000000) : 0;
+    }
+
+    public boolean isExpired() {
+        return expiry != 0 && System.nanoTime() - expiry >= 0;
+    }
+
+    /**
+     * Attaches the deadline to a CAS, replacing the deadline of the previous document on it.
+     */
+    public void attach(JCas jcas) {
+        synchronized (ATTACHED) {
+            ATTACHED.put(base(jcas), this);
+        }
+    }
+
+    public static void detach(JCas jcas) {
+        synchronized (ATTACHED) {
+            ATTACHED.remove(base(jcas));
+        }
+    }
+
+    /**
+     * Returns the deadline attached to the CAS, or null.
+     */
+    public static Deadline of(JCas jcas) {
+        synchronized (ATTACHED) {
+            return ATTACHED.get(base(jcas));
+        }
+    }
+
+    private static CAS base(JCas jcas) {
+        // the same for all the views of the CAS
+        return jcas.getCasImpl().getBaseCAS();
+    }
+
+    void skip(String stage) {
+        skipped.add(stage);
+    }
+
+    void bypass(String stage) {
+        bypassed.add(stage);
+    }
+
+    /**
+     * Returns the stages skipped because the budget was spent.
+     */
+    public List<String> getSkipped() {
+        synchronized (skipped) {
+            return new ArrayList<>(skipped);
+        }
+    }
+
+    /**
+     * Returns the stages that bypassed sentences over the length limit.
+     */
+    public List<String> getBypassed() {
+        synchronized (bypassed) {
+            return new ArrayList<>(bypassed);
+        }
+    }
+
+    public boolean isPartial() {
+        return !skipped.isEmpty() || !bypassed.isEmpty();
+    }
+
+}
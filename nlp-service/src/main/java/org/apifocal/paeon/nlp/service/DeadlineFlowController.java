@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.analysis_engine.metadata.FixedFlow;
+import org.apache.uima.analysis_engine.metadata.FlowConstraints;
+import org.apache.uima.fit.component.JCasFlowController_ImplBase;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.factory.FlowControllerFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.flow.FinalStep;
+import org.apache.uima.flow.Flow;
+import org.apache.uima.flow.FlowControllerContext;
+import org.apache.uima.flow.FlowControllerDescription;
+import org.apache.uima.flow.JCasFlow_ImplBase;
+import org.apache.uima.flow.SimpleStep;
+import org.apache.uima.flow.Step;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+
+/**
+ * Runs the stages of an aggregate in order, like a fixed flow, within the Deadline
+ * attached to the CAS.
+ * <p>
+ * Before each optional stage, the flow skips the stage if the deadline has expired;
+ * otherwise it hides the sentences over the length limit from the stage, by removing
+ * them from the indexes while it runs.
+ */
+public class DeadlineFlowController extends JCasFlowController_ImplBase {
+
+    public static final String PARAM_OPTIONAL_STAGES = "optionalStages";
+    public static final String PARAM_MAX_SENTENCE = "maxSentence";
+
+    @ConfigurationParameter(name = PARAM_OPTIONAL_STAGES, mandatory = false,
+            description = "names of the stages that can be skipped")
+    private String[] optionalStages;
+
+    @ConfigurationParameter(name = PARAM_MAX_SENTENCE, mandatory = false, defaultValue = "0",
+            description = "max chars of a sentence processed by the optional stages, 0 for no limit")
+    private int maxSentence;
+
+    private String[] sequence;
+    private Set<String> optional;
+
+    /**
+     * Creates the description for the flow controller of an aggregate.
+     */
+    public static FlowControllerDescription createDescription(Collection<String> optionalStages, int maxSentence)
+            throws ResourceInitializationException {
+        return FlowControllerFactory.createFlowControllerDescription(DeadlineFlowController.class,
+                PARAM_OPTIONAL_STAGES, optionalStages.toArray(new String[optionalStages.size()]),
+                PARAM_MAX_SENTENCE, maxSentence);
+    }
+
+    @Override
+    public void initialize(FlowControllerContext context) throws ResourceInitializationException {
+        super.initialize(context);
+        FlowConstraints constraints = context.getAggregateMetadata().getFlowConstraints();
+        if (constraints instanceof FixedFlow) {
+            sequence = ((FixedFlow)constraints).getFixedFlow();
+        } else {
+            // FIXME: AggregateBuilder always sets a fixed flow
+            sequence = context.getAnalysisEngineMetaDataMap().keySet().toArray(new String[0]);
+        }
+        optional = optionalStages == null ? Collections.<String>emptySet() : new HashSet<>(Arrays.asList(optionalStages));
+    }
+
+    @Override
+    public Flow computeFlow(JCas jcas) throws AnalysisEngineProcessException {
+        return new DeadlineFlow(Deadline.of(jcas));
+    }
+
+    private class DeadlineFlow extends JCasFlow_ImplBase {
+        private final Deadline deadline;
+        private int next;
+        // the sentences hidden from the running stage
+        private final List<Sentence> hidden = new ArrayList<>();
+
+        DeadlineFlow(Deadline deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public Step next() {
+            restore();
+            while (next < sequence.length) {
+                String stage = sequence[next++];
+                if (!optional.contains(stage)) {
+                    return new SimpleStep(stage);
+                }
+                if (deadline != null && deadline.isExpired()) {
+                    deadline.skip(stage);
+                    continue;
+                }
+                if (maxSentence > 0) {
+                    hide(stage);
+                }
+                return new SimpleStep(stage);
+            }
+            return new FinalStep();
+        }
+
+        @Override
+        public void aborted() {
+            restore();
+        }
+
+        private void hide(String stage) {
+            JCas jcas = getJCas();
+            for (Sentence sentence : JCasUtil.select(jcas, Sentence.class)) {
+                if (sentence.getEnd() - sentence.getBegin() > maxSentence) {
+                    hidden.add(sentence);
+                }
+            }
+            for (Sentence sentence : hidden) {
+                sentence.removeFromIndexes();
+            }
+            if (!hidden.isEmpty() && deadline != null) {
+                deadline.bypass(stage);
+            }
+        }
+
+        private void restore() {
+            for (Sentence sentence : hidden) {
+                sentence.addToIndexes();
+            }
+            hidden.clear();
+        }
+    }
+
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read only, memory mapped dictionary index, as written by DictionaryIndexCompiler.
+ * <p>
+ * Rare words are found by binary search over their 64 bit hashes, concepts by binary
+ * search over their CUI codes; all reads are absolute, so one instance is safely shared
+ * by all threads. Indexes are opened through {@link #open(Path, Properties)}, which maps
+ * each file once per JVM, so all pipeline instances share the same pages.
+ */
+public final class DictionaryIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(DictionaryIndex.class);
+
+    static final int MAGIC = 0x50444958; // "PDIX"
+    static final int VERSION = 1;
+
+    private static final int WORD_SIZE = 24;
+    private static final int TERM_SIZE = 20;
+    private static final int CONCEPT_SIZE = 32;
+    private static final int CODE_SIZE = 12;
+
+    private static final Map<Path, DictionaryIndex> OPEN = new HashMap<>();
+
+    private final Path path;
+    private final ByteBuffer buffer;
+    private final String[] schemes;
+    private final int words;
+    private final int concepts;
+    private final int wordBase;
+    private final int termBase;
+    private final int conceptBase;
+    private final int tuiBase;
+    private final int codeBase;
+    private final int poolBase;
+
+    private DictionaryIndex(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Dictionary index '" + path + "' is larger than 2GB");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.buffer = mapped;
+        }
+        int headerSize;
+        try (DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer.duplicate()))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("'" + path + "' is not a dictionary index, or not of version " + VERSION);
+            }
+            schemes = new String[in.readInt()];
+            for (int i = 0; i < schemes.length; i++) {
+                schemes[i] = in.readUTF();
+            }
+            words = in.readInt();
+            int terms = in.readInt();
+            concepts = in.readInt();
+            int tuis = in.readInt();
+            int codes = in.readInt();
+            in.readInt(); // pool size
+            headerSize = buffer.capacity() - in.available();
+            wordBase = headerSize;
+            termBase = wordBase + words * WORD_SIZE;
+            conceptBase = termBase + terms * TERM_SIZE;
+            tuiBase = conceptBase + concepts * CONCEPT_SIZE;
+            codeBase = tuiBase + tuis * 4;
+            poolBase = codeBase + codes * CODE_SIZE;
+        }
+    }
+
+    /**
+     * Returns the shared index for the file, compiling it first from the database described
+     * in {@code properties} (see DictionaryIndexCompiler) if the file does not exist yet.
+     */
+    public static synchronized DictionaryIndex open(Path path, Properties properties) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        DictionaryIndex index = OPEN.get(key);
+        if (index == null) {
+            if (!Files.exists(key)) {
+                LOG.info("Compiling dictionary index '{}' ...", key);
+                DictionaryIndexCompiler.compile(properties == null ? new Properties() : properties, key);
+            }
+            index = new DictionaryIndex(key);
+            LOG.info("Mapped dictionary index '{}': {} rare words, {} concepts", key, index.words, index.concepts);
+            OPEN.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Resolves an index file name: as is if the file exists, then as a classpath resource,
+     * else relative to the working directory, where it will be compiled.
+     */
+    public static Path locate(String name) {
+        Path path = Paths.get(name);
+        if (Files.exists(path)) {
+            return path;
+        }
+        URL url = DictionaryIndex.class.getClassLoader().getResource(name);
+        if (url != null && "file".equals(url.getProtocol())) {
+            try {
+                return Paths.get(url.toURI());
+            } catch (URISyntaxException e) {
+                LOG.warn("Cannot use dictionary index at '{}': {}", url, e.getLocalizedMessage());
+            }
+        }
+        return path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getWordCount() {
+        return words;
+    }
+
+    public int getConceptCount() {
+        return concepts;
+    }
+
+    /**
+     * Returns the index of the rare word, or -1 if it is not in the dictionary.
+     */
+    public int findWord(String word) {
+        long hash = hash(word);
+        int lo = 0;
+        int hi = words - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long h = buffer.getLong(wordBase + mid * WORD_SIZE);
+            if (h < hash) {
+                lo = mid + 1;
+            } else if (h > hash) {
+                hi = mid - 1;
+            } else {
+                // hash collisions are adjacent
+                for (int i = mid; i >= 0 && buffer.getLong(wordBase + i * WORD_SIZE) == hash; i--) {
+                    if (word.equals(string(wordBase + i * WORD_SIZE + 16))) {
+                        return i;
+                    }
+                }
+                for (int i = mid + 1; i < words && buffer.getLong(wordBase + i * WORD_SIZE) == hash; i++) {
+                    if (word.equals(string(wordBase + i * WORD_SIZE + 16))) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    public int getFirstTerm(int word) {
+        return buffer.getInt(wordBase + word * WORD_SIZE + 8);
+    }
+
+    public int getTermCount(int word) {
+        return buffer.getInt(wordBase + word * WORD_SIZE + 12);
+    }
+
+    public long getTermCui(int term) {
+        return buffer.getLong(termBase + term * TERM_SIZE);
+    }
+
+    public String getTermText(int term) {
+        return string(termBase + term * TERM_SIZE + 8);
+    }
+
+    public int getTermRareWordIndex(int term) {
+        return buffer.getShort(termBase + term * TERM_SIZE + 16);
+    }
+
+    public int getTermTokenCount(int term) {
+        return buffer.getShort(termBase + term * TERM_SIZE + 18);
+    }
+
+    /**
+     * Returns the index of the concept, or -1 if the CUI is not in the dictionary.
+     */
+    public int findConcept(long cui) {
+        int lo = 0;
+        int hi = concepts - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long c = buffer.getLong(conceptBase + mid * CONCEPT_SIZE);
+            if (c < cui) {
+                lo = mid + 1;
+            } else if (c > cui) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public long getConceptCui(int concept) {
+        return buffer.getLong(conceptBase + concept * CONCEPT_SIZE);
+    }
+
+    /**
+     * Returns the preferred term of the concept, or null if it has none.
+     */
+    public String getPreferredTerm(int concept) {
+        return string(conceptBase + concept * CONCEPT_SIZE + 8);
+    }
+
+    public int[] getTuis(int concept) {
+        int at = conceptBase + concept * CONCEPT_SIZE;
+        int first = buffer.getInt(at + 16);
+        int[] tuis = new int[buffer.getInt(at + 20)];
+        for (int i = 0; i < tuis.length; i++) {
+            tuis[i] = buffer.getInt(tuiBase + (first + i) * 4);
+        }
+        return tuis;
+    }
+
+    public int getFirstCode(int concept) {
+        return buffer.getInt(conceptBase + concept * CONCEPT_SIZE + 24);
+    }
+
+    public int getCodeCount(int concept) {
+        return buffer.getInt(conceptBase + concept * CONCEPT_SIZE + 28);
+    }
+
+    /**
+     * Returns the code table the code comes from, e.g. "rxnorm".
+     */
+    public String getCodeScheme(int code) {
+        return schemes[buffer.getInt(codeBase + code * CODE_SIZE)];
+    }
+
+    public String getCode(int code) {
+        return string(codeBase + code * CODE_SIZE + 4);
+    }
+
+    private String string(int ref) {
+        int offset = buffer.getInt(ref);
+        int length = buffer.getInt(ref + 4);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(poolBase + offset);
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the chars of the word.
+     */
+    static long hash(String word) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < word.length(); i++) {
+            h ^= word.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.ctakes.dictionary.lookup2.util.JdbcConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles a cTAKES fast lookup database (the {@code cui_terms}, {@code tui} and
+ * {@code prefTerm} tables, plus optional code tables like {@code rxnorm}) into the
+ * immutable index file read by DictionaryIndex.
+ * <p>
+ * Usage: {@code DictionaryIndexCompiler <jdbcUrl> <indexFile> [codeTable ...]}, e.g.
+ * {@code jdbc:hsqldb:file:org/apache/ctakes/dictionary/lookup/fast/sno_rx_16ab/sno_rx_16ab sno_rx_16ab.pdix rxnorm snomedct_us}
+ * <p>
+ * File layout, big endian; all strings are (offset, length) into the UTF-8 pool at the end:
+ * <pre>
+ * header    int magic, int version, int schemes, schemes x UTF name,
+ *           int words, int terms, int concepts, int tuis, int codes, int pool size
+ * words     long hash, int first term, int term count, string word   (sorted by hash)
+ * terms     long cui, string text, short rare word index, short token count
+ * concepts  long cui, string preferred term, int first tui, int tui count, int first code, int code count   (sorted by cui)
+ * tuis      int tui
+ * codes     int scheme, string code
+ * pool      bytes
+ * </pre>
+ */
+public final class DictionaryIndexCompiler {
+    private static final Logger LOG = LoggerFactory.getLogger(DictionaryIndexCompiler.class);
+
+    public static final String JDBC_DRIVER = "jdbcDriver";
+    public static final String JDBC_URL = "jdbcUrl";
+    public static final String JDBC_USER = "jdbcUser";
+    public static final String JDBC_PASS = "jdbcPass";
+    /** comma separated code tables, e.g. "rxnorm,snomedct_us" */
+    public static final String CODE_TABLES = "codeTables";
+
+    private static class Term {
+        final long cui;
+        final String text;
+        final int index;
+        final int tokens;
+
+        Term(long cui, String text, int index, int tokens) {
+            this.cui = cui;
+            this.text = text;
+            this.index = index;
+            this.tokens = tokens;
+        }
+    }
+
+    private static class Concept {
+        String preferred;
+        final List<Integer> tuis = new ArrayList<>();
+        final List<Integer> schemes = new ArrayList<>();
+        final List<String> codes = new ArrayList<>();
+    }
+
+    private static class StringPool {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Map<String, int[]> strings = new HashMap<>();
+
+        int[] add(String s) {
+            if (s == null) {
+                return new int[] {0, -1};
+            }
+            int[] ref = strings.get(s);
+            if (ref == null) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                ref = new int[] {bytes.size(), b.length};
+                bytes.write(b, 0, b.length);
+                strings.put(s, ref);
+            }
+            return ref;
+        }
+    }
+
+    private DictionaryIndexCompiler() {
+    }
+
+    /**
+     * Compiles the database described by the jdbc* and codeTables properties of a lookup descriptor.
+     */
+    public static void compile(Properties properties, Path index) throws IOException {
+        String driver = properties.getProperty(JDBC_DRIVER, "org.hsqldb.jdbcDriver");
+        String url = properties.getProperty(JDBC_URL);
+        if (url == null) {
+            throw new IOException("No dictionary index at '" + index + "' and no '" + JDBC_URL + "' to compile it from");
+        }
+        List<String> codeTables = new ArrayList<>();
+        for (String table : properties.getProperty(CODE_TABLES, "").split(",")) {
+            if (!table.trim().isEmpty()) {
+                codeTables.add(table.trim());
+            }
+        }
+        try {
+            Connection connection = JdbcConnectionFactory.getInstance().getConnection(driver, url,
+                properties.getProperty(JDBC_USER, "sa"), properties.getProperty(JDBC_PASS, ""));
+            compile(connection, codeTables, index);
+        } catch (SQLException e) {
+            throw new IOException("Failed to read dictionary from '" + url + "'", e);
+        }
+    }
+
+    public static void compile(Connection connection, List<String> codeTables, Path index) throws SQLException, IOException {
+        long start = System.currentTimeMillis();
+        Map<String, List<Term>> words = new HashMap<>();
+        TreeMap<Long, Concept> concepts = new TreeMap<>();
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet rs = statement.executeQuery("SELECT CUI, RINDEX, TCOUNT, TEXT, RWORD FROM CUI_TERMS")) {
+                while (rs.next()) {
+                    long cui = rs.getLong(1);
+                    String word = rs.getString(5);
+                    List<Term> terms = words.get(word);
+                    if (terms == null) {
+                        terms = new ArrayList<>(2);
+                        words.put(word, terms);
+                    }
+                    terms.add(new Term(cui, rs.getString(4), rs.getInt(2), rs.getInt(3)));
+                    concept(concepts, cui);
+                }
+            }
+            try (ResultSet rs = statement.executeQuery("SELECT * FROM TUI")) {
+                while (rs.next()) {
+                    concept(concepts, rs.getLong(1)).tuis.add(rs.getInt(2));
+                }
+            }
+            try (ResultSet rs = statement.executeQuery("SELECT * FROM PREFTERM")) {
+                while (rs.next()) {
+                    concept(concepts, rs.getLong(1)).preferred = rs.getString(2);
+                }
+            }
+            for (int scheme = 0; scheme < codeTables.size(); scheme++) {
+                try (ResultSet rs = statement.executeQuery("SELECT * FROM " + codeTables.get(scheme).toUpperCase())) {
+                    while (rs.next()) {
+                        Concept concept = concept(concepts, rs.getLong(1));
+                        concept.schemes.add(scheme);
+                        concept.codes.add(rs.getString(2));
+                    }
+                }
+            }
+        }
+        write(words, concepts, codeTables, index);
+        LOG.info("Compiled {} rare words and {} concepts into '{}' in {} ms", words.size(), concepts.size(), index,
+            System.currentTimeMillis() - start);
+    }
+
+    private static Concept concept(Map<Long, Concept> concepts, long cui) {
+        Concept concept = concepts.get(cui);
+        if (concept == null) {
+            concept = new Concept();
+            concepts.put(cui, concept);
+        }
+        return concept;
+    }
+
+    private static void write(Map<String, List<Term>> words, TreeMap<Long, Concept> concepts,
+            List<String> codeTables, Path index) throws IOException {
+        List<String> sorted = new ArrayList<>(words.keySet());
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int c = Long.compare(DictionaryIndex.hash(a), DictionaryIndex.hash(b));
+                return c != 0 ? c : a.compareTo(b);
+            }
+        });
+        int termCount = 0;
+        for (List<Term> terms : words.values()) {
+            termCount += terms.size();
+        }
+        int tuiCount = 0;
+        int codeCount = 0;
+        for (Concept concept : concepts.values()) {
+            tuiCount += concept.tuis.size();
+            codeCount += concept.codes.size();
+        }
+
+        StringPool pool = new StringPool();
+        Path parent = index.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, index.getFileName().toString(), ".tmp");
+        try {
+            // pool strings are only known after writing the tables, so write those to memory first
+            ByteArrayOutputStream tables = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(tables);
+            int first = 0;
+            for (String word : sorted) {
+                int[] ref = pool.add(word);
+                out.writeLong(DictionaryIndex.hash(word));
+                out.writeInt(first);
+                out.writeInt(words.get(word).size());
+                out.writeInt(ref[0]);
+                out.writeInt(ref[1]);
+                first += words.get(word).size();
+            }
+            for (String word : sorted) {
+                for (Term term : words.get(word)) {
+                    int[] ref = pool.add(term.text);
+                    out.writeLong(term.cui);
+                    out.writeInt(ref[0]);
+                    out.writeInt(ref[1]);
+                    out.writeShort(term.index);
+                    out.writeShort(term.tokens);
+                }
+            }
+            int tui = 0;
+            int code = 0;
+            for (Map.Entry<Long, Concept> e : concepts.entrySet()) {
+                Concept concept = e.getValue();
+                int[] ref = pool.add(concept.preferred);
+                out.writeLong(e.getKey());
+                out.writeInt(ref[0]);
+                out.writeInt(ref[1]);
+                out.writeInt(tui);
+                out.writeInt(concept.tuis.size());
+                out.writeInt(code);
+                out.writeInt(concept.codes.size());
+                tui += concept.tuis.size();
+                code += concept.codes.size();
+            }
+            for (Concept concept : concepts.values()) {
+                for (int t : concept.tuis) {
+                    out.writeInt(t);
+                }
+            }
+            for (Concept concept : concepts.values()) {
+                for (int i = 0; i < concept.codes.size(); i++) {
+                    int[] ref = pool.add(concept.codes.get(i));
+                    out.writeInt(concept.schemes.get(i));
+                    out.writeInt(ref[0]);
+                    out.writeInt(ref[1]);
+                }
+            }
+            out.flush();
+
+            try (DataOutputStream file = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                file.writeInt(DictionaryIndex.MAGIC);
+                file.writeInt(DictionaryIndex.VERSION);
+                file.writeInt(codeTables.size());
+                for (String table : codeTables) {
+                    file.writeUTF(table);
+                }
+                file.writeInt(sorted.size());
+                file.writeInt(termCount);
+                file.writeInt(concepts.size());
+                file.writeInt(tuiCount);
+                file.writeInt(codeCount);
+                file.writeInt(pool.bytes.size());
+                tables.writeTo(file);
+                pool.bytes.writeTo(file);
+            }
+            Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: DictionaryIndexCompiler <jdbcUrl> <indexFile> [codeTable ...]");
+            System.exit(1);
+        }
+        Properties properties = new Properties();
+        properties.setProperty(JDBC_URL, args[0]);
+        StringBuilder tables = new StringBuilder();
+        for (int i = 2; i < args.length; i++) {
+            tables.append(args[i]).append(',');
+        }
+        properties.setProperty(CODE_TABLES, tables.toString());
+        compile(properties, Paths.get(args[1]));
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+/**
+ * JMX view of a latency Histogram; all values in microseconds.
+ */
+public interface HistogramMBean {
+
+    public long getCount();
+
+    public double getMean();
+
+    public long getP50();
+
+    public long getP99();
+
+    public long getMax();
+
+    public double getRate();
+
+    public void reset();
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.ArrayFS;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.CommonArrayFS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.tcas.Annotation;
+
+/**
+ * Streams the annotations selected by a Projection as compact JSON:
+ * <pre>
+ * {"annotations":[{"type":"DiseaseDisorderMention","begin":10,"end":18,"polarity":1,"ontologyConceptArr.cui":["C0011849"]},...]}
+ * </pre>
+ * Annotations are written in index order, one pass over the annotation index, without
+ * building the document in memory. A path that crosses an array is always written as a
+ * JSON array; other paths as a single value. Paths with no value are left out.
+ */
+public class JsonCasWriter {
+
+    private JsonCasWriter() {
+    }
+
+    public static void write(JCas jcas, Projection projection, Writer out) throws IOException {
+        TypeSystem typeSystem = jcas.getTypeSystem();
+        Map<Type, List<String[]>> projected = projection.resolve(typeSystem);
+        // concrete type -> paths to write, or null if not projected
+        Map<Type, List<String[]>> matches = new HashMap<>();
+        List<Object> values = new ArrayList<>();
+
+        out.write("{\"annotations\":[");
+        boolean first = true;
+        FSIterator<Annotation> it = jcas.getAnnotationIndex().iterator();
+        while (it.hasNext()) {
+            Annotation annotation = it.next();
+            Type type = annotation.getType();
+            List<String[]> paths;
+            if (matches.containsKey(type)) {
+                paths = matches.get(type);
+            } else {
+                paths = match(typeSystem, projected, type);
+                matches.put(type, paths);
+            }
+            if (paths == null) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write("{\"type\":");
+            writeString(type.getShortName(), out);
+            out.write(",\"begin\":");
+            out.write(Integer.toString(annotation.getBegin()));
+            out.write(",\"end\":");
+            out.write(Integer.toString(annotation.getEnd()));
+            for (String[] path : paths) {
+                values.clear();
+                boolean multi = collect(annotation, path, 0, values);
+                if (values.isEmpty() && !multi) {
+                    continue;
+                }
+                out.write(',');
+                writeString(join(path), out);
+                out.write(':');
+                if (multi || values.size() != 1) {
+                    out.write('[');
+                    for (int i = 0; i < values.size(); i++) {
+                        if (i > 0) {
+                            out.write(',');
+                        }
+                        writeValue(values.get(i), out);
+                    }
+                    out.write(']');
+                } else {
+                    writeValue(values.get(0), out);
+                }
+            }
+            out.write('}');
+        }
+        out.write("]}");
+        out.flush();
+    }
+
+    private static List<String[]> match(TypeSystem typeSystem, Map<Type, List<String[]>> projected, Type type) {
+        Map<String, String[]> paths = null;
+        for (Map.Entry<Type, List<String[]>> e : projected.entrySet()) {
+            if (typeSystem.subsumes(e.getKey(), type)) {
+                if (paths == null) {
+                    paths = new LinkedHashMap<>();
+                }
+                for (String[] path : e.getValue()) {
+                    paths.put(join(path), path);
+                }
+            }
+        }
+        return paths == null ? null : Collections.unmodifiableList(new ArrayList<>(paths.values()));
+    }
+
+    /**
+     * Collects the values at the end of the path; returns true if the path crossed an array.
+     */
+    private static boolean collect(FeatureStructure fs, String[] path, int step, List<Object> values) {
+        String name = path[step];
+        boolean last = step == path.length - 1;
+        if (last && Projection.COVERED_TEXT.equals(name) && fs instanceof AnnotationFS) {
+            values.add(((AnnotationFS)fs).getCoveredText());
+            return false;
+        }
+        Feature feature = fs.getType().getFeatureByBaseName(name);
+        if (feature == null) {
+            return false;
+        }
+        Type range = feature.getRange();
+        if (range.isPrimitive()) {
+            if (last) {
+                Object value = primitive(fs, feature, range);
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+            return false;
+        }
+        FeatureStructure value = fs.getFeatureValue(feature);
+        if (value == null) {
+            return range.isArray();
+        }
+        if (value instanceof ArrayFS) {
+            if (!last) {
+                ArrayFS array = (ArrayFS)value;
+                for (int i = 0; i < array.size(); i++) {
+                    FeatureStructure element = array.get(i);
+                    if (element != null) {
+                        collect(element, path, step + 1, values);
+                    }
+                }
+            }
+            return true;
+        }
+        if (value instanceof CommonArrayFS) {
+            if (last) {
+                Collections.addAll(values, (Object[])((CommonArrayFS)value).toStringArray());
+            }
+            return true;
+        }
+        if (last) {
+            // a reference at the end of the path: just name what it points to
+            values.add(value.getType().getShortName());
+            return false;
+        }
+        return collect(value, path, step + 1, values);
+    }
+
+    private static Object primitive(FeatureStructure fs, Feature feature, Type range) {
+        String name = range.getName();
+        if (CAS.TYPE_NAME_INTEGER.equals(name)) {
+            return fs.getIntValue(feature);
+        } else if (CAS.TYPE_NAME_BOOLEAN.equals(name)) {
+            return fs.getBooleanValue(feature);
+        } else if (CAS.TYPE_NAME_FLOAT.equals(name)) {
+            return fs.getFloatValue(feature);
+        } else if (CAS.TYPE_NAME_DOUBLE.equals(name)) {
+            return fs.getDoubleValue(feature);
+        } else if (CAS.TYPE_NAME_LONG.equals(name)) {
+            return fs.getLongValue(feature);
+        } else if (CAS.TYPE_NAME_SHORT.equals(name)) {
+            return fs.getShortValue(feature);
+        } else if (CAS.TYPE_NAME_BYTE.equals(name)) {
+            return fs.getByteValue(feature);
+        }
+        // strings and string subtypes
+        return fs.getStringValue(feature);
+    }
+
+    private static void writeValue(Object value, Writer out) throws IOException {
+        if (value == null) {
+            out.write("null");
+        } else if (value instanceof String) {
+            writeString((String)value, out);
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number)value).doubleValue();
+            out.write(Double.isNaN(d) || Double.isInfinite(d) ? "null" : value.toString());
+        } else {
+            out.write(value.toString());
+        }
+    }
+
+    static void writeString(String s, Writer out) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int)c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    private static String join(String[] path) {
+        return path.length == 1 ? path[0] : String.join(".", path);
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A scheduling lane: its own consumers on the request queue, for a class of documents.
+ * <p>
+ * Lanes are listed in {@code paeon.lanes}, e.g. {@code interactive,bulk}, and each is
+ * configured with {@code paeon.lane.<name>.*}:
+ * <ul>
+ *   <li>{@code consumers}: concurrent documents in the lane (default 1)</li>
+ *   <li>{@code priority}: min JMS priority of the messages taken by the lane</li>
+ *   <li>{@code maxsize}: max document chars; larger documents are moved to the next lane that takes them</li>
+ *   <li>{@code profile}: pipeline profile for the requests that do not name one</li>
+ *   <li>{@code instances}: pipeline instances of the lane (default: its consumers)</li>
+ * </ul>
+ * Each lane runs its documents on pipeline pools of its own, so documents of a lane never
+ * wait for an instance busy with a document of another lane.
+ * A message naming a lane in its {@code PaeonLane} property goes to that lane. Otherwise
+ * it goes to the first lane (in configuration order) whose priority it meets, a lane
+ * without a priority (or the last lane) taking all the rest. Lanes are selected by the
+ * broker (with JMS selectors), so a full lane never holds up the others.
+ */
+public class Lane {
+
+    public static final String PAEON_LANE = "PaeonLane";
+
+    private static final String PREFIX = "paeon.lane.";
+
+    private final String name;
+    private final int consumers;
+    private final int priority;
+    private final long maxSize;
+    private final String profile;
+
+    /**
+     * @param priority min JMS priority, or -1 to take any
+     * @param maxSize max document chars, or 0 for no limit
+     * @param profile default profile for the lane, or null
+     */
+    public Lane(String name, int consumers, int priority, long maxSize, String profile) {
+        if (!name.matches("[\\w.-]+")) {
+            throw new IllegalArgumentException("Invalid lane name '" + name + "'");
+        }
+        this.name = name;
+        this.consumers = Math.max(1, consumers);
+        this.priority = priority;
+        this.maxSize = Math.max(0, maxSize);
+        this.profile = profile;
+    }
+
+    /**
+     * Returns the pipeline instances of the lane of the given name.
+     */
+    public static int instances(PaeonConfig config, String name) {
+        return Math.max(1, config.getIntProperty(PREFIX + name + ".instances",
+                config.getIntProperty(PREFIX + name + ".consumers", 1)));
+    }
+
+    /**
+     * Returns the lanes listed in {@code paeon.lanes}, or an empty list if none.
+     */
+    public static List<Lane> fromConfig(PaeonConfig config) {
+        String names = config.getProperty(PaeonConfig.PAEON_CFG_LANES);
+        if (names == null || names.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Lane> lanes = new ArrayList<>();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                lanes.add(new Lane(name,
+                        config.getIntProperty(PREFIX + name + ".consumers", 1),
+                        config.getIntProperty(PREFIX + name + ".priority", -1),
+                        config.getLongProperty(PREFIX + name + ".maxsize", 0),
+                        config.getProperty(PREFIX + name + ".profile")));
+            }
+        }
+        return lanes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getConsumers() {
+        return consumers;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public boolean accepts(long size) {
+        return maxSize == 0 || size <= maxSize;
+    }
+
+    /**
+     * Returns the JMS selector for the messages this lane takes among the given lanes.
+     */
+    public String selector(List<Lane> lanes) {
+        StringBuilder unclaimed = new StringBuilder(PAEON_LANE + " IS NULL");
+        boolean claimed = false;
+        for (Lane lane : lanes) {
+            if (lane == this) {
+                break;
+            }
+            if (lane.priority < 0) {
+                // an earlier lane takes all the unassigned messages
+                claimed = true;
+                break;
+            }
+            unclaimed.append(" AND JMSPriority < ").append(lane.priority);
+        }
+        boolean last = this == lanes.get(lanes.size() - 1);
+        if (priority >= 0 && !last) {
+            unclaimed.append(" AND JMSPriority >= ").append(priority);
+        }
+        String selector = PAEON_LANE + " = '" + name + "'";
+        if (!claimed) {
+            selector += " OR (" + unclaimed + ")";
+        }
+        if (last) {
+            // the last lane also takes the messages naming an unknown lane
+            StringBuilder known = new StringBuilder();
+            for (Lane lane : lanes) {
+                known.append(known.length() == 0 ? "'" : ", '").append(lane.name).append("'");
+            }
+            selector += " OR " + PAEON_LANE + " NOT IN (" + known + ")";
+        }
+        return selector;
+    }
+
+    /**
+     * Returns the lane after this one that takes a document of the given size, or null.
+     */
+    public Lane next(List<Lane> lanes, long size) {
+        for (int i = lanes.indexOf(this) + 1; i < lanes.size(); i++) {
+            if (lanes.get(i).accepts(size)) {
+                return lanes.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.lang.management.ManagementFactory;
+
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the load of this service instance on a topic, for the other nodes of a
+ * network of brokers, clients and operators.
+ * <p>
+ * Each report is a non persistent MapMessage, expiring after a few intervals, with:
+ * {@code node}, {@code consumers} (requests processed at once), {@code active} (requests
+ * in process), {@code idle} and {@code rate} (requests per second since the last report).
+ * The node is also in the {@code PaeonNode} property, for selectors.
+ */
+public class LoadReporter implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadReporter.class);
+
+    public static final String PAEON_NODE = "PaeonNode";
+    public static final String DEFAULT_TOPIC = "paeon.nlp.load";
+
+    private final Session session;
+    private final MessageProducer producer;
+    private final String node;
+    private final int consumers;
+    private long lastCount;
+    private long lastTime = System.nanoTime();
+
+    /**
+     * @param session a session only used by this reporter
+     * @param interval reporting interval in millis, reports expire after 3 intervals
+     */
+    public LoadReporter(Session session, String topic, String node, int consumers, long interval) throws JMSException {
+        this.session = session;
+        this.producer = session.createProducer(session.createTopic(topic));
+        this.producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        this.producer.setTimeToLive(3 * interval);
+        this.node = node;
+        this.consumers = consumers;
+        this.lastCount = PaeonMetrics.histogram(PaeonMetrics.DOCUMENT).getCount();
+    }
+
+    /**
+     * Returns the default node name, {@code pid@host}.
+     */
+    public static String defaultNode() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    @Override
+    public void run() {
+        try {
+            long now = System.nanoTime();
+            long count = PaeonMetrics.histogram(PaeonMetrics.DOCUMENT).getCount();
+            double secs = (now - lastTime) / 1e9;
+            int active = PaeonMetrics.getActive();
+            MapMessage report = session.createMapMessage();
+            report.setString("node", node);
+            report.setInt("consumers", consumers);
+            report.setInt("active", active);
+            report.setInt("idle", Math.max(0, consumers - active));
+            report.setDouble("rate", secs <= 0 ? 0 : (count - lastCount) / secs);
+            report.setStringProperty(PAEON_NODE, node);
+            producer.send(report);
+            lastCount = count;
+            lastTime = now;
+        } catch (JMSException e) {
+            // FIXME: retry policy?
+            LOG.warn("Failed to report load: {}", e.getLocalizedMessage());
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.ctakes.core.util.collection.CollectionMap;
+import org.apache.ctakes.core.util.collection.HashSetMap;
+import org.apache.ctakes.dictionary.lookup2.concept.Concept;
+import org.apache.ctakes.dictionary.lookup2.concept.ConceptFactory;
+import org.apache.ctakes.dictionary.lookup2.util.CuiCodeUtil;
+import org.apache.uima.UimaContext;
+
+/**
+ * ConceptFactory backed by a memory mapped DictionaryIndex, in place of the
+ * JdbcConceptFactory and its queries per concept.
+ * <p>
+ * Takes the same {@code indexFile} (and optional jdbc*) properties as the
+ * MappedRareWordDictionary it is paired with, and shares its index. Optional code
+ * tables are compiled in when listed in the {@code codeTables} property, e.g.
+ * {@code rxnorm,snomedct_us}.
+ */
+public class MappedConceptFactory implements ConceptFactory {
+
+    /** code name of the semantic types, as JdbcConceptFactory names them */
+    public static final String TUI = "TUI";
+
+    private final String name;
+    private final DictionaryIndex index;
+
+    public MappedConceptFactory(String name, UimaContext uimaContext, Properties properties) throws IOException {
+        this(name, MappedRareWordDictionary.open(properties));
+    }
+
+    public MappedConceptFactory(String name, DictionaryIndex index) {
+        this.name = name;
+        this.index = index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Concept createConcept(Long cuiCode) {
+        CollectionMap<String, String, ? extends Collection<String>> codes = new HashSetMap<>();
+        String preferred = null;
+        int concept = index.findConcept(cuiCode);
+        if (concept >= 0) {
+            preferred = index.getPreferredTerm(concept);
+            for (int tui : index.getTuis(concept)) {
+                codes.placeValue(TUI, String.format("T%03d", tui));
+            }
+            int first = index.getFirstCode(concept);
+            for (int code = first; code < first + index.getCodeCount(concept); code++) {
+                codes.placeValue(index.getCodeScheme(code).toUpperCase(), index.getCode(code));
+            }
+        }
+        return new Concept(CuiCodeUtil.getInstance().getAsCui(cuiCode), preferred, codes);
+    }
+
+    public Map<Long, Concept> createConcepts(Collection<Long> cuiCodes) {
+        Map<Long, Concept> concepts = new HashMap<>(cuiCodes.size() * 2);
+        for (Long cuiCode : cuiCodes) {
+            concepts.put(cuiCode, createConcept(cuiCode));
+        }
+        return concepts;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.ctakes.dictionary.lookup2.dictionary.RareWordDictionary;
+import org.apache.ctakes.dictionary.lookup2.term.RareWordTerm;
+import org.apache.ctakes.dictionary.lookup2.util.FastLookupToken;
+import org.apache.uima.UimaContext;
+
+/**
+ * RareWordDictionary backed by a memory mapped DictionaryIndex, in place of the
+ * JdbcRareWordDictionary and its query per lookup window token.
+ * <p>
+ * Selected in the lookup descriptor with the {@code indexFile} property; the jdbc*
+ * properties of the original database may be kept to compile the index on first use:
+ * <pre>
+ * &lt;dictionary&gt;
+ *    &lt;name&gt;sno_rx_16abTerms&lt;/name&gt;
+ *    &lt;implementationName&gt;org.apifocal.paeon.nlp.service.MappedRareWordDictionary&lt;/implementationName&gt;
+ *    &lt;properties&gt;
+ *       &lt;property key="indexFile" value="paeon-dictionary/sno_rx_16ab.pdix"/&gt;
+ *       &lt;property key="jdbcUrl" value="jdbc:hsqldb:file:org/apache/ctakes/dictionary/lookup/fast/sno_rx_16ab/sno_rx_16ab"/&gt;
+ *    &lt;/properties&gt;
+ * &lt;/dictionary&gt;
+ * </pre>
+ */
+public class MappedRareWordDictionary implements RareWordDictionary {
+
+    public static final String INDEX_FILE = "indexFile";
+
+    private final String name;
+    private final DictionaryIndex index;
+
+    public MappedRareWordDictionary(String name, UimaContext uimaContext, Properties properties) throws IOException {
+        this(name, open(properties));
+    }
+
+    public MappedRareWordDictionary(String name, DictionaryIndex index) {
+        this.name = name;
+        this.index = index;
+    }
+
+    static DictionaryIndex open(Properties properties) throws IOException {
+        String file = properties.getProperty(INDEX_FILE);
+        if (file == null) {
+            throw new IOException("Mapped dictionary needs an '" + INDEX_FILE + "' property");
+        }
+        return DictionaryIndex.open(DictionaryIndex.locate(file), properties);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Collection<RareWordTerm> getRareWordHits(FastLookupToken token) {
+        if (token.getVariant() == null) {
+            return getRareWordHits(token.getText());
+        }
+        List<RareWordTerm> hits = new ArrayList<>(getRareWordHits(token.getText()));
+        hits.addAll(getRareWordHits(token.getVariant()));
+        return hits;
+    }
+
+    public Collection<RareWordTerm> getRareWordHits(String rareWordText) {
+        int word = index.findWord(rareWordText);
+        if (word < 0) {
+            return Collections.emptyList();
+        }
+        int first = index.getFirstTerm(word);
+        int count = index.getTermCount(word);
+        List<RareWordTerm> hits = new ArrayList<>(count);
+        for (int term = first; term < first + count; term++) {
+            hits.add(new RareWordTerm(index.getTermText(term), index.getTermCui(term), rareWordText,
+                index.getTermRareWordIndex(term), index.getTermTokenCount(term)));
+        }
+        return hits;
+    }
+
+}
@@ -1,12 +1,26 @@
 package org.apifocal.paeon.nlp.service;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 import org.apache.uima.analysis_engine.AnalysisEngine;
-import org.apache.uima.fit.factory.AggregateBuilder;
 
 public interface NLPProcessor {
 
     public String process(String text);
 
+    /**
+     * Processes a document into one of the text formats; binary formats need an OutputStream.
+     */
+    public String process(NLPRequest request);
+
+    /**
+     * Processes a document and writes the result, in the requested format, to the stream.
+     *
+     * @return false if the document could not be processed and nothing was written
+     */
+    public boolean process(NLPRequest request, OutputStream out) throws IOException;
+
     public AnalysisEngine getPipeline();
 
 }
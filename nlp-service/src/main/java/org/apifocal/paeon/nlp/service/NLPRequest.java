@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A document to analyze, along with the options that control how, and, once processed,
+ * the stages the analysis skipped to meet its deadline, or why it failed.
+ */
+public class NLPRequest {
+
+    private final String text;
+    private String profile;
+    private OutputFormat format = OutputFormat.XML;
+    private String projection;
+    private String lane;
+    private String documentId;
+    private String previousId;
+    private long deadline;
+    private List<String> skipped = Collections.emptyList();
+    private List<String> bypassed = Collections.emptyList();
+    private String error;
+
+    public NLPRequest(String text) {
+        this.text = text;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the name of the pipeline profile to use, or null for the default one.
+     */
+    public String getProfile() {
+        return profile;
+    }
+
+    public void setProfile(String profile) {
+        this.profile = profile;
+    }
+
+    public OutputFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(OutputFormat format) {
+        this.format = format == null ? OutputFormat.XML : format;
+    }
+
+    /**
+     * Returns the Projection spec for the JSON format, or null for the configured default.
+     */
+    public String getProjection() {
+        return projection;
+    }
+
+    public void setProjection(String projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Returns the lane the document is processed in, whose pipelines it runs on, or null.
+     */
+    public String getLane() {
+        return lane;
+    }
+
+    public void setLane(String lane) {
+        this.lane = lane;
+    }
+
+    /**
+     * Returns the id the annotations of this revision of the document are kept under, or null.
+     */
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    public void setDocumentId(String documentId) {
+        this.documentId = documentId;
+    }
+
+    /**
+     * Returns the id of the previous revision to re-analyze incrementally from, by default
+     * the id of the document, or null.
+     */
+    public String getPreviousId() {
+        return previousId != null ? previousId : documentId;
+    }
+
+    public void setPreviousId(String previousId) {
+        this.previousId = previousId;
+    }
+
+    /**
+     * Returns the time budget of the analysis in millis, or 0 for the configured one, see Deadline.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the stages skipped because the time budget was spent.
+     */
+    public List<String> getSkipped() {
+        return skipped;
+    }
+
+    void setSkipped(List<String> skipped) {
+        this.skipped = skipped;
+    }
+
+    /**
+     * Returns the stages that bypassed the sentences over the length limit.
+     */
+    public List<String> getBypassed() {
+        return bypassed;
+    }
+
+    void setBypassed(List<String> bypassed) {
+        this.bypassed = bypassed;
+    }
+
+    /**
+     * Returns why the document was not processed, or null.
+     */
+    public String getError() {
+        return error;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    /**
+     * Returns true if the analysis skipped stages or sentences.
+     */
+    public boolean isPartial() {
+        return !skipped.isEmpty() || !bypassed.isEmpty();
+    }
+
+}
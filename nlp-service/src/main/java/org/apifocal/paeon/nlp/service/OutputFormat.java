@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+/**
+ * Formats the analysis results can be returned in.
+ */
+public enum OutputFormat {
+    /** the whole CAS as XMI (default) */
+    XML("xml", (byte)1, false),
+    /** the PrettyTextWriter rendering, sentence by sentence */
+    PRETTY("pretty", (byte)2, false),
+    /** the whole CAS in UIMA compressed binary form, see BinaryCasFormat */
+    BINARY("binary", (byte)3, true),
+    /** selected annotation types and features only, as compact JSON, see Projection */
+    JSON("json", (byte)4, false);
+
+    private final String name;
+    private final byte code;
+    private final boolean binary;
+
+    private OutputFormat(String name, byte code, boolean binary) {
+        this.name = name;
+        this.code = code;
+        this.binary = binary;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * Returns true if the result is not text and must be sent as bytes.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Returns the format with the given name, or XML if the name is null or unknown.
+     */
+    public static OutputFormat fromName(String name) {
+        if (name != null) {
+            for (OutputFormat format : values()) {
+                if (format.name.equalsIgnoreCase(name.trim())) {
+                    return format;
+                }
+            }
+        }
+        return XML;
+    }
+
+    public static OutputFormat fromCode(byte code) {
+        for (OutputFormat format : values()) {
+            if (format.code == code) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+}
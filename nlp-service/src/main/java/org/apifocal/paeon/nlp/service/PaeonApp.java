@@ -15,13 +15,38 @@
  */
 package org.apifocal.paeon.nlp.service;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
- * JMS consumer sample.
+ * Paeon NLP service entry point.
+ * <p>
+ * Usage: PaeonApp [config-file]; without arguments the configuration is looked up
+ * in the default locations (see PaeonConfig). The service runs until the JVM is
+ * asked to terminate, then drains the documents in flight before exiting.
  */
 public class PaeonApp {
+    private static final Logger LOG = LoggerFactory.getLogger(PaeonApp.class);
+
+    public static void main(String[] args) throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        if (args.length > 0) {
+            config.setConfigPath(args[0]);
+        }
+        if (config.getConfigPath() == null) {
+            LOG.error("No Paeon configuration found; exiting");
+            System.exit(1);
+        }
 
-    public static void main(String[] args) {
-    	System.out.println("Hello World");
+        final PaeonService service = new PaeonService(config);
+        Runtime.getRuntime().addShutdownHook(new Thread("paeon-shutdown") {
+            @Override
+            public void run() {
+                service.stop();
+            }
+        });
+        service.start();
+        service.awaitTermination();
     }
 
 }
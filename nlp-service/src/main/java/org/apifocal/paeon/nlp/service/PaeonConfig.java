@@ -21,6 +21,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Properties;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,9 +38,60 @@ public class PaeonConfig {
 	public static final String PAEON_CONFIG_ENV = "PAEON_CONFIG";
 
 	public static final String PAEON_CFG_BROKER = "paeon.broker";
+	public static final String PAEON_CFG_BROKER_OPTIONS = "paeon.broker.options";
 	public static final String PAEON_CFG_USER = "paeon.user";
 	public static final String PAEON_CFG_PASSWORD = "paeon.password";
 	public static final String PAEON_CFG_LISTENON = "paeon.listenon";
+	public static final String PAEON_CFG_CONSUMERS = "paeon.consumers";
+	public static final String PAEON_CFG_PREFETCH = "paeon.prefetch";
+	public static final String PAEON_CFG_LANES = "paeon.lanes";
+	public static final String PAEON_CFG_BATCH_SIZE = "paeon.batch.size";
+	public static final String PAEON_CFG_BATCH_TIMEOUT = "paeon.batch.timeout";
+	public static final String PAEON_CFG_QUEUE_DEPTH = "paeon.queue.depth";
+	public static final String PAEON_CFG_QUEUE_MEMORY = "paeon.queue.memory";
+	public static final String PAEON_CFG_QUEUE_HEAP = "paeon.queue.heap";
+	public static final String PAEON_CFG_NODE = "paeon.node";
+	public static final String PAEON_CFG_LOAD_TOPIC = "paeon.load.topic";
+	public static final String PAEON_CFG_LOAD_INTERVAL = "paeon.load.interval";
+	public static final String PAEON_CFG_METRICS_INTERVAL = "paeon.metrics.interval";
+	public static final String PAEON_CFG_METRICS_JMX = "paeon.metrics.jmx";
+	public static final String PAEON_CFG_PIPELINE_INSTANCES = "paeon.pipeline.instances";
+	public static final String PAEON_CFG_PIPELINE_CASES = "paeon.pipeline.cases";
+	public static final String PAEON_CFG_PIPELINE_TIMEOUT = "paeon.pipeline.timeout";
+	public static final String PAEON_CFG_PIPELINE_INIT_THREADS = "paeon.pipeline.init.threads";
+	public static final String PAEON_CFG_WARMUP_ITERATIONS = "paeon.warmup.iterations";
+	public static final String PAEON_CFG_READY_FILE = "paeon.ready.file";
+	public static final String PAEON_CFG_PIPELINE_PHASES = "paeon.pipeline.phases";
+	public static final String PAEON_CFG_PIPELINE_PHASE_PREFIX = "paeon.pipeline.phase.";
+	public static final String PAEON_CFG_PIPELINE_PHASE_QUEUE = "paeon.pipeline.phase.queue";
+	public static final String PAEON_CFG_PROFILE_DEFAULT = "paeon.profile";
+	public static final String PAEON_CFG_PROFILE_PREFIX = "paeon.profile.";
+	public static final String PAEON_CFG_PROFILE_INSTANCES = ".instances";
+	public static final String PAEON_CFG_PROFILES_PRELOAD = "paeon.profiles";
+	public static final String PAEON_CFG_DICTIONARY = "paeon.dictionary";
+	public static final String PAEON_CFG_PROJECTION = "paeon.projection";
+	public static final String PAEON_CFG_CACHE_HEAP_SIZE = "paeon.cache.heap.size";
+	public static final String PAEON_CFG_CACHE_DISK_SIZE = "paeon.cache.disk.size";
+	public static final String PAEON_CFG_CACHE_DIR = "paeon.cache.dir";
+	public static final String PAEON_CFG_CACHE_TTL = "paeon.cache.ttl";
+	public static final String PAEON_CFG_STORE_DIR = "paeon.store.dir";
+	public static final String PAEON_CFG_STORE_THRESHOLD = "paeon.store.threshold";
+	public static final String PAEON_CFG_STORE_SEGMENT_SIZE = "paeon.store.segment.size";
+	public static final String PAEON_CFG_STORE_SIZE = "paeon.store.size";
+	public static final String PAEON_CFG_STORE_TTL = "paeon.store.ttl";
+	public static final String PAEON_CFG_STORE_PORT = "paeon.store.port";
+	public static final String PAEON_CFG_STORE_HOST = "paeon.store.host";
+	public static final String PAEON_CFG_STORE_URL = "paeon.store.url";
+	public static final String PAEON_CFG_DEADLINE = "paeon.deadline";
+	public static final String PAEON_CFG_DEADLINE_OPTIONAL = "paeon.deadline.optional";
+	public static final String PAEON_CFG_DEADLINE_MAX_SENTENCE = "paeon.deadline.maxsentence";
+	public static final String PAEON_CFG_SENTENCE_CACHE_SIZE = "paeon.sentence.cache.size";
+	public static final String PAEON_CFG_SENTENCE_CACHE_MAXLENGTH = "paeon.sentence.cache.maxlength";
+	public static final String PAEON_CFG_REVISIONS_SIZE = "paeon.revisions.size";
+	public static final String PAEON_CFG_CHUNK_THRESHOLD = "paeon.chunk.threshold";
+	public static final String PAEON_CFG_CHUNK_SIZE = "paeon.chunk.size";
+	public static final String PAEON_CFG_CHUNK_SECTIONS = "paeon.chunk.sections";
+	public static final String PAEON_CFG_CHUNK_THREADS = "paeon.chunk.threads";
 
 	private final Properties config = new Properties();
 	private Path configPath;
@@ -90,6 +142,54 @@ public class PaeonConfig {
 		return config.getProperty(key, def);
 	}
 
+	public void setProperty(String key, String value) {
+		config.setProperty(key, value);
+	}
+
+	public Set<String> getPropertyNames() {
+		return config.stringPropertyNames();
+	}
+
+	/**
+	 * Returns the URL of the broker(s) to connect to. A comma separated list of brokers, as in
+	 * a network of brokers, is connected to with failover: one broker at a time, picked at random
+	 * by default so service instances spread over the network, with the failover options in
+	 * 'paeon.broker.options' (default 'randomize=true').
+	 */
+	public String getBrokerUrl() {
+		String broker = config.getProperty(PAEON_CFG_BROKER);
+		if (broker == null || broker.indexOf(',') < 0 || broker.contains("(")) {
+			// a single broker, or a composite url already
+			return broker == null ? null : broker.trim();
+		}
+		StringBuilder url = new StringBuilder("failover:(");
+		for (String b : broker.split(",")) {
+			if (!b.trim().isEmpty()) {
+				url.append(url.charAt(url.length() - 1) == '(' ? "" : ",").append(b.trim());
+			}
+		}
+		url.append(")");
+		String options = config.getProperty(PAEON_CFG_BROKER_OPTIONS, "randomize=true").trim();
+		return options.isEmpty() ? url.toString() : url + "?" + options;
+	}
+
+	public int getIntProperty(String key, int def) {
+		return (int)getLongProperty(key, def);
+	}
+
+	public long getLongProperty(String key, long def) {
+		String value = config.getProperty(key);
+		if (value == null) {
+			return def;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			LOG.warn("Invalid value '{}' for '{}'; using default {}", value, key, def);
+			return def;
+		}
+	}
+
 
 	public Path systemConfigPath() {
 		return Paths.get(DEFAULT_CONFIG_DIR, DEFAULT_CONFIG_FILE);
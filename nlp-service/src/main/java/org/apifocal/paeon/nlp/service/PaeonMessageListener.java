@@ -15,8 +15,19 @@
  */
 package org.apifocal.paeon.nlp.service;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jms.BytesMessage;
 import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.MapMessage;
 import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
@@ -32,48 +43,416 @@ import org.slf4j.LoggerFactory;
 public class PaeonMessageListener implements MessageListener {
     private static final Logger LOG = LoggerFactory.getLogger(PaeonMessageListener.class);
 
+	/** Message property naming the pipeline profile to process the document with */
+	public static final String PAEON_PROFILE = "PaeonProfile";
+	/** Message property with the requested output format (see OutputFormat); also set on replies */
+	public static final String PAEON_FORMAT = "PaeonFormat";
+	/** Message property with the Projection spec for the json format */
+	public static final String PAEON_PROJECTION = "PaeonProjection";
+	/** Message property selecting how a batch is replied to: "aggregate" (default) or "stream" */
+	public static final String PAEON_BATCH_REPLY = "PaeonBatchReply";
+	/** Reply property with the id of the document, for streamed batch replies */
+	public static final String PAEON_ID = "PaeonId";
+	/** Message property with the id of the document, to re-analyze its next revision incrementally (see RevisionStore) */
+	public static final String PAEON_DOCUMENT_ID = "PaeonDocumentId";
+	/** Message property with the id of the previous revision of the document, if not its document id */
+	public static final String PAEON_PREVIOUS_ID = "PaeonPreviousId";
+	/** Message property with the time budget of each document, in millis, see Deadline */
+	public static final String PAEON_DEADLINE = "PaeonDeadline";
+	/** Reply property set to true if stages were skipped to meet the deadline */
+	public static final String PAEON_PARTIAL = "PaeonPartial";
+	/** Reply property with the stages skipped because the time budget was spent, comma separated */
+	public static final String PAEON_SKIPPED = "PaeonSkipped";
+	/** Reply property with the stages that bypassed the sentences over the length limit, comma separated */
+	public static final String PAEON_BYPASSED = "PaeonBypassed";
+	/** Reply property with the ResultStore reference of a result too large to be replied inline */
+	public static final String PAEON_CLAIM = "PaeonClaim";
+	/** Reply property with the size in bytes of the stored result */
+	public static final String PAEON_CLAIM_SIZE = "PaeonClaimSize";
+	/** Reply property with the URL the stored result is served at, see ResultServer */
+	public static final String PAEON_CLAIM_URL = "PaeonClaimUrl";
+	/** Reply property with the reason a request was not processed */
+	public static final String PAEON_ERROR = "PaeonError";
+
+	public static final String BATCH_REPLY_STREAM = "stream";
+
+	/** Reason of a document not processed, when the processor gives none */
+	public static final String NOT_PROCESSED = "not processed";
+	/** Reason of a batch entry that is not a text */
+	public static final String INVALID_ENTRY = "not a text";
+
+	private static final int INITIAL_BUFFER = 64 * 1024;
+	private static final int MAX_RETAINED_BUFFER = 16 * 1024 * 1024;
+
 	// replies are sent from the same session
 	private final Session session;
 	private final MessageProducer producer;
 
 	private final NLPProcessor nlpProcessor;
+	private final Lane lane;
+	private final List<Lane> lanes;
+	private ResultServer server;
+	// only used from the session thread, so one buffer per listener
+	private final ReusableByteArrayOutputStream buffer = new ReusableByteArrayOutputStream(INITIAL_BUFFER, MAX_RETAINED_BUFFER);
 
 	public PaeonMessageListener(Session session) throws JMSException {
+		// all listeners in the JVM share the same loaded pipelines
+		this(session, PipelineRegistry.getProcessor());
+	}
+
+	public PaeonMessageListener(Session session, NLPProcessor nlpProcessor) throws JMSException {
+		this(session, nlpProcessor, null, Collections.<Lane>emptyList());
+	}
+
+	/**
+	 * @param lane the lane this listener consumes for, or null
+	 * @param lanes all the lanes, to move documents too large for this one
+	 */
+	public PaeonMessageListener(Session session, NLPProcessor nlpProcessor, Lane lane, List<Lane> lanes) throws JMSException {
 		this.session = session;
 		this.producer = session.createProducer(null); // TODO or maybe a configurable DLQ
+		this.nlpProcessor = nlpProcessor;
+		this.lane = lane;
+		this.lanes = lanes;
+	}
 
-		// initialize NLP processor
-		this.nlpProcessor = new CtakesProcessor();
+	/**
+	 * Stores the results too large to be replied inline in the ResultStore of the server,
+	 * which serves them to the requesters.
+	 *
+	 * @param server the server of the stored results, or null to reply all results inline
+	 */
+	public void setResultServer(ResultServer server) {
+		this.server = server;
 	}
 
 	@Override
 	public void onMessage(Message message) {
+		try {
+			handle(message);
+		} catch (JMSException | RuntimeException e) {
+			LOG.error("Failed to process message", e);
+			try {
+				reject(message, QueueingConsumer.REJECTED_FAILED);
+			} catch (JMSException | RuntimeException r) {
+				// FIXME: no dead letter queue yet
+				LOG.error("Failed to reply to message {}; dropped", message, r);
+			}
+		}
+	}
+
+	/**
+	 * Processes a request message and sends the reply(ies) from this listener's session.
+	 * <p>
+	 * A TextMessage is one document. A MapMessage is a batch: each entry is a document,
+	 * named by its id, and all documents share the profile, format and projection of
+	 * the message. The replies to a batch are aggregated in one MapMessage, keyed by the
+	 * same ids (bytes for binary formats), unless the request sets {@code PaeonBatchReply}
+	 * to {@code stream}, in which case each document is replied to as soon as it is done,
+	 * with its id in the {@code PaeonId} property.
+	 * <p>
+	 * A TextMessage with a {@code PaeonDocumentId} (and optionally a {@code PaeonPreviousId})
+	 * is a revision of a document, re-analyzed incrementally from the previous revision.
+	 * <p>
+	 * The analysis of each document is bounded by {@code PaeonDeadline} millis, if set. A reply
+	 * that skipped stages to meet it has {@code PaeonPartial} set, and the stages skipped in
+	 * {@code PaeonSkipped} and {@code PaeonBypassed}; for an aggregated batch reply, the stages
+	 * skipped for any of its documents.
+	 * <p>
+	 * With a ResultServer, a result of {@code paeon.store.threshold} bytes or more is not in
+	 * the reply: the reply is empty, with the reference of the stored result in {@code PaeonClaim},
+	 * its size in {@code PaeonClaimSize} and its URL in {@code PaeonClaimUrl}, to fetch it from,
+	 * e.g. with {@link ResultServer#fetch(String)}.
+	 * In an aggregated batch reply, the entry of such a document is empty, and the reference
+	 * and URL are in the {@code PaeonClaim:<id>} and {@code PaeonClaimUrl:<id>} entries.
+	 * <p>
+	 * A document that was not processed (no pipeline in time, a failed or timed out stage,
+	 * a batch entry that is not a text) is replied to with an empty result and the reason in {@code PaeonError}, or in the
+	 * {@code PaeonError:<id>} entry of an aggregated batch reply.
+	 */
+	public void handle(Message message) throws JMSException {
 		// TODO: use guava assertion for message not null?
+		if (lane != null && moveLane(message)) {
+			return;
+		}
+		long start = System.nanoTime();
+		PaeonMetrics.active(1);
 		try {
-			String content = null;
-			String result = "";
-	        if (message instanceof TextMessage) {
-	        	content = ((TextMessage)message).getText();
+			if (message.getJMSTimestamp() > 0) {
+				PaeonMetrics.histogram(PaeonMetrics.JMS_WAIT).record(
+					(System.currentTimeMillis() - message.getJMSTimestamp()) * 1000);
+			}
+			OutputFormat format = OutputFormat.fromName(message.getStringProperty(PAEON_FORMAT));
+			Destination rt = message.getJMSReplyTo();
+			String cid = message.getJMSCorrelationID();
+	        if (message instanceof MapMessage) {
+	        	handleBatch((MapMessage)message, format, rt, cid);
+	        	return;
+	        }
 
+			boolean written = false;
+			NLPRequest request = null;
+	        if (message instanceof TextMessage) {
+	        	String content = ((TextMessage)message).getText();
 	        	LOG.debug("Paeon MessageListener text received '{}'", content);
-	        	// TODO: pass it onto cTakes processor (careful, could be null)
-	        	result = nlpProcessor.process(content);
+	        	request = createRequest(message, content == null ? "" : content, format, message.getStringProperty(PAEON_DOCUMENT_ID));
+	        	if (content == null) {
+	        		request.setError(INVALID_ENTRY);
+	        	}
+	        	written = content != null && process(request);
 	        }
 
-			Destination rt = message.getJMSReplyTo();
 			if (rt != null) {
-				String cid = message.getJMSCorrelationID();
 				// TODO: check that cid is not null? shouldn't be for request/reply
 				LOG.debug("Sending reply with correlation id '{}' back to '{}'", cid, rt);
-				Message reply = session.createTextMessage(result);
-				reply.setJMSCorrelationID(cid);
-				producer.send(rt, reply);
+				Message reply = createReply(format, written);
+				if (!written) {
+					reply.setStringProperty(PAEON_ERROR, error(request));
+				}
+				if (request != null) {
+					setPartial(reply, request.getSkipped(), request.getBypassed());
+				}
+				send(rt, cid, reply);
+			}
+		} finally {
+			buffer.reset();
+			PaeonMetrics.active(-1);
+			PaeonMetrics.histogram(PaeonMetrics.DOCUMENT).recordSince(start);
+			if (lane != null) {
+				PaeonMetrics.histogram(PaeonMetrics.LANE_PREFIX + lane.getName()).recordSince(start);
+			}
+			PaeonMetrics.recordStartup(PaeonMetrics.STARTUP_FIRST_MESSAGE);
+		}
+	}
+
+	/**
+	 * Replies to a request that will not be processed, with an empty result and the reason
+	 * in the {@code PaeonError} property.
+	 */
+	public void reject(Message message, String reason) throws JMSException {
+		Destination rt = message.getJMSReplyTo();
+		if (rt != null) {
+			Message reply = createReply(OutputFormat.fromName(message.getStringProperty(PAEON_FORMAT)), false);
+			reply.setStringProperty(PAEON_ERROR, reason);
+			send(rt, message.getJMSCorrelationID(), reply);
+		}
+	}
+
+	/**
+	 * Sends a document too large for this lane back to the queue, for the next lane that takes it.
+	 *
+	 * @return false if the document stays in this lane
+	 */
+	private boolean moveLane(Message message) throws JMSException {
+		long size = WorkQueue.estimate(message) / 2;
+		Lane target = lane.accepts(size) ? null : lane.next(lanes, size);
+		if (target == null) {
+			return false;
+		}
+		Message copy = copy(message);
+		if (copy == null) {
+			return false;
+		}
+		copy.setStringProperty(Lane.PAEON_LANE, target.getName());
+		producer.send(message.getJMSDestination(), copy, message.getJMSDeliveryMode(), message.getJMSPriority(), 0);
+		LOG.debug("Moved document of {} chars from lane {} to {}", size, lane, target);
+		return true;
+	}
+
+	private Message copy(Message message) throws JMSException {
+		Message copy;
+		if (message instanceof TextMessage) {
+			copy = session.createTextMessage(((TextMessage)message).getText());
+		} else if (message instanceof MapMessage) {
+			MapMessage map = session.createMapMessage();
+			Enumeration<?> names = ((MapMessage)message).getMapNames();
+			while (names.hasMoreElements()) {
+				String name = (String)names.nextElement();
+				map.setObject(name, ((MapMessage)message).getObject(name));
 			}
-		} catch (JMSException e) {
-			// FIXME: don't ignore forever
+			copy = map;
+		} else {
+			return null;
 		}
+		Enumeration<?> properties = message.getPropertyNames();
+		while (properties.hasMoreElements()) {
+			String name = (String)properties.nextElement();
+			// provider properties are set by the provider
+			if (!name.startsWith("JMSX") && !name.startsWith("JMS_")) {
+				copy.setObjectProperty(name, message.getObjectProperty(name));
+			}
+		}
+		copy.setJMSCorrelationID(message.getJMSCorrelationID());
+		copy.setJMSReplyTo(message.getJMSReplyTo());
+		return copy;
+	}
+
+	private void handleBatch(MapMessage message, OutputFormat format, Destination rt, String cid) throws JMSException {
+		boolean stream = BATCH_REPLY_STREAM.equalsIgnoreCase(message.getStringProperty(PAEON_BATCH_REPLY));
+		MapMessage replies = rt != null && !stream ? session.createMapMessage() : null;
+		int count = 0;
+		Set<String> skipped = new LinkedHashSet<>();
+		Set<String> bypassed = new LinkedHashSet<>();
+		Enumeration<?> ids = message.getMapNames();
+		while (ids.hasMoreElements()) {
+			String id = (String)ids.nextElement();
+			long docStart = System.nanoTime();
+			buffer.reset();
+			// an invalid entry is replied to as not processed, the rest of the batch is
+			Object content = message.getObject(id);
+			NLPRequest request = createRequest(message, content instanceof String ? (String)content : "", format, null);
+			if (!(content instanceof String)) {
+				request.setError(INVALID_ENTRY);
+			}
+			boolean written = request.getError() == null && process(request);
+			skipped.addAll(request.getSkipped());
+			bypassed.addAll(request.getBypassed());
+			if (replies != null) {
+				if (!written) {
+					replies.setString(PAEON_ERROR + ":" + id, error(request));
+				}
+				String claim = written ? claim() : null;
+				if (claim != null) {
+					written = false;
+					replies.setString(PAEON_CLAIM + ":" + id, claim);
+					replies.setString(PAEON_CLAIM_URL + ":" + id, server.getUrl(claim));
+				}
+				if (format.isBinary()) {
+					replies.setBytes(id, buffer.getBuffer(), 0, written ? buffer.size() : 0);
+				} else {
+					replies.setString(id, written ? new String(buffer.getBuffer(), 0, buffer.size(), StandardCharsets.UTF_8) : "");
+				}
+			} else if (rt != null) {
+				Message reply = createReply(format, written);
+				reply.setStringProperty(PAEON_ID, id);
+				if (!written) {
+					reply.setStringProperty(PAEON_ERROR, error(request));
+				}
+				setPartial(reply, request.getSkipped(), request.getBypassed());
+				send(rt, cid, reply);
+			}
+			PaeonMetrics.histogram(PaeonMetrics.DOCUMENT).recordSince(docStart);
+			count++;
+		}
+		LOG.debug("Processed batch of {} documents", count);
+		if (replies != null) {
+			replies.setStringProperty(PAEON_FORMAT, format.getName());
+			setPartial(replies, skipped, bypassed);
+			send(rt, cid, replies);
+		}
+	}
+
+	/**
+	 * Creates the request for one document, with the options of the message.
+	 *
+	 * @param documentId the id of the document, for incremental re-analysis, or null
+	 */
+	private NLPRequest createRequest(Message message, String content, OutputFormat format, String documentId) throws JMSException {
+		// TODO: pass it onto cTakes processor (careful, could be null)
+		NLPRequest request = new NLPRequest(content);
+		String profile = message.getStringProperty(PAEON_PROFILE);
+		request.setProfile(profile == null && lane != null ? lane.getProfile() : profile);
+		request.setFormat(format);
+		request.setLane(lane == null ? null : lane.getName());
+		request.setProjection(message.getStringProperty(PAEON_PROJECTION));
+		if (documentId != null) {
+			request.setDocumentId(documentId);
+			request.setPreviousId(message.getStringProperty(PAEON_PREVIOUS_ID));
+		}
+		if (message.propertyExists(PAEON_DEADLINE)) {
+			try {
+				request.setDeadline(message.getLongProperty(PAEON_DEADLINE));
+			} catch (NumberFormatException e) {
+				LOG.warn("Ignoring invalid {} '{}'", PAEON_DEADLINE, message.getStringProperty(PAEON_DEADLINE));
+			}
+		}
+		return request;
+	}
+
+	/**
+	 * Processes one document into the buffer.
+	 */
+	private boolean process(NLPRequest request) {
+		try {
+			// results are serialized straight into the reply buffer
+			return nlpProcessor.process(request, buffer);
+		} catch (IOException e) {
+			LOG.error("Could not write results", e);
+			request.setError("could not write results");
+			return false;
+		} catch (RuntimeException e) {
+			// replied to as not processed, rather than redelivered over and over
+			LOG.error("Failed to process document", e);
+			request.setError("processing failed: " + e);
+			return false;
+		}
+	}
 
+	private static String error(NLPRequest request) {
+		return request == null || request.getError() == null ? NOT_PROCESSED : request.getError();
 	}
 
+	private static void setPartial(Message reply, Collection<String> skipped, Collection<String> bypassed) throws JMSException {
+		if (skipped.isEmpty() && bypassed.isEmpty()) {
+			return;
+		}
+		reply.setBooleanProperty(PAEON_PARTIAL, true);
+		reply.setStringProperty(PAEON_SKIPPED, join(skipped));
+		reply.setStringProperty(PAEON_BYPASSED, join(bypassed));
+	}
+
+	private static String join(Collection<String> stages) {
+		StringBuilder sb = new StringBuilder();
+		for (String stage : stages) {
+			sb.append(sb.length() == 0 ? "" : ",").append(stage);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Stores the result in the buffer if too large to be replied inline.
+	 *
+	 * @return the reference of the stored result, or null to reply it inline
+	 */
+	private String claim() {
+		// only results the requesters can fetch are stored
+		if (server == null || !server.getStore().accepts(buffer.size())) {
+			return null;
+		}
+		return server.getStore().put(buffer.getBuffer(), 0, buffer.size());
+	}
+
+	private Message createReply(OutputFormat format, boolean written) throws JMSException {
+		String claim = written ? claim() : null;
+		if (claim != null) {
+			written = false;
+		}
+		Message reply;
+		if (format.isBinary()) {
+			BytesMessage bm = session.createBytesMessage();
+			if (written) {
+				bm.writeBytes(buffer.getBuffer(), 0, buffer.size());
+			}
+			reply = bm;
+		} else {
+			// the only copy of the result text: one UTF-8 decode of the serialized bytes
+			String result = written ? new String(buffer.getBuffer(), 0, buffer.size(), StandardCharsets.UTF_8) : "";
+			reply = session.createTextMessage(result);
+		}
+		reply.setStringProperty(PAEON_FORMAT, format.getName());
+		if (claim != null) {
+			reply.setStringProperty(PAEON_CLAIM, claim);
+			reply.setLongProperty(PAEON_CLAIM_SIZE, buffer.size());
+			reply.setStringProperty(PAEON_CLAIM_URL, server.getUrl(claim));
+		}
+		return reply;
+	}
+
+	private void send(Destination rt, String cid, Message reply) throws JMSException {
+		reply.setJMSCorrelationID(cid);
+		long sendStart = System.nanoTime();
+		producer.send(rt, reply);
+		PaeonMetrics.histogram(PaeonMetrics.REPLY_SEND).recordSince(sendStart);
+	}
 
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.uima.util.ProcessTrace;
+import org.apache.uima.util.ProcessTraceEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide registry of latency histograms.
+ * <p>
+ * Histograms are created on first use and registered in the platform MBeanServer as
+ * {@code org.apifocal.paeon:type=Metrics,name=<name>}. Once reporting is started, all
+ * histograms are also logged periodically. Standard names, all in microseconds:
+ * <ul>
+ *   <li>{@code stage.<stage>}: time spent in each annotator of the aggregate</li>
+ *   <li>{@code jms.wait}: time from send to delivery (assumes synchronized clocks)</li>
+ *   <li>{@code pipeline.wait}: time waiting for a free pipeline and CAS</li>
+ *   <li>{@code pipeline.process}: time spent in the whole aggregate</li>
+ *   <li>{@code chunk}: time spent in the aggregate per chunk of a long document</li>
+ *   <li>{@code phase.<stage>}: time waiting for the phase starting at that stage, see StagedPipeline</li>
+ *   <li>{@code serialize}: time spent formatting the result</li>
+ *   <li>{@code reply.send}: time spent sending the reply</li>
+ *   <li>{@code document}: end to end time in the service, per document</li>
+ *   <li>{@code partial}: time to analyze the documents whose analysis was partial, see Deadline</li>
+ *   <li>{@code lane.<lane>}: end to end time in the service, per message of a lane, see Lane</li>
+ *   <li>{@code batch}: time to process and commit a micro-batch, see BatchingConsumer</li>
+ *   <li>{@code queue.wait}: time a document waited in the WorkQueue</li>
+ *   <li>{@code queue.pause}: time delivery was paused because the WorkQueue was full</li>
+ *   <li>{@code queue.depth}: queued documents (a count), sampled as each one is queued</li>
+ *   <li>{@code queue.rejected}: size in bytes of each document rejected as too large</li>
+ *   <li>{@code startup.ready}, {@code startup.first.message}: time from JVM start until the
+ *       service was ready to consume, and until the first message was processed (recorded once)</li>
+ *   <li>{@code cache.hit}, {@code cache.miss}: result cache lookups, see ResultCache</li>
+ *   <li>{@code sentence.cache.hit}, {@code sentence.cache.miss}: sentence lookups, see SentenceCache</li>
+ *   <li>{@code revision.hit}, {@code revision.miss}: previous revision lookups, see RevisionStore</li>
+ *   <li>{@code store.put}, {@code store.get}: results stored and read back, see ResultStore</li>
+ *   <li>{@code concept.cache.hit}, {@code concept.cache.miss}: concept lookups, see CachingConceptFactory</li>
+ * </ul>
+ * Other statistics, e.g. the hit rates of the CuiCaches, are logged with the histograms.
+ * The requests in process are also counted, as the load reported by LoadReporter.
+ */
+public final class PaeonMetrics {
+    private static final Logger LOG = LoggerFactory.getLogger(PaeonMetrics.class);
+
+    public static final String STAGE_PREFIX = "stage.";
+    public static final String PHASE_PREFIX = "phase.";
+    public static final String JMS_WAIT = "jms.wait";
+    public static final String PIPELINE_WAIT = "pipeline.wait";
+    public static final String PIPELINE_PROCESS = "pipeline.process";
+    public static final String CHUNK = "chunk";
+    public static final String SERIALIZE = "serialize";
+    public static final String REPLY_SEND = "reply.send";
+    public static final String DOCUMENT = "document";
+    public static final String LANE_PREFIX = "lane.";
+    public static final String BATCH = "batch";
+    public static final String QUEUE_WAIT = "queue.wait";
+    public static final String QUEUE_PAUSE = "queue.pause";
+    public static final String QUEUE_DEPTH = "queue.depth";
+    public static final String QUEUE_REJECTED = "queue.rejected";
+    public static final String PARTIAL = "partial";
+    public static final String STARTUP_READY = "startup.ready";
+    public static final String STARTUP_FIRST_MESSAGE = "startup.first.message";
+
+    private static final String JMX_DOMAIN = "org.apifocal.paeon";
+    private static final ConcurrentMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+    private static final ConcurrentMap<String, Object> STATISTICS = new ConcurrentHashMap<>();
+    private static final Set<String> STARTUP_EVENTS = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static boolean jmxEnabled = true;
+    private static ScheduledExecutorService reporter;
+
+    private PaeonMetrics() {
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram h = HISTOGRAMS.get(name);
+        if (h == null) {
+            Histogram created = new Histogram(name);
+            h = HISTOGRAMS.putIfAbsent(name, created);
+            if (h == null) {
+                h = created;
+                register(h);
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Records the time spent in each annotator, as reported by the UIMA process trace.
+     */
+    public static void recordStages(ProcessTrace trace) {
+        if (trace == null) {
+            return;
+        }
+        for (ProcessTraceEvent event : trace.getEvents()) {
+            recordStages(event);
+        }
+    }
+
+    private static void recordStages(ProcessTraceEvent event) {
+        for (ProcessTraceEvent sub : event.getSubEvents()) {
+            if (ProcessTraceEvent.ANALYSIS.equals(sub.getType())) {
+                // trace durations are in millis
+                histogram(STAGE_PREFIX + sub.getComponentName()).record(sub.getDuration() * 1000L);
+            }
+            recordStages(sub);
+        }
+    }
+
+    public static Map<String, Histogram> getHistograms() {
+        return new TreeMap<>(HISTOGRAMS);
+    }
+
+    /**
+     * Counts a request started (+1) or done (-1).
+     */
+    public static void active(int delta) {
+        ACTIVE.addAndGet(delta);
+    }
+
+    /**
+     * Returns the requests in process in this JVM.
+     */
+    public static int getActive() {
+        return ACTIVE.get();
+    }
+
+    /**
+     * Records the time since the JVM started in the given histogram, the first time it is called for it.
+     *
+     * @return true if this call recorded the event
+     */
+    public static boolean recordStartup(String name) {
+        if (STARTUP_EVENTS.contains(name) || !STARTUP_EVENTS.add(name)) {
+            return false;
+        }
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        histogram(name).record(uptime * 1000);
+        LOG.info("{} {} ms after JVM start", name, uptime);
+        return true;
+    }
+
+    /**
+     * Registers statistics to log with the histograms, as their toString().
+     */
+    public static void statistics(String name, Object statistics) {
+        STATISTICS.put(name, statistics);
+    }
+
+    /**
+     * Starts the periodic metrics dump, every {@code paeon.metrics.interval} seconds (0 disables).
+     */
+    public static synchronized void startReporting(PaeonConfig config) {
+        jmxEnabled = Boolean.parseBoolean(config.getProperty(PaeonConfig.PAEON_CFG_METRICS_JMX, "true"));
+        long interval = config.getLongProperty(PaeonConfig.PAEON_CFG_METRICS_INTERVAL, 60);
+        if (reporter != null || interval <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "paeon-metrics");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                report();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+            report();
+        }
+    }
+
+    public static void report() {
+        for (Histogram h : getHistograms().values()) {
+            if (h.getCount() > 0) {
+                LOG.info("{}", h);
+            }
+        }
+        for (Map.Entry<String, Object> e : new TreeMap<>(STATISTICS).entrySet()) {
+            LOG.info("{}: {}", e.getKey(), e.getValue());
+        }
+    }
+
+    private static void register(Histogram h) {
+        if (!jmxEnabled) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(h.getName()));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(h, name);
+            }
+        } catch (JMException e) {
+            LOG.warn("Failed to register metrics '{}' in JMX: {}", h.getName(), e.getLocalizedMessage());
+        }
+    }
+
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQPrefetchPolicy;
+import org.apache.activemq.ActiveMQSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * NLP service runtime: one connection with a number of concurrent consumers on the
+ * configured queue, all sharing the same NLP processor.
+ * <p>
+ * Each consumer has its own session, since JMS delivers messages serially per session.
+ * The prefetch is kept low (1 by default) so the broker does not park documents behind
+ * a consumer busy with a slow note while other consumers are idle.
+ * <p>
+ * With {@code paeon.batch.size} above 1, consumers use transacted sessions and commit
+ * their acknowledgements and replies once per micro-batch of up to that many messages,
+ * or of the messages received within {@code paeon.batch.timeout} millis; see BatchingConsumer.
+ * The prefetch then defaults to the batch size.
+ * <p>
+ * With {@code paeon.queue.depth} above 0, a single consumer feeds a bounded WorkQueue
+ * instead, and {@code paeon.consumers} workers process it, each acknowledging its message
+ * only after the reply is sent. Delivery pauses while the queue holds that many documents,
+ * while the queued documents exceed {@code paeon.queue.memory} MB, or while more than
+ * {@code paeon.queue.heap} percent of the heap is used; see QueueingConsumer.
+ * <p>
+ * With {@code paeon.lanes}, each Lane has its own consumers, taking the messages of its
+ * priority or naming it, so urgent documents are not queued behind long ones; the lanes
+ * then replace the modes above.
+ * <p>
+ * With {@code paeon.store.dir} and {@code paeon.store.port}, results too large for the broker
+ * are kept in a ResultStore and served over HTTP by a ResultServer, the replies carrying
+ * a claim check instead. Without a running server, all results are replied inline.
+ * <p>
+ * {@code paeon.broker} may list several brokers of a network of brokers, see
+ * {@link PaeonConfig#getBrokerUrl()}: each instance then connects to one of them, the
+ * network forwarding requests to the brokers with consumers and the replies back to the
+ * requesters. To help spread the work, every {@code paeon.load.interval} millis each
+ * instance publishes its load on {@code paeon.load.topic}, see LoadReporter.
+ * <p>
+ * The consumers only subscribe once the pipelines are loaded (and warmed up, see
+ * {@code paeon.warmup.iterations}); the service is then ready, which is signaled by
+ * {@link #isReady()} and, for container readiness probes, by creating the file named by
+ * {@code paeon.ready.file}, removed when the service stops.
+ */
+public class PaeonService {
+    private static final Logger LOG = LoggerFactory.getLogger(PaeonService.class);
+
+    private final PaeonConfig config;
+    private final List<Session> sessions = new ArrayList<>();
+    private final List<MessageConsumer> consumers = new ArrayList<>();
+    private final List<BatchingConsumer> batchers = new ArrayList<>();
+    private final List<Thread> batchThreads = new ArrayList<>();
+    private final List<QueueingConsumer.Worker> workers = new ArrayList<>();
+    private final List<Thread> workerThreads = new ArrayList<>();
+    private QueueingConsumer receiver;
+    private Thread receiverThread;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private NLPProcessor nlpProcessor;
+    private Connection connection;
+    private ScheduledExecutorService loadReporter;
+    private ResultStore resultStore;
+    private ResultServer resultServer;
+    private volatile boolean ready;
+    private Path readyFile;
+
+    public PaeonService(PaeonConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * @param nlpProcessor the processor shared by all consumers; if null, the one
+     *                     from the PipelineRegistry is used
+     */
+    public PaeonService(PaeonConfig config, NLPProcessor nlpProcessor) {
+        this.config = config;
+        this.nlpProcessor = nlpProcessor;
+    }
+
+    public synchronized void start() throws JMSException {
+        if (connection != null) {
+            return;
+        }
+        String broker = config.getBrokerUrl();
+        String user = config.getProperty(PaeonConfig.PAEON_CFG_USER);
+        String password = config.getProperty(PaeonConfig.PAEON_CFG_PASSWORD);
+        String listenOn = config.getProperty(PaeonConfig.PAEON_CFG_LISTENON);
+        if (broker == null || listenOn == null) {
+            throw new IllegalStateException("Paeon configuration must define '" + PaeonConfig.PAEON_CFG_BROKER
+                + "' and '" + PaeonConfig.PAEON_CFG_LISTENON + "'");
+        }
+        int pipelines = config.getIntProperty(PaeonConfig.PAEON_CFG_PIPELINE_INSTANCES, 1);
+        int count = Math.max(1, config.getIntProperty(PaeonConfig.PAEON_CFG_CONSUMERS, pipelines));
+        int batchSize = Math.max(1, config.getIntProperty(PaeonConfig.PAEON_CFG_BATCH_SIZE, 1));
+        long batchTimeout = config.getLongProperty(PaeonConfig.PAEON_CFG_BATCH_TIMEOUT, 100);
+        List<Lane> lanes = Lane.fromConfig(config);
+        int queueDepth = config.getIntProperty(PaeonConfig.PAEON_CFG_QUEUE_DEPTH, 0);
+        if (!lanes.isEmpty() && (queueDepth > 0 || batchSize > 1)) {
+            LOG.warn("'{}' and '{}' are ignored when '{}' is set", PaeonConfig.PAEON_CFG_QUEUE_DEPTH,
+                    PaeonConfig.PAEON_CFG_BATCH_SIZE, PaeonConfig.PAEON_CFG_LANES);
+            queueDepth = 0;
+            batchSize = 1;
+        }
+        boolean queueing = queueDepth > 0;
+        if (queueing && batchSize > 1) {
+            LOG.warn("'{}' is ignored when '{}' is set", PaeonConfig.PAEON_CFG_BATCH_SIZE, PaeonConfig.PAEON_CFG_QUEUE_DEPTH);
+            batchSize = 1;
+        }
+        boolean batching = batchSize > 1;
+        int prefetch = Math.max(0, config.getIntProperty(PaeonConfig.PAEON_CFG_PREFETCH, batchSize));
+
+        PaeonMetrics.startReporting(config);
+        resultStore = ResultStore.create(config);
+        resultServer = ResultServer.start(config, resultStore);
+        if (resultStore != null && resultServer == null) {
+            // a reference no requester can resolve is no result
+            LOG.warn("Result store not served; results are replied inline");
+            resultStore.close();
+            resultStore = null;
+        }
+        if (nlpProcessor == null) {
+            // loads and warms up the pipelines before subscribing
+            nlpProcessor = PipelineRegistry.getProcessor(config);
+        }
+
+        ActiveMQPrefetchPolicy prefetchPolicy = new ActiveMQPrefetchPolicy();
+        prefetchPolicy.setQueuePrefetch(prefetch);
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(broker);
+        factory.setPrefetchPolicy(prefetchPolicy);
+
+        LOG.info("Starting {} consumer(s) on '{}' at {} (prefetch {}, batch {})", count, listenOn, broker, prefetch, batchSize);
+        connection = factory.createConnection(user, password);
+        connection.setExceptionListener(new ExceptionListener() {
+            public void onException(JMSException e) {
+                LOG.error("Paeon connection failure", e);
+            }
+        });
+        try {
+            if (!lanes.isEmpty()) {
+                startLanes(listenOn, lanes);
+                markReady();
+                return;
+            }
+            if (queueing) {
+                startQueue(listenOn, count, queueDepth);
+                markReady();
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                Session session = batching ? connection.createSession(true, Session.SESSION_TRANSACTED)
+                        : connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                Destination queue = session.createQueue(listenOn);
+                MessageConsumer consumer = session.createConsumer(queue);
+                PaeonMessageListener listener = createListener(session, null, Collections.<Lane>emptyList());
+                if (batching) {
+                    batchers.add(new BatchingConsumer(session, consumer, listener, batchSize, batchTimeout));
+                } else {
+                    consumer.setMessageListener(listener);
+                }
+                sessions.add(session);
+                consumers.add(consumer);
+            }
+            connection.start();
+            for (int i = 0; i < batchers.size(); i++) {
+                Thread t = new Thread(batchers.get(i), "paeon-consumer-" + i);
+                batchThreads.add(t);
+                t.start();
+            }
+            markReady();
+        } catch (JMSException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    private void markReady() throws JMSException {
+        startLoadReporter();
+        ready = true;
+        PaeonMetrics.recordStartup(PaeonMetrics.STARTUP_READY);
+        String file = config.getProperty(PaeonConfig.PAEON_CFG_READY_FILE);
+        if (file != null) {
+            try {
+                readyFile = Files.write(Paths.get(file), new byte[0]);
+            } catch (IOException e) {
+                LOG.warn("Failed to create readiness file {}: {}", file, e.getLocalizedMessage());
+            }
+        }
+        LOG.info("Paeon service ready");
+    }
+
+    private void startLoadReporter() throws JMSException {
+        long interval = config.getLongProperty(PaeonConfig.PAEON_CFG_LOAD_INTERVAL, 0);
+        if (interval <= 0) {
+            return;
+        }
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        sessions.add(session);
+        LoadReporter reporter = new LoadReporter(session,
+                config.getProperty(PaeonConfig.PAEON_CFG_LOAD_TOPIC, LoadReporter.DEFAULT_TOPIC),
+                config.getProperty(PaeonConfig.PAEON_CFG_NODE, LoadReporter.defaultNode()),
+                workers.isEmpty() ? consumers.size() : workers.size(), interval);
+        loadReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "paeon-load");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        loadReporter.scheduleAtFixedRate(reporter, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns true once the consumers are subscribed, until the service is stopped.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    private void startLanes(String listenOn, List<Lane> lanes) throws JMSException {
+        for (Lane lane : lanes) {
+            String selector = lane.selector(lanes);
+            LOG.info("Starting {} consumer(s) for lane {} ({})", lane.getConsumers(), lane, selector);
+            for (int i = 0; i < lane.getConsumers(); i++) {
+                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                MessageConsumer consumer = session.createConsumer(session.createQueue(listenOn), selector);
+                consumer.setMessageListener(createListener(session, lane, lanes));
+                sessions.add(session);
+                consumers.add(consumer);
+            }
+        }
+        connection.start();
+    }
+
+    private void startQueue(String listenOn, int count, int depth) throws JMSException {
+        WorkQueue queue = new WorkQueue(depth,
+                config.getLongProperty(PaeonConfig.PAEON_CFG_QUEUE_MEMORY, 0) * 1024 * 1024,
+                config.getIntProperty(PaeonConfig.PAEON_CFG_QUEUE_HEAP, 0));
+        Session session = connection.createSession(false, ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(session.createQueue(listenOn));
+        PaeonMessageListener rejects = createListener(session, null, Collections.<Lane>emptyList());
+        sessions.add(session);
+        consumers.add(consumer);
+        receiver = new QueueingConsumer(consumer, rejects, queue);
+        // replies are sent from the workers' own sessions, acknowledgements from the receiver's
+        for (int i = 0; i < count; i++) {
+            Session workerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            workers.add(new QueueingConsumer.Worker(queue, createListener(workerSession, null, Collections.<Lane>emptyList()), receiver));
+            sessions.add(workerSession);
+        }
+        connection.start();
+        for (int i = 0; i < workers.size(); i++) {
+            Thread t = new Thread(workers.get(i), "paeon-worker-" + i);
+            workerThreads.add(t);
+            t.start();
+        }
+        receiverThread = new Thread(receiver, "paeon-consumer");
+        receiverThread.start();
+    }
+
+    private PaeonMessageListener createListener(Session session, Lane lane, List<Lane> lanes) throws JMSException {
+        PaeonMessageListener listener = new PaeonMessageListener(session, nlpProcessor, lane, lanes);
+        listener.setResultServer(resultServer);
+        return listener;
+    }
+
+    /**
+     * Stops delivery, waits for the documents in flight to be processed and replied to,
+     * then closes the consumers and the connection.
+     */
+    public synchronized void stop() {
+        if (connection == null) {
+            return;
+        }
+        LOG.info("Stopping Paeon service; draining in-flight documents ...");
+        ready = false;
+        if (readyFile != null) {
+            try {
+                Files.deleteIfExists(readyFile);
+            } catch (IOException e) {
+                LOG.warn("Failed to remove readiness file {}: {}", readyFile, e.getLocalizedMessage());
+            }
+            readyFile = null;
+        }
+        if (loadReporter != null) {
+            loadReporter.shutdown();
+            try {
+                loadReporter.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            loadReporter = null;
+        }
+        // batching consumers receive synchronously, so let them finish their batch first
+        for (BatchingConsumer batcher : batchers) {
+            batcher.stop();
+        }
+        join(batchThreads);
+        // stop receiving, then let the workers drain the queue; the receiver acknowledges their messages
+        if (receiver != null) {
+            receiver.stop();
+            join(Collections.singletonList(receiverThread));
+        }
+        for (QueueingConsumer.Worker worker : workers) {
+            worker.stop();
+        }
+        join(workerThreads);
+        try {
+            // per JMS spec, stop() blocks until running message listeners return
+            connection.stop();
+            for (MessageConsumer consumer : consumers) {
+                consumer.close();
+            }
+            for (Session session : sessions) {
+                session.close();
+            }
+            connection.close();
+        } catch (JMSException e) {
+            LOG.warn("Failed to shut down Paeon service cleanly: {}", e.getLocalizedMessage());
+        } finally {
+            consumers.clear();
+            sessions.clear();
+            batchers.clear();
+            batchThreads.clear();
+            workers.clear();
+            workerThreads.clear();
+            receiver = null;
+            receiverThread = null;
+            connection = null;
+            if (resultServer != null) {
+                resultServer.stop();
+                resultServer = null;
+            }
+            if (resultStore != null) {
+                resultStore.close();
+                resultStore = null;
+            }
+            PaeonMetrics.stopReporting();
+            stopped.countDown();
+            LOG.info("Paeon service stopped");
+        }
+    }
+
+    private static void join(List<Thread> threads) {
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        stopped.await();
+    }
+
+    public synchronized int getConsumerCount() {
+        return consumers.size();
+    }
+
+}
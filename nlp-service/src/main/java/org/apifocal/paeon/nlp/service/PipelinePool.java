@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.ResourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed size pool of pipeline instances and of the CASes they process.
+ * <p>
+ * An AnalysisEngine processes one CAS at a time, so concurrent callers check out
+ * an engine and a CAS, and return both when done. Engines and CASes are pooled
+ * separately so an engine can be handed to the next document while the previous
+ * CAS is still being serialized. Checkouts wait at most {@code timeout} millis.
+ * <p>
+ * All instances are created from the same description and ResourceManager, so
+ * shared external resources are loaded only once for the whole pool. Given an executor,
+ * the instances after the first one (which loads the shared resources) are created in
+ * parallel.
+ */
+public class PipelinePool {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelinePool.class);
+
+    private final List<AnalysisEngine> instances = new ArrayList<>();
+    private final BlockingQueue<AnalysisEngine> engines;
+    private final BlockingQueue<JCas> cases;
+    private final long timeout;
+
+    public PipelinePool(AnalysisEngineDescription description, ResourceManager resourceManager,
+            int size, int casCount, long timeout) throws ResourceInitializationException {
+        this(description, resourceManager, size, casCount, timeout, null);
+    }
+
+    /**
+     * @param executor creates the instances after the first one in parallel; if null, one by one
+     */
+    public PipelinePool(final AnalysisEngineDescription description, final ResourceManager resourceManager,
+            final int size, int casCount, long timeout, ExecutorService executor) throws ResourceInitializationException {
+        if (size < 1 || casCount < 1) {
+            throw new IllegalArgumentException("Pipeline pool needs at least one engine and one CAS");
+        }
+        this.engines = new ArrayBlockingQueue<>(size);
+        this.cases = new ArrayBlockingQueue<>(casCount);
+        this.timeout = timeout;
+
+        instances.add(produce(description, resourceManager, 1, size));
+        if (executor == null) {
+            for (int i = 1; i < size; i++) {
+                instances.add(produce(description, resourceManager, i + 1, size));
+            }
+        } else {
+            List<Future<AnalysisEngine>> created = new ArrayList<>();
+            for (int i = 1; i < size; i++) {
+                final int instance = i + 1;
+                created.add(executor.submit(new Callable<AnalysisEngine>() {
+                    public AnalysisEngine call() throws ResourceInitializationException {
+                        return produce(description, resourceManager, instance, size);
+                    }
+                }));
+            }
+            collect(created);
+        }
+        engines.addAll(instances);
+        // all instances share the same type system, so any of them can create the CASes
+        for (int i = 0; i < casCount; i++) {
+            cases.add(instances.get(0).newJCas());
+        }
+    }
+
+    private static AnalysisEngine produce(AnalysisEngineDescription description, ResourceManager resourceManager,
+            int instance, int size) throws ResourceInitializationException {
+        LOG.info("Initializing pipeline instance {} of {} ...", instance, size);
+        return UIMAFramework.produceAnalysisEngine(description, resourceManager, null);
+    }
+
+    /**
+     * Waits for all the instances created in parallel; if any failed, destroys them all.
+     */
+    private void collect(List<Future<AnalysisEngine>> created) throws ResourceInitializationException {
+        ResourceInitializationException failure = null;
+        for (Future<AnalysisEngine> engine : created) {
+            try {
+                instances.add(engine.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof ResourceInitializationException
+                            ? (ResourceInitializationException)e.getCause() : new ResourceInitializationException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new ResourceInitializationException(e);
+                }
+            }
+        }
+        if (failure != null) {
+            for (AnalysisEngine engine : instances) {
+                engine.destroy();
+            }
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs a text through every instance, so lazily loaded resources are loaded and the
+     * hot paths are compiled before the first real document. Only call before the pool is shared.
+     */
+    public void warmUp(String text, int iterations) throws AnalysisEngineProcessException {
+        JCas jcas = borrowCas();
+        if (jcas == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < iterations; i++) {
+                for (AnalysisEngine engine : instances) {
+                    jcas.reset();
+                    jcas.setDocumentText(text);
+                    engine.process(jcas);
+                }
+            }
+        } finally {
+            returnCas(jcas);
+        }
+    }
+
+    /**
+     * Returns one of the pooled engines, for inspection only; use borrowEngine() to process.
+     */
+    public AnalysisEngine getEngine() {
+        return instances.get(0);
+    }
+
+    public int getSize() {
+        return instances.size();
+    }
+
+    public int getAvailableEngines() {
+        return engines.size();
+    }
+
+    public int getAvailableCases() {
+        return cases.size();
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Checks out an engine, or returns null if none became available within the timeout.
+     */
+    public AnalysisEngine borrowEngine() {
+        return poll(engines);
+    }
+
+    public void returnEngine(AnalysisEngine engine) {
+        if (engine != null && !engines.offer(engine)) {
+            LOG.warn("Pipeline returned to a full pool; ignoring");
+        }
+    }
+
+    /**
+     * Checks out an empty CAS, or returns null if none became available within the timeout.
+     */
+    public JCas borrowCas() {
+        return poll(cases);
+    }
+
+    public void returnCas(JCas jcas) {
+        if (jcas != null) {
+            jcas.reset();
+            if (!cases.offer(jcas)) {
+                LOG.warn("CAS returned to a full pool; ignoring");
+            }
+        }
+    }
+
+    public void destroy() {
+        for (AnalysisEngine engine : instances) {
+            engine.destroy();
+        }
+        engines.clear();
+        cases.clear();
+    }
+
+    private <T> T poll(BlockingQueue<T> queue) {
+        try {
+            return queue.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A named selection of pipeline stages.
+ * <p>
+ * Profiles are defined in the configuration as a comma separated list of stage names,
+ * e.g. {@code paeon.profile.fast=segment,sentence,tokenizer,...}; stages always run
+ * in pipeline order. The profile used when a request does not name one is set by
+ * {@code paeon.profile}. Three profiles are built in and can be redefined:
+ * <ul>
+ *   <li>{@code fast}: tokens, dictionary concepts, polarity and uncertainty</li>
+ *   <li>{@code clinical}: fast, plus semantic roles and constituency parse</li>
+ *   <li>{@code full-temporal}: the whole chain, including the temporal annotators (default)</li>
+ * </ul>
+ * Each profile {@code p} also has derived profiles {@code p/section} and {@code p/document}
+ * with only its stages of that scope, see {@link #select(PipelineStage.Scope)}, and
+ * {@code p/head}, {@code p/memo} and {@code p/tail} with its stages before, within and
+ * after the sentence local ones, see {@link #memoPart(String)}.
+ * <p>
+ * A profile run for a Lane is named {@code <lane>:<profile>}, see {@link #laneName(String, String)}:
+ * it has the same stages, but its own pipeline pools.
+ */
+public class PipelineProfile {
+
+    public static final String FAST = "fast";
+    public static final String CLINICAL = "clinical";
+    public static final String FULL_TEMPORAL = "full-temporal";
+    public static final String SCOPE_SEPARATOR = "/";
+    public static final String PHASE_SEPARATOR = "@";
+    public static final String HEAD = "head";
+    public static final String MEMO = "memo";
+    public static final String TAIL = "tail";
+    public static final String LANE_SEPARATOR = ":";
+
+    private static final EnumSet<PipelineStage> FAST_STAGES = EnumSet.range(PipelineStage.SEGMENT, PipelineStage.UNCERTAINTY);
+    private static final EnumSet<PipelineStage> CLINICAL_STAGES = EnumSet.range(PipelineStage.SEGMENT, PipelineStage.CONSTITUENCY_PARSER);
+    private static final EnumSet<PipelineStage> FULL_STAGES = EnumSet.allOf(PipelineStage.class);
+
+    private final String name;
+    private final List<PipelineStage> stages;
+
+    public PipelineProfile(String name, Collection<PipelineStage> stages) {
+        this.name = name;
+        // EnumSet iterates in declaration order, which is the pipeline order
+        this.stages = Collections.unmodifiableList(new ArrayList<>(EnumSet.copyOf(stages)));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<PipelineStage> getStages() {
+        return stages;
+    }
+
+    /**
+     * Returns the profile with the stages of the given scope, named {@code <name>/<scope>}.
+     *
+     * @return the derived profile, or null if this profile has no stage of that scope
+     */
+    public PipelineProfile select(PipelineStage.Scope scope) {
+        List<PipelineStage> selected = new ArrayList<>();
+        for (PipelineStage stage : stages) {
+            if (stage.getScope() == scope) {
+                selected.add(stage);
+            }
+        }
+        return selected.isEmpty() ? null : new PipelineProfile(scopedName(name, scope), selected);
+    }
+
+    /**
+     * Returns the part of the profile for sentence memoization, named {@code <name>/<part>}:
+     * {@code head} has the stages before the sentence local ones, {@code memo} the sentence
+     * local stages (see {@link PipelineStage#isSentenceLocal()}), {@code tail} the stages after them.
+     *
+     * @return the derived profile, or null if this profile has no stage in that part
+     */
+    public PipelineProfile memoPart(String part) {
+        List<PipelineStage> selected = new ArrayList<>();
+        for (PipelineStage stage : stages) {
+            boolean before = stage.compareTo(PipelineStage.TOKENIZER) < 0;
+            boolean selects = MEMO.equals(part) ? stage.isSentenceLocal()
+                    : HEAD.equals(part) ? before
+                    : TAIL.equals(part) && !before && !stage.isSentenceLocal();
+            if (selects) {
+                selected.add(stage);
+            }
+        }
+        return selected.isEmpty() ? null : new PipelineProfile(partName(name, part), selected);
+    }
+
+    /**
+     * Splits the profile in consecutive phases, each starting at one of the given stages
+     * (or at the first stage), named {@code <name>@<first stage>}.
+     */
+    public List<PipelineProfile> split(Collection<PipelineStage> starts) {
+        List<PipelineProfile> phases = new ArrayList<>();
+        List<PipelineStage> phase = new ArrayList<>();
+        for (PipelineStage stage : stages) {
+            if (starts.contains(stage) && !phase.isEmpty()) {
+                phases.add(new PipelineProfile(name + PHASE_SEPARATOR + phase.get(0).getName(), phase));
+                phase = new ArrayList<>();
+            }
+            phase.add(stage);
+        }
+        phases.add(new PipelineProfile(name + PHASE_SEPARATOR + phase.get(0).getName(), phase));
+        return phases;
+    }
+
+    public static String scopedName(String name, PipelineStage.Scope scope) {
+        return name + SCOPE_SEPARATOR + scope.name().toLowerCase();
+    }
+
+    public static String partName(String name, String part) {
+        return name + SCOPE_SEPARATOR + part;
+    }
+
+    /**
+     * Returns the name of the profile run for a lane, or the profile name if there is no lane.
+     */
+    public static String laneName(String lane, String name) {
+        return lane == null ? name : lane + LANE_SEPARATOR + name;
+    }
+
+    /**
+     * Returns the lane of a profile name, or null.
+     */
+    public static String laneOf(String name) {
+        int separator = name.indexOf(LANE_SEPARATOR);
+        return separator > 0 ? name.substring(0, separator) : null;
+    }
+
+    /**
+     * Returns the profile name without its lane.
+     */
+    public static String baseName(String name) {
+        int separator = name.indexOf(LANE_SEPARATOR);
+        return separator > 0 ? name.substring(separator + 1) : name;
+    }
+
+    /**
+     * Returns the default profile name, as configured by {@code paeon.profile}.
+     */
+    public static String defaultName(PaeonConfig config) {
+        return config == null ? FULL_TEMPORAL : config.getProperty(PaeonConfig.PAEON_CFG_PROFILE_DEFAULT, FULL_TEMPORAL);
+    }
+
+    /**
+     * Returns the names of the profiles defined in the configuration, as {@code paeon.profile.<name>}.
+     */
+    public static Set<String> configuredNames(PaeonConfig config) {
+        Set<String> names = new TreeSet<>();
+        if (config != null) {
+            for (String key : config.getPropertyNames()) {
+                String name = key.startsWith(PaeonConfig.PAEON_CFG_PROFILE_PREFIX)
+                        ? key.substring(PaeonConfig.PAEON_CFG_PROFILE_PREFIX.length()) : "";
+                // not the settings of a profile, e.g. its instances
+                if (!name.isEmpty() && !name.contains(".")) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Looks up a profile in the configuration, falling back to the built in ones.
+     *
+     * @return the profile, or null if no profile with this name is defined
+     */
+    public static PipelineProfile lookup(PaeonConfig config, String name) {
+        int separator = name.lastIndexOf(SCOPE_SEPARATOR);
+        if (separator > 0) {
+            PipelineProfile profile = lookup(config, name.substring(0, separator));
+            for (PipelineStage.Scope scope : PipelineStage.Scope.values()) {
+                if (profile != null && scope.name().equalsIgnoreCase(name.substring(separator + 1))) {
+                    return profile.select(scope);
+                }
+            }
+            return profile == null ? null : profile.memoPart(name.substring(separator + 1));
+        }
+        if (laneOf(name) != null) {
+            PipelineProfile profile = lookup(config, baseName(name));
+            return profile == null ? null : new PipelineProfile(name, profile.getStages());
+        }
+        String stages = config == null ? null : config.getProperty(PaeonConfig.PAEON_CFG_PROFILE_PREFIX + name);
+        if (stages != null) {
+            List<PipelineStage> selected = new ArrayList<>();
+            for (String stage : stages.split(",")) {
+                PipelineStage s = PipelineStage.fromName(stage);
+                if (s == null) {
+                    throw new IllegalArgumentException("Unknown pipeline stage '" + stage.trim() + "' in profile '" + name + "'");
+                }
+                selected.add(s);
+            }
+            if (selected.isEmpty()) {
+                throw new IllegalArgumentException("Pipeline profile '" + name + "' has no stages");
+            }
+            return new PipelineProfile(name, selected);
+        }
+        if (FAST.equals(name)) {
+            return new PipelineProfile(name, FAST_STAGES);
+        }
+        if (CLINICAL.equals(name)) {
+            return new PipelineProfile(name, CLINICAL_STAGES);
+        }
+        if (FULL_TEMPORAL.equals(name)) {
+            return new PipelineProfile(name, FULL_STAGES);
+        }
+        return null;
+    }
+
+    public static PipelineProfile full() {
+        return new PipelineProfile(FULL_TEMPORAL, FULL_STAGES);
+    }
+
+    @Override
+    public String toString() {
+        return name + Arrays.toString(stages.toArray());
+    }
+
+}
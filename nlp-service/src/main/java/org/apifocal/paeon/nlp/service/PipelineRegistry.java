@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.resource.ResourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide registry of the loaded NLP pipelines: one processor per JVM.
+ * <p>
+ * Loading the cTAKES models takes minutes and gigabytes, so all message listeners
+ * in a JVM share one processor (and its pipeline pool) instead of building their own.
+ * All pipeline instances are created with the same UIMA ResourceManager, so only the
+ * external resources bound in the descriptors (e.g. the LVG command API) are loaded
+ * once and shared by every instance, the same way a multi-threaded CPE shares them.
+ * The models the annotators load themselves (ClearNLP, SRL, constituency parser,
+ * temporal) are still loaded by each pipeline instance: size the pool for them.
+ */
+public final class PipelineRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelineRegistry.class);
+
+    private static ResourceManager resourceManager;
+    private static NLPProcessor processor;
+
+    private PipelineRegistry() {
+    }
+
+    public static synchronized ResourceManager getResourceManager() {
+        if (resourceManager == null) {
+            resourceManager = UIMAFramework.newDefaultResourceManager();
+        }
+        return resourceManager;
+    }
+
+    /**
+     * Returns the shared processor, creating it from the default configuration on first use.
+     */
+    public static NLPProcessor getProcessor() {
+        return getProcessor(new PaeonConfig());
+    }
+
+    /**
+     * Returns the shared processor, creating it from the given configuration on first use.
+     */
+    public static synchronized NLPProcessor getProcessor(PaeonConfig config) {
+        if (processor == null) {
+            LOG.info("Loading shared NLP processor ...");
+            processor = new CtakesProcessor(config);
+        }
+        return processor;
+    }
+
+    public static synchronized void setProcessor(NLPProcessor nlpProcessor) {
+        processor = nlpProcessor;
+    }
+
+    /**
+     * Drops the shared processor and resources; the next lookup loads them again.
+     */
+    public static synchronized void reset() {
+        if (processor instanceof CtakesProcessor) {
+            ((CtakesProcessor)processor).destroy();
+        }
+        processor = null;
+        if (resourceManager != null) {
+            resourceManager.destroy();
+            resourceManager = null;
+        }
+    }
+
+}
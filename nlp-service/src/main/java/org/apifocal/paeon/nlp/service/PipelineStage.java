@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.net.MalformedURLException;
+
+import org.apache.ctakes.assertion.medfacts.cleartk.PolarityCleartkAnalysisEngine;
+import org.apache.ctakes.assertion.medfacts.cleartk.UncertaintyCleartkAnalysisEngine;
+import org.apache.ctakes.chunker.ae.Chunker;
+import org.apache.ctakes.clinicalpipeline.ClinicalPipelineFactory;
+import org.apache.ctakes.constituency.parser.ae.ConstituencyParser;
+import org.apache.ctakes.contexttokenizer.ae.ContextDependentTokenizerAnnotator;
+import org.apache.ctakes.core.ae.SentenceDetector;
+import org.apache.ctakes.core.ae.SimpleSegmentAnnotator;
+import org.apache.ctakes.core.ae.TokenizerAnnotatorPTB;
+import org.apache.ctakes.dependency.parser.ae.ClearNLPDependencyParserAE;
+import org.apache.ctakes.dependency.parser.ae.ClearNLPSemanticRoleLabelerAE;
+import org.apache.ctakes.dictionary.lookup2.ae.AbstractJCasTermAnnotator;
+import org.apache.ctakes.dictionary.lookup2.ae.DefaultJCasTermAnnotator;
+import org.apache.ctakes.dictionary.lookup2.ae.JCasTermAnnotator;
+import org.apache.ctakes.lvg.ae.LvgAnnotator;
+import org.apache.ctakes.postagger.POSTagger;
+import org.apache.ctakes.temporal.ae.BackwardsTimeAnnotator;
+import org.apache.ctakes.temporal.ae.DocTimeRelAnnotator;
+import org.apache.ctakes.temporal.ae.EventAnnotator;
+import org.apache.ctakes.temporal.ae.EventEventRelationAnnotator;
+import org.apache.ctakes.temporal.ae.EventTimeSelfRelationAnnotator;
+import org.apache.ctakes.temporal.eval.Evaluation_ImplBase;
+import org.apache.ctakes.temporal.pipelines.FullTemporalExtractionPipeline;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.resource.ResourceInitializationException;
+
+/**
+ * The annotators a pipeline can be assembled from, in the order they must run.
+ * <p>
+ * Each stage is one delegate of the aggregate, named after the stage, so profiles
+ * can pick a subset of the chain and per-stage timings can be reported by name.
+ * <p>
+ * Stages that relate annotations across the whole document are {@link Scope#DOCUMENT}
+ * scoped; the others only look within sentences, so they can run on chunks of a long
+ * document independently.
+ * <p>
+ * The stages from the tokenizer to the dependency parser are also sentence local: what
+ * they annotate within a sentence only depends on the text of that sentence, so their
+ * output can be memoized per sentence, see SentenceMemo.
+ * <p>
+ * Based on https://github.com/healthnlp/examples/blob/master/ctakes-temporal-demo
+ */
+public enum PipelineStage {
+    SEGMENT("segment") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return AnalysisEngineFactory.createEngineDescription(SimpleSegmentAnnotator.class);
+        }
+    },
+    SENTENCE("sentence") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return SentenceDetector.createAnnotatorDescription();
+        }
+    },
+    TOKENIZER("tokenizer") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return TokenizerAnnotatorPTB.createAnnotatorDescription();
+        }
+    },
+    LVG("lvg") {
+        public AnalysisEngineDescription createDescription()
+                throws ResourceInitializationException, MalformedURLException {
+            return LvgAnnotator.createAnnotatorDescription();
+        }
+    },
+    CONTEXT_TOKENIZER("context-tokenizer") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return ContextDependentTokenizerAnnotator.createAnnotatorDescription();
+        }
+    },
+    POS("pos") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return POSTagger.createAnnotatorDescription();
+        }
+    },
+    CHUNKER("chunker") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return Chunker.createAnnotatorDescription();
+        }
+    },
+    CHUNK_ADJUSTER("chunk-adjuster") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return ClinicalPipelineFactory.getStandardChunkAdjusterAnnotator();
+        }
+    },
+    LOOKUP_WINDOWS("lookup-windows") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return AnalysisEngineFactory.createEngineDescription(Evaluation_ImplBase.CopyNPChunksToLookupWindowAnnotations.class);
+        }
+    },
+    REMOVE_ENCLOSED_WINDOWS("remove-enclosed-windows") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return AnalysisEngineFactory.createEngineDescription(Evaluation_ImplBase.RemoveEnclosedLookupWindows.class);
+        }
+    },
+    DICTIONARY("dictionary") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return createDescription((PaeonConfig)null);
+        }
+
+        @Override
+        public AnalysisEngineDescription createDescription(PaeonConfig config) throws ResourceInitializationException {
+            // TODO: the dictionary should be provided through a ProfileProvider.getDictiorary() (profile = customer = user)
+            String descriptor = dictionary(config);
+            return AnalysisEngineFactory.createEngineDescription(DefaultJCasTermAnnotator.class,
+                    AbstractJCasTermAnnotator.PARAM_WINDOW_ANNOT_KEY,
+                    "org.apache.ctakes.typesystem.type.textspan.Sentence",
+                    JCasTermAnnotator.DICTIONARY_DESCRIPTOR_KEY,
+                    descriptor);
+        }
+    },
+    DEPENDENCY_PARSER("dependency-parser") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return ClearNLPDependencyParserAE.createAnnotatorDescription();
+        }
+    },
+    POLARITY("polarity") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return PolarityCleartkAnalysisEngine.createAnnotatorDescription();
+        }
+    },
+    UNCERTAINTY("uncertainty") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return UncertaintyCleartkAnalysisEngine.createAnnotatorDescription();
+        }
+    },
+    SEMANTIC_ROLES("semantic-roles") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return AnalysisEngineFactory.createEngineDescription(ClearNLPSemanticRoleLabelerAE.class);
+        }
+    },
+    CONSTITUENCY_PARSER("constituency-parser") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return AnalysisEngineFactory.createEngineDescription(ConstituencyParser.class);
+        }
+    },
+    TIME("time") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return BackwardsTimeAnnotator
+                    .createAnnotatorDescription("/org/apache/ctakes/temporal/ae/timeannotator/model.jar");
+        }
+    },
+    EVENT("event") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return EventAnnotator
+                    .createAnnotatorDescription("/org/apache/ctakes/temporal/ae/eventannotator/model.jar");
+        }
+    },
+    EVENT_PROPERTIES("event-properties") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return AnalysisEngineFactory.createEngineDescription(FullTemporalExtractionPipeline.CopyPropertiesToTemporalEventAnnotator.class);
+        }
+    },
+    ADD_EVENT("add-event") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            // link event to eventMention
+            return AnalysisEngineFactory.createEngineDescription(CtakesProcessor.AddEvent.class);
+        }
+    },
+    DOCTIMEREL("doctimerel") {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return DocTimeRelAnnotator
+                    .createAnnotatorDescription("/org/apache/ctakes/temporal/ae/doctimerel/model.jar");
+        }
+    },
+    EVENT_TIME("event-time", Scope.DOCUMENT) {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return EventTimeSelfRelationAnnotator
+                    .createEngineDescription("/org/apache/ctakes/temporal/ae/eventtime/20150629/model.jar");
+        }
+    },
+    EVENT_EVENT("event-event", Scope.DOCUMENT) {
+        public AnalysisEngineDescription createDescription() throws ResourceInitializationException {
+            return EventEventRelationAnnotator
+                    .createAnnotatorDescription("/org/apache/ctakes/temporal/ae/eventevent/20150630/model.jar");
+        }
+    };
+
+    /**
+     * How much of the document a stage needs to see.
+     */
+    public enum Scope {
+        SECTION, DOCUMENT
+    }
+
+    private final String name;
+    private final Scope scope;
+
+    private PipelineStage(String name) {
+        this(name, Scope.SECTION);
+    }
+
+    private PipelineStage(String name, Scope scope) {
+        this.name = name;
+        this.scope = scope;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    /**
+     * Returns true if the annotations of the stage within a sentence only depend on the sentence text.
+     */
+    public boolean isSentenceLocal() {
+        return compareTo(TOKENIZER) >= 0 && compareTo(DEPENDENCY_PARSER) <= 0;
+    }
+
+    /** the JDBC (HSQLDB) backed lookup descriptor shipped with cTAKES */
+    public static final String DEFAULT_DICTIONARY = "org/apache/ctakes/dictionary/lookup/fast/sno_rx_16ab.xml";
+    /** the same dictionary, compiled into a memory mapped index, see MappedRareWordDictionary */
+    public static final String MAPPED_DICTIONARY = "org/apifocal/paeon/nlp/dictionary/sno_rx_16ab_mapped.xml";
+    /** the JDBC dictionary, with concepts cached in memory, see CachingConceptFactory */
+    public static final String CACHED_DICTIONARY = "org/apifocal/paeon/nlp/dictionary/sno_rx_16ab_cached.xml";
+
+    public abstract AnalysisEngineDescription createDescription()
+            throws ResourceInitializationException, MalformedURLException;
+
+    /**
+     * Creates the description with the settings in the configuration, if the stage has any.
+     */
+    public AnalysisEngineDescription createDescription(PaeonConfig config)
+            throws ResourceInitializationException, MalformedURLException {
+        return createDescription();
+    }
+
+    /**
+     * Returns the lookup descriptor of the dictionary stage, as configured by {@code paeon.dictionary}.
+     */
+    public static String dictionary(PaeonConfig config) {
+        return config == null ? DEFAULT_DICTIONARY : config.getProperty(PaeonConfig.PAEON_CFG_DICTIONARY, DEFAULT_DICTIONARY);
+    }
+
+    /**
+     * Returns the stage with the given configuration name, or null if there is none.
+     */
+    public static PipelineStage fromName(String name) {
+        for (PipelineStage stage : values()) {
+            if (stage.name.equalsIgnoreCase(name.trim())) {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+
+/**
+ * The annotation types and features to include in the JSON output.
+ * <p>
+ * A spec is a semicolon separated list of types, each with an optional bracketed list
+ * of feature paths, e.g.
+ * {@code IdentifiedAnnotation[polarity,uncertainty,ontologyConceptArr.cui];EventMention[event.properties.docTimeRel]}.
+ * Types are given by short or fully qualified name and match their subtypes too. A path
+ * follows features through referenced feature structures, fanning out over arrays.
+ * {@code coveredText} is also accepted as a feature of any annotation. Every projected
+ * annotation is emitted once, with its type, offsets and the union of the paths of all
+ * the types it matches.
+ */
+public class Projection {
+
+    public static final String COVERED_TEXT = "coveredText";
+
+    /** The default projection: concepts with their CUIs and assertion, events with their DocTimeRel. */
+    public static final String DEFAULT_SPEC =
+        "IdentifiedAnnotation[polarity,uncertainty,ontologyConceptArr.cui];EventMention[event.properties.docTimeRel]";
+
+    private final String spec;
+    // type name -> feature paths, each path split on '.'
+    private final Map<String, List<String[]>> paths = new LinkedHashMap<>();
+    // resolutions are per type system, which is normally one per pipeline pool
+    private final ConcurrentMap<TypeSystem, Map<Type, List<String[]>>> resolved = new ConcurrentHashMap<>();
+
+    public Projection(String spec) {
+        this.spec = spec;
+        for (String entry : spec.split(";")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            String type = entry;
+            List<String[]> features = new ArrayList<>();
+            int open = entry.indexOf('[');
+            if (open >= 0) {
+                if (!entry.endsWith("]")) {
+                    throw new IllegalArgumentException("Missing ']' in projection '" + entry + "'");
+                }
+                type = entry.substring(0, open).trim();
+                for (String path : entry.substring(open + 1, entry.length() - 1).split(",")) {
+                    path = path.trim();
+                    if (!path.isEmpty()) {
+                        features.add(path.split("\\."));
+                    }
+                }
+            }
+            if (type.isEmpty()) {
+                throw new IllegalArgumentException("Missing type name in projection '" + entry + "'");
+            }
+            paths.put(type, features);
+        }
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("Empty projection '" + spec + "'");
+        }
+    }
+
+    public String getSpec() {
+        return spec;
+    }
+
+    /**
+     * Resolves the projected type names in the given type system; unknown names are ignored.
+     */
+    public Map<Type, List<String[]>> resolve(TypeSystem typeSystem) {
+        Map<Type, List<String[]>> types = resolved.get(typeSystem);
+        if (types == null) {
+            types = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String[]>> e : paths.entrySet()) {
+                Type type = findType(typeSystem, e.getKey());
+                if (type != null) {
+                    types.put(type, e.getValue());
+                }
+            }
+            types = Collections.unmodifiableMap(types);
+            resolved.putIfAbsent(typeSystem, types);
+        }
+        return types;
+    }
+
+    private static Type findType(TypeSystem typeSystem, String name) {
+        Type type = typeSystem.getType(name);
+        if (type != null) {
+            return type;
+        }
+        Iterator<Type> it = typeSystem.getTypeIterator();
+        while (it.hasNext()) {
+            Type t = it.next();
+            if (name.equals(t.getShortName())) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+}
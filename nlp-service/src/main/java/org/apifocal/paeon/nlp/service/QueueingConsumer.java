@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumer loop feeding a WorkQueue, with admission control.
+ * <p>
+ * The next message is only received from the broker once the queue has capacity, so a
+ * burst stays on the broker instead of in the heap. The session must acknowledge messages
+ * individually: each message is acknowledged once the Worker that processed it sent the
+ * reply, so documents lost in a crash are redelivered. As a session is only used by one
+ * thread, the workers hand their messages back to this loop, which acknowledges them
+ * between receives. Messages too large for the queue, and messages whose processing
+ * failed, are rejected with an empty reply carrying a {@code PaeonError} property.
+ */
+public class QueueingConsumer implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(QueueingConsumer.class);
+
+    // how often an idle or paused loop checks if it was stopped
+    private static final long POLL = 500;
+
+    public static final String REJECTED_TOO_LARGE = "rejected: document too large";
+    public static final String REJECTED_FAILED = "rejected: processing failed";
+
+    private final MessageConsumer consumer;
+    private final PaeonMessageListener listener;
+    private final WorkQueue queue;
+    private volatile boolean running = true;
+    // processed by the workers, to acknowledge from the receiving thread
+    private final BlockingQueue<Message> completed = new LinkedBlockingQueue<>();
+    // received and not acknowledged yet
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * @param listener replies to rejected messages, from the receiving session
+     */
+    public QueueingConsumer(MessageConsumer consumer, PaeonMessageListener listener, WorkQueue queue) {
+        this.consumer = consumer;
+        this.listener = listener;
+        this.queue = queue;
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                acknowledgeCompleted();
+                if (!queue.awaitCapacity(POLL)) {
+                    LOG.debug("Delivery paused: {} queued, {} bytes", queue.getDepth(), queue.getBytes());
+                    continue;
+                }
+                Message message = consumer.receive(POLL);
+                if (message == null) {
+                    continue;
+                }
+                outstanding.incrementAndGet();
+                try {
+                    if (!queue.offer(message)) {
+                        LOG.warn("Rejected message {} of {} bytes", message.getJMSMessageID(), WorkQueue.estimate(message));
+                        reject(message, REJECTED_TOO_LARGE);
+                    }
+                } catch (JMSException | RuntimeException e) {
+                    LOG.error("Failed to queue message", e);
+                    reject(message, REJECTED_FAILED);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (JMSException | RuntimeException e) {
+                // FIXME: don't ignore forever
+                LOG.error("Failed to receive message", e);
+            }
+        }
+        // the workers drain the queue: acknowledge the messages as they are done
+        try {
+            while (outstanding.get() > 0) {
+                Message message = completed.poll(POLL, TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    acknowledge(message);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands a processed message back, to be acknowledged by the receiving thread.
+     */
+    public void complete(Message message) {
+        completed.add(message);
+    }
+
+    private void acknowledgeCompleted() {
+        Message message;
+        while ((message = completed.poll()) != null) {
+            acknowledge(message);
+        }
+    }
+
+    private void reject(Message message, String reason) {
+        try {
+            listener.reject(message, reason);
+        } catch (JMSException | RuntimeException e) {
+            // FIXME: no dead letter queue yet
+            LOG.error("Failed to reply to message {}; dropped", message, e);
+        } finally {
+            acknowledge(message);
+        }
+    }
+
+    private void acknowledge(Message message) {
+        try {
+            message.acknowledge();
+        } catch (JMSException e) {
+            // redelivered, e.g. after a failover
+            LOG.warn("Failed to acknowledge message: {}", e.getLocalizedMessage());
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stops receiving; queued messages are left to the workers, and acknowledged once processed.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Processes queued messages with its own listener, then hands them back to the receiver
+     * to acknowledge.
+     */
+    public static class Worker implements Runnable {
+        private final WorkQueue queue;
+        private final PaeonMessageListener listener;
+        private final QueueingConsumer receiver;
+        private volatile boolean running = true;
+
+        /**
+         * @param receiver the consumer loop that received the queued messages
+         */
+        public Worker(WorkQueue queue, PaeonMessageListener listener, QueueingConsumer receiver) {
+            this.queue = queue;
+            this.listener = listener;
+            this.receiver = receiver;
+        }
+
+        public void run() {
+            // drain the queue before stopping
+            while (running || queue.getDepth() > 0) {
+                WorkQueue.Work work;
+                try {
+                    work = queue.take(POLL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (work == null) {
+                    continue;
+                }
+                Message message = work.getMessage();
+                try {
+                    listener.handle(message);
+                } catch (JMSException | RuntimeException e) {
+                    LOG.error("Failed to process message", e);
+                    try {
+                        listener.reject(message, REJECTED_FAILED);
+                    } catch (JMSException | RuntimeException r) {
+                        // FIXME: no dead letter queue yet
+                        LOG.error("Failed to reply to message {}; dropped", message, r);
+                    }
+                } finally {
+                    queue.release(work);
+                    receiver.complete(message);
+                }
+            }
+        }
+
+        /**
+         * Stops once the queue is drained.
+         */
+        public void stop() {
+            running = false;
+        }
+    }
+
+}
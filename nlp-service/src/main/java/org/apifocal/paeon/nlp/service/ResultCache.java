@@ -0,0 +1,389 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ctakes.typesystem.type.textsem.IdentifiedAnnotation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed cache of serialized results, so resubmitted notes are not analyzed again.
+ * <p>
+ * Entries are keyed by the SHA-256 of the document text and of everything else that
+ * changes the result: the fingerprint of the pipeline (see {@link #fingerprint(PaeonConfig, PipelineProfile)}),
+ * format and projection. Since the disk tier survives restarts, a changed profile definition,
+ * dictionary or release of the service or cTAKES thus misses the results of the previous one.
+ * The text is hashed exactly as received, since results carry it along with character offsets
+ * into it.
+ * <p>
+ * There are two LRU tiers, both bounded in bytes: a heap tier ({@code paeon.cache.heap.size},
+ * in MB, 0 disables caching) and an optional disk tier in {@code paeon.cache.dir}
+ * ({@code paeon.cache.disk.size}, in MB). Entries expire {@code paeon.cache.ttl} seconds
+ * after they were stored (0 means never). Lookups are recorded in the {@code cache.hit}
+ * and {@code cache.miss} histograms, whose counts give the hit rate.
+ */
+public class ResultCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ResultCache.class);
+
+    public static final String CACHE_HIT = "cache.hit";
+    public static final String CACHE_MISS = "cache.miss";
+
+    /** Version of the serialized results, to bump when they change for the same pipeline */
+    static final int VERSION = 1;
+
+    private static final long MB = 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long heapLimit;
+    private final long diskLimit;
+    private final long ttl;
+    private final Path dir;
+
+    // both in access order, guarded by this
+    private final LinkedHashMap<String, Entry> heap = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(64, 0.75f, true);
+    private long heapSize;
+    private long diskSize;
+
+    private static class Entry {
+        final byte[] data;
+        final long created;
+
+        Entry(byte[] data, long created) {
+            this.data = data;
+            this.created = created;
+        }
+    }
+
+    /**
+     * @param heapLimit max bytes kept in heap
+     * @param dir directory of the disk tier, or null for none
+     * @param diskLimit max bytes kept on disk
+     * @param ttl millis an entry stays valid, 0 for ever
+     */
+    public ResultCache(long heapLimit, Path dir, long diskLimit, long ttl) throws IOException {
+        this.heapLimit = heapLimit;
+        this.dir = diskLimit > 0 ? dir : null;
+        this.diskLimit = diskLimit;
+        this.ttl = ttl;
+        if (this.dir != null) {
+            Files.createDirectories(this.dir);
+            loadDiskIndex();
+        }
+    }
+
+    /**
+     * Creates the cache configured in {@code paeon.cache.*}, or returns null if caching is disabled.
+     */
+    public static ResultCache create(PaeonConfig config) {
+        if (config == null) {
+            return null;
+        }
+        long heapLimit = config.getLongProperty(PaeonConfig.PAEON_CFG_CACHE_HEAP_SIZE, 64) * MB;
+        if (heapLimit <= 0) {
+            return null;
+        }
+        String dir = config.getProperty(PaeonConfig.PAEON_CFG_CACHE_DIR);
+        long diskLimit = config.getLongProperty(PaeonConfig.PAEON_CFG_CACHE_DISK_SIZE, 1024) * MB;
+        long ttl = config.getLongProperty(PaeonConfig.PAEON_CFG_CACHE_TTL, 0) * 1000;
+        try {
+            LOG.info("Result cache: {} MB heap, {}", heapLimit / MB, dir == null ? "no disk tier" : (diskLimit / MB + " MB in " + dir));
+            return new ResultCache(heapLimit, dir == null ? null : Paths.get(dir), diskLimit, ttl);
+        } catch (IOException e) {
+            LOG.warn("Cannot use result cache directory '{}': {}; caching in heap only", dir, e.getLocalizedMessage());
+            try {
+                return new ResultCache(heapLimit, null, 0, ttl);
+            } catch (IOException never) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns what the results of a profile depend on, besides the request: its name and
+     * stages, the dictionary, and the versions of the results, the service and cTAKES.
+     */
+    public static String fingerprint(PaeonConfig config, PipelineProfile profile) {
+        StringBuilder fingerprint = new StringBuilder();
+        fingerprint.append(VERSION).append('\n').append(version(ResultCache.class))
+            .append('\n').append(version(IdentifiedAnnotation.class))
+            .append('\n').append(profile.getName()).append(':');
+        for (PipelineStage stage : profile.getStages()) {
+            fingerprint.append(stage.getName()).append(',');
+        }
+        fingerprint.append('\n').append(PipelineStage.dictionary(config));
+        return fingerprint.toString();
+    }
+
+    /**
+     * Returns the version of the jar of a class, or its location if the jar has none.
+     */
+    private static String version(Class<?> c) {
+        String version = c.getPackage() == null ? null : c.getPackage().getImplementationVersion();
+        if (version == null && c.getProtectionDomain().getCodeSource() != null) {
+            // the jar name has the version
+            version = String.valueOf(c.getProtectionDomain().getCodeSource().getLocation());
+        }
+        return String.valueOf(version);
+    }
+
+    /**
+     * Returns the cache key of a request.
+     *
+     * @param fingerprint the fingerprint of the profile that processes it
+     * @param projection the projection of its JSON results, the default one if it does not set one
+     */
+    public static String key(NLPRequest request, String fingerprint, String projection) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE has SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(request.getText().getBytes(StandardCharsets.UTF_8));
+        // the separator cannot occur in UTF-8 text
+        byte[] sep = new byte[] {(byte)0xff};
+        digest.update(sep);
+        digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+        digest.update(sep);
+        digest.update(request.getFormat().getName().getBytes(StandardCharsets.UTF_8));
+        if (request.getFormat() == OutputFormat.JSON && projection != null) {
+            digest.update(sep);
+            digest.update(projection.getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Writes the cached result for the key, if any.
+     *
+     * @return true if the result was found and written
+     */
+    public boolean get(String key, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        byte[] data = lookup(key);
+        if (data == null) {
+            PaeonMetrics.histogram(CACHE_MISS).recordSince(start);
+            return false;
+        }
+        out.write(data);
+        PaeonMetrics.histogram(CACHE_HIT).recordSince(start);
+        return true;
+    }
+
+    private byte[] lookup(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = heap.get(key);
+            if (entry != null) {
+                if (!expired(entry.created, now)) {
+                    return entry.data;
+                }
+                removeHeap(key);
+            }
+            if (dir == null || !disk.containsKey(key)) {
+                return null;
+            }
+        }
+        Path file = dir.resolve(key);
+        try {
+            long created = Files.getLastModifiedTime(file).toMillis();
+            if (expired(created, now)) {
+                remove(key);
+                return null;
+            }
+            byte[] data = Files.readAllBytes(file);
+            synchronized (this) {
+                putHeap(key, new Entry(data, created));
+            }
+            return data;
+        } catch (IOException e) {
+            // evicted concurrently, or not readable
+            remove(key);
+            return null;
+        }
+    }
+
+    public void put(String key, byte[] data) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            putHeap(key, new Entry(data, now));
+        }
+        if (dir == null || data.length > diskLimit) {
+            return;
+        }
+        try {
+            Path tmp = Files.createTempFile(dir, key, ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, dir.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            List<String> evicted = new ArrayList<>();
+            synchronized (this) {
+                Long previous = disk.put(key, (long)data.length);
+                diskSize += data.length - (previous == null ? 0 : previous);
+                Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+                while (diskSize > diskLimit && it.hasNext()) {
+                    Map.Entry<String, Long> e = it.next();
+                    if (!e.getKey().equals(key)) {
+                        diskSize -= e.getValue();
+                        evicted.add(e.getKey());
+                        it.remove();
+                    }
+                }
+            }
+            for (String k : evicted) {
+                Files.deleteIfExists(dir.resolve(k));
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to write result cache entry: {}", e.getLocalizedMessage());
+        }
+    }
+
+    public void remove(String key) {
+        synchronized (this) {
+            removeHeap(key);
+            Long size = disk.remove(key);
+            if (size == null) {
+                return;
+            }
+            diskSize -= size;
+        }
+        try {
+            Files.deleteIfExists(dir.resolve(key));
+        } catch (IOException e) {
+            LOG.warn("Failed to remove result cache entry: {}", e.getLocalizedMessage());
+        }
+    }
+
+    public synchronized void clear() {
+        heap.clear();
+        heapSize = 0;
+        for (String key : disk.keySet()) {
+            try {
+                Files.deleteIfExists(dir.resolve(key));
+            } catch (IOException e) {
+                LOG.warn("Failed to remove result cache entry: {}", e.getLocalizedMessage());
+            }
+        }
+        disk.clear();
+        diskSize = 0;
+    }
+
+    public synchronized int getHeapEntries() {
+        return heap.size();
+    }
+
+    public synchronized long getHeapSize() {
+        return heapSize;
+    }
+
+    public synchronized int getDiskEntries() {
+        return disk.size();
+    }
+
+    public synchronized long getDiskSize() {
+        return diskSize;
+    }
+
+    private boolean expired(long created, long now) {
+        return ttl > 0 && now - created > ttl;
+    }
+
+    private void putHeap(String key, Entry entry) {
+        if (entry.data.length > heapLimit) {
+            return;
+        }
+        removeHeap(key);
+        heap.put(key, entry);
+        heapSize += entry.data.length;
+        Iterator<Entry> it = heap.values().iterator();
+        while (heapSize > heapLimit && it.hasNext()) {
+            heapSize -= it.next().data.length;
+            it.remove();
+        }
+    }
+
+    private void removeHeap(String key) {
+        Entry entry = heap.remove(key);
+        if (entry != null) {
+            heapSize -= entry.data.length;
+        }
+    }
+
+    /**
+     * Picks up the entries left by a previous run, oldest first so they are evicted first.
+     */
+    private void loadDiskIndex() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                } else if (name.length() == 64) {
+                    files.add(file);
+                }
+            }
+        }
+        final Map<Path, Long> modified = new LinkedHashMap<>();
+        for (Path file : files) {
+            modified.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+        Collections.sort(files, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                return Long.compare(modified.get(a), modified.get(b));
+            }
+        });
+        for (Path file : files) {
+            long size = Files.size(file);
+            disk.put(file.getFileName().toString(), size);
+            diskSize += size;
+        }
+        Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+        while (diskSize > diskLimit && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            diskSize -= e.getValue();
+            Files.deleteIfExists(dir.resolve(e.getKey()));
+            it.remove();
+        }
+        LOG.info("Result cache: {} entries ({} bytes) found in {}", disk.size(), diskSize, dir);
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the results of a ResultStore over HTTP, at {@code /results/<reference>}.
+ * <p>
+ * The server listens on {@code paeon.store.port} (0 = no server) of {@code paeon.store.host}
+ * (all interfaces by default), and replies with a claim check carry the URL of their result,
+ * under {@code paeon.store.url} (by default the URL of this host and port). Results are sent
+ * straight from the mapped segments; requesters fetch them with {@link #fetch(String)}, or
+ * any HTTP client. A reference is only found with its random token, there is no other
+ * access control, so bind the server to an interface only the requesters reach.
+ * <p>
+ * While running, the server also drops the expired segments of the store.
+ */
+public class ResultServer {
+    private static final Logger LOG = LoggerFactory.getLogger(ResultServer.class);
+
+    public static final String PATH = "/results/";
+
+    // how often expired segments are dropped, at most
+    private static final long EXPIRY_INTERVAL = 60 * 1000;
+
+    private final ResultStore store;
+    private final Server server;
+    private final String host;
+    private String url;
+    private ScheduledExecutorService expiry;
+
+    /**
+     * @param host address to listen on, or null for all
+     * @param port port to listen on, 0 for any
+     * @param url base URL of the results, or null for this host and port
+     */
+    public ResultServer(final ResultStore store, String host, int port, String url) {
+        this.store = store;
+        this.host = host;
+        this.url = url;
+        this.server = host == null ? new Server(port) : new Server(new InetSocketAddress(host, port));
+        server.setHandler(new AbstractHandler() {
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException {
+                baseRequest.setHandled(true);
+                if (!"GET".equals(request.getMethod()) || !target.startsWith(PATH)) {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                ByteBuffer result = store.get(target.substring(PATH.length()));
+                if (result == null) {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                response.setContentType("application/octet-stream");
+                response.setContentLength(result.remaining());
+                ((HttpOutput)response.getOutputStream()).sendContent(result);
+            }
+        });
+    }
+
+    /**
+     * Starts the server configured in {@code paeon.store.*}, or returns null if there is none.
+     */
+    public static ResultServer start(PaeonConfig config, ResultStore store) {
+        int port = config.getIntProperty(PaeonConfig.PAEON_CFG_STORE_PORT, 0);
+        if (store == null) {
+            return null;
+        }
+        if (port <= 0) {
+            LOG.warn("'{}' is set but not '{}'", PaeonConfig.PAEON_CFG_STORE_DIR, PaeonConfig.PAEON_CFG_STORE_PORT);
+            return null;
+        }
+        String host = config.getProperty(PaeonConfig.PAEON_CFG_STORE_HOST);
+        host = host == null || host.trim().isEmpty() ? null : host.trim();
+        ResultServer server = new ResultServer(store, host, port, config.getProperty(PaeonConfig.PAEON_CFG_STORE_URL));
+        try {
+            server.start();
+            return server;
+        } catch (Exception e) {
+            LOG.warn("Failed to start the result server on port {}: {}; stored results are only local", port, e.getLocalizedMessage());
+            server.stop();
+            return null;
+        }
+    }
+
+    public void start() throws Exception {
+        server.start();
+        int port = ((ServerConnector)server.getConnectors()[0]).getLocalPort();
+        if (url == null) {
+            String name = host;
+            if (name == null) {
+                try {
+                    name = InetAddress.getLocalHost().getCanonicalHostName();
+                } catch (UnknownHostException e) {
+                    name = "localhost";
+                }
+            }
+            url = "http://" + name + ":" + port + PATH;
+        } else if (!url.endsWith("/")) {
+            url += "/";
+        }
+        LOG.info("Result server listening on port {}, at {}", port, url);
+        if (store.getTtl() > 0) {
+            // results may stop coming, and the expired segments with them would stay
+            long interval = Math.max(1, Math.min(store.getTtl(), EXPIRY_INTERVAL));
+            expiry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "paeon-store");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            expiry.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    store.expire();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        if (expiry != null) {
+            expiry.shutdownNow();
+            expiry = null;
+        }
+        try {
+            server.stop();
+        } catch (Exception e) {
+            LOG.warn("Failed to stop the result server: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Returns the URL of a stored result.
+     */
+    public String getUrl(String reference) {
+        return url + reference;
+    }
+
+    public ResultStore getStore() {
+        return store;
+    }
+
+    /**
+     * Fetches a stored result from its URL, the {@code PaeonClaimUrl} of a reply.
+     *
+     * @throws IOException if the result cannot be fetched, e.g. it was dropped from the store
+     */
+    public static byte[] fetch(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Failed to fetch " + url + ": HTTP " + connection.getResponseCode());
+            }
+            int length = connection.getContentLength();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 64 * 1024);
+            try (InputStream in = connection.getInputStream()) {
+                byte[] b = new byte[64 * 1024];
+                for (int n; (n = in.read(b)) > 0;) {
+                    out.write(b, 0, n);
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Claim-check store for large results, so they are not carried through the broker.
+ * <p>
+ * Results of at least {@code paeon.store.threshold} bytes are appended to segment files
+ * in {@code paeon.store.dir} (no directory disables the store), and the reply only carries
+ * a reference to them, see PaeonMessageListener; the store is only used when served by a
+ * ResultServer. A new segment is started once the current
+ * one reaches {@code paeon.store.segment.size} MB. Whole segments are dropped once older than
+ * {@code paeon.store.ttl} seconds, or, oldest first, while the store is over
+ * {@code paeon.store.size} MB; a reference to a dropped result is no longer found. Expired
+ * segments are dropped as results are stored, and by {@link #expire()}, which the ResultServer
+ * runs periodically.
+ * <p>
+ * A reference is the segment number and the offset of the result in it, so the index is
+ * just the list of segments, and a random token stored with the result, so references
+ * cannot be guessed from one another. Results are read from memory mapped segments, without
+ * copying, and may be served over HTTP by a ResultServer.
+ * The segment being written is only mapped around the result read, as it still grows. Segments are not synced: a result lost
+ * in a crash is analyzed again by the requester, like any other lost reply.
+ */
+public class ResultStore implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ResultStore.class);
+
+    public static final String STORE_PUT = "store.put";
+    public static final String STORE_GET = "store.get";
+
+    static final int MAGIC = 0x50525354; // "PRST"
+    // magic, length and token of each result
+    static final int HEADER = 16;
+
+    private static final long MB = 1024 * 1024;
+    private static final String SUFFIX = ".seg";
+
+    private final Path dir;
+    private final int threshold;
+    private final long segmentSize;
+    private final long limit;
+    private final long ttl;
+    private final SecureRandom random = new SecureRandom();
+
+    // by number, guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private FileChannel writer;
+    private long size;
+    private long next;
+
+    private static class Segment {
+        final long number;
+        final Path path;
+        // bytes written, guarded by the store
+        volatile long size;
+        volatile long modified;
+        // no longer written
+        volatile boolean sealed;
+        // guarded by this
+        private ByteBuffer mapped;
+
+        Segment(long number, Path path, long size, long modified, boolean sealed) {
+            this.number = number;
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.sealed = sealed;
+        }
+
+        /**
+         * Returns the result at position, or null if there is none with that token.
+         */
+        ByteBuffer read(long position, long token) throws IOException {
+            if (sealed) {
+                ByteBuffer buffer = map();
+                if (position + HEADER > buffer.capacity()) {
+                    return null;
+                }
+                buffer.position((int)position);
+                int length = length(buffer, position, token);
+                if (length < 0 || position + HEADER + length > buffer.capacity()) {
+                    return null;
+                }
+                buffer.limit((int)position + HEADER + length).position((int)position + HEADER);
+                return buffer.slice();
+            }
+            // mapping the whole segment again each time it grew would churn address space
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                // a file read is only short at its end
+                if (channel.read(header, position) < HEADER) {
+                    return null;
+                }
+                header.flip();
+                int length = length(header, position, token);
+                return length < 0 ? null : channel.map(FileChannel.MapMode.READ_ONLY, position + HEADER, length);
+            }
+        }
+
+        /**
+         * Returns the length of the result with the header at the buffer position, or -1
+         * if the header is not valid.
+         */
+        private int length(ByteBuffer header, long position, long token) {
+            int at = header.position();
+            int length = header.getInt(at + 4);
+            if (header.getInt(at) != MAGIC || header.getLong(at + 8) != token
+                    || length < 0 || position + HEADER + length > size) {
+                return -1;
+            }
+            return length;
+        }
+
+        private synchronized ByteBuffer map() throws IOException {
+            if (mapped == null) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+                }
+            }
+            return mapped.duplicate();
+        }
+    }
+
+    /**
+     * @param dir directory of the segments
+     * @param threshold min bytes of a result to store
+     * @param segmentSize bytes after which a new segment is started
+     * @param limit max bytes kept in all segments
+     * @param ttl millis a segment is kept after its last result, 0 for ever
+     */
+    public ResultStore(Path dir, int threshold, long segmentSize, long limit, long ttl) throws IOException {
+        this.dir = dir;
+        this.threshold = Math.max(1, threshold);
+        // references address segments with ints
+        this.segmentSize = Math.max(HEADER, Math.min(segmentSize, Integer.MAX_VALUE / 2));
+        this.limit = limit;
+        this.ttl = ttl;
+        Files.createDirectories(dir);
+        loadSegments();
+    }
+
+    /**
+     * Creates the store configured in {@code paeon.store.*}, or returns null if it is disabled.
+     */
+    public static ResultStore create(PaeonConfig config) {
+        String dir = config == null ? null : config.getProperty(PaeonConfig.PAEON_CFG_STORE_DIR);
+        if (dir == null || dir.trim().isEmpty()) {
+            return null;
+        }
+        int threshold = config.getIntProperty(PaeonConfig.PAEON_CFG_STORE_THRESHOLD, 1024 * 1024);
+        long segmentSize = config.getLongProperty(PaeonConfig.PAEON_CFG_STORE_SEGMENT_SIZE, 64) * MB;
+        long limit = config.getLongProperty(PaeonConfig.PAEON_CFG_STORE_SIZE, 4096) * MB;
+        long ttl = config.getLongProperty(PaeonConfig.PAEON_CFG_STORE_TTL, 3600) * 1000;
+        try {
+            LOG.info("Result store: results of {} bytes and more, {} MB in {}", threshold, limit / MB, dir);
+            return new ResultStore(Paths.get(dir.trim()), threshold, segmentSize, limit, ttl);
+        } catch (IOException e) {
+            LOG.warn("Cannot use result store directory '{}': {}; results are replied inline", dir, e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if a result of that many bytes should be stored rather than replied inline.
+     */
+    public boolean accepts(int length) {
+        return length >= threshold && length + HEADER <= limit;
+    }
+
+    /**
+     * Appends a result and returns its reference, or null if it could not be written.
+     */
+    public String put(byte[] data, int offset, int length) {
+        long start = System.nanoTime();
+        long token = random.nextLong();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putInt(length).putLong(token).flip();
+        ByteBuffer content = ByteBuffer.wrap(data, offset, length);
+        String reference;
+        List<Segment> dropped;
+        synchronized (this) {
+            try {
+                if (active == null || (active.size > 0 && active.size + HEADER + length > segmentSize)) {
+                    roll();
+                }
+                long position = active.size;
+                while (header.hasRemaining()) {
+                    writer.write(header, position + header.position());
+                }
+                while (content.hasRemaining()) {
+                    writer.write(content, position + HEADER + content.position() - offset);
+                }
+                active.size = position + HEADER + length;
+                active.modified = System.currentTimeMillis();
+                size += HEADER + length;
+                reference = reference(active.number, position, token);
+            } catch (IOException e) {
+                LOG.warn("Failed to store result: {}", e.getLocalizedMessage());
+                // the next result starts a new segment
+                seal();
+                return null;
+            }
+            dropped = retain(active.modified);
+        }
+        delete(dropped);
+        PaeonMetrics.histogram(STORE_PUT).recordSince(start);
+        return reference;
+    }
+
+    /**
+     * Returns the stored result as a read only view of its mapped segment, or null if the
+     * reference is not (or no longer) in the store.
+     */
+    public ByteBuffer get(String reference) {
+        long start = System.nanoTime();
+        long number;
+        long position;
+        long token;
+        try {
+            String[] parts = reference.split("-");
+            if (parts.length != 3) {
+                return null;
+            }
+            number = Long.parseLong(parts[0], 16);
+            position = Long.parseLong(parts[1], 16);
+            token = Long.parseUnsignedLong(parts[2], 16);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        Segment segment;
+        synchronized (this) {
+            segment = segments.get(number);
+        }
+        if (segment == null || position < 0 || position + HEADER > segment.size) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = segment.read(position, token);
+            if (buffer == null) {
+                return null;
+            }
+            PaeonMetrics.histogram(STORE_GET).recordSince(start);
+            return buffer.asReadOnlyBuffer();
+        } catch (IOException e) {
+            // dropped concurrently, or not readable
+            LOG.debug("Failed to read stored result {}: {}", reference, e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the stored result to the channel, e.g. a socket, straight from the mapped segment.
+     *
+     * @return false if the reference is not in the store
+     */
+    public boolean transferTo(String reference, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = get(reference);
+        if (buffer == null) {
+            return false;
+        }
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the segments past their time to live, including the one being written if no
+     * result was stored in it since; also done as results are stored.
+     */
+    public void expire() {
+        List<Segment> dropped;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (active != null && ttl > 0 && now - active.modified > ttl) {
+                // the next result starts a new segment
+                seal();
+            }
+            dropped = retain(now);
+        }
+        delete(dropped);
+    }
+
+    /**
+     * Returns the millis a segment is kept after its last result, 0 for ever.
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        seal();
+    }
+
+    static String reference(long segment, long position, long token) {
+        return Long.toHexString(segment) + "-" + Long.toHexString(position) + "-" + Long.toHexString(token);
+    }
+
+    private void roll() throws IOException {
+        seal();
+        // numbered by time, so references from the segments of a previous run are never reused
+        long number = Math.max(next, System.currentTimeMillis());
+        next = number + 1;
+        Path path = dir.resolve(String.format("%016x", number) + SUFFIX);
+        writer = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        active = new Segment(number, path, 0, System.currentTimeMillis(), false);
+        segments.put(number, active);
+    }
+
+    /**
+     * Stops writing the active segment, which is then mapped whole when read.
+     */
+    private void seal() {
+        closeWriter();
+        if (active != null) {
+            active.sealed = true;
+            active = null;
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close result store segment: {}", e.getLocalizedMessage());
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Removes the expired segments, then the oldest while over the limit, always keeping
+     * the active one; returns the segments to delete.
+     */
+    private List<Segment> retain(long now) {
+        List<Segment> dropped = new ArrayList<>();
+        Iterator<Segment> it = segments.values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == active || !(size > limit || (ttl > 0 && now - segment.modified > ttl))) {
+                break;
+            }
+            size -= segment.size;
+            dropped.add(segment);
+            it.remove();
+        }
+        return dropped;
+    }
+
+    private void delete(List<Segment> dropped) {
+        for (Segment segment : dropped) {
+            try {
+                // results still being read stay mapped
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                LOG.warn("Failed to remove result store segment: {}", e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Picks up the segments left by a previous run; results are only appended to new segments.
+     */
+    private void loadSegments() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    long number = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+                    long length = Files.size(file);
+                    segments.put(number, new Segment(number, file, length, Files.getLastModifiedTime(file).toMillis(), true));
+                    size += length;
+                    next = Math.max(next, number + 1);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring '{}' in result store {}", name, dir);
+                }
+            }
+        }
+        delete(retain(System.currentTimeMillis()));
+        LOG.info("Result store: {} segments ({} bytes) found in {}", segments.size(), size, dir);
+    }
+
+}
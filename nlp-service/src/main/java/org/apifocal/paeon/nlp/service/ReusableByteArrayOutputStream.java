@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A ByteArrayOutputStream whose buffer can be read in place and reused across documents.
+ * <p>
+ * Results are serialized straight into the buffer and copied out only once, into the
+ * outgoing message. After a reset the buffer keeps its capacity, unless it grew beyond
+ * {@code maxRetained} bytes for an unusually large document, in which case it shrinks
+ * back to the initial size so one huge note does not pin memory forever.
+ */
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+    private final int initialSize;
+    private final int maxRetained;
+
+    public ReusableByteArrayOutputStream(int initialSize, int maxRetained) {
+        super(initialSize);
+        this.initialSize = initialSize;
+        this.maxRetained = maxRetained;
+    }
+
+    /**
+     * Returns the internal buffer; only the first size() bytes are valid.
+     */
+    public synchronized byte[] getBuffer() {
+        return buf;
+    }
+
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        if (buf.length > maxRetained) {
+            buf = new byte[initialSize];
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The annotations of the sentences of the latest revision of each document, for the
+ * incremental re-analysis of revised notes, see SentenceMemo.
+ * <p>
+ * A request naming its document ({@code PaeonDocumentId}) keeps the annotations of its
+ * sentences under that id. A request naming a previous revision ({@code PaeonPreviousId},
+ * by default its own document id) replays the annotations of the sentences it still has,
+ * so only new or edited sentences are annotated again; the stages after the sentence local
+ * ones always run on the whole revision, so the result is the same as a full analysis.
+ * <p>
+ * The store is an LRU bounded in bytes ({@code paeon.revisions.size}, in MB, 0 disables it).
+ * Lookups are recorded in the {@code revision.hit} and {@code revision.miss} histograms.
+ */
+public class RevisionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(RevisionStore.class);
+
+    public static final String REVISION_HIT = "revision.hit";
+    public static final String REVISION_MISS = "revision.miss";
+
+    private static final long MB = 1024 * 1024;
+    // heap taken by an entry besides its chars and encoded bytes, as in SentenceCache
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long limit;
+
+    // in access order, guarded by this
+    private final LinkedHashMap<String, Revision> revisions = new LinkedHashMap<>(256, 0.75f, true);
+    private long size;
+
+    private static class Revision {
+        final String profile;
+        final Map<String, CasFragment> sentences;
+        final long size;
+
+        Revision(String id, String profile, Map<String, CasFragment> sentences) {
+            this.profile = profile;
+            this.sentences = sentences;
+            long bytes = ENTRY_OVERHEAD + 2L * id.length();
+            for (Map.Entry<String, CasFragment> e : sentences.entrySet()) {
+                bytes += ENTRY_OVERHEAD + 2L * e.getKey().length() + e.getValue().size();
+            }
+            this.size = bytes;
+        }
+    }
+
+    /**
+     * @param limit max bytes taken by the revisions
+     */
+    public RevisionStore(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Creates the store configured in {@code paeon.revisions.size}, or returns null if disabled.
+     */
+    public static RevisionStore create(PaeonConfig config) {
+        if (config == null) {
+            return null;
+        }
+        long limit = config.getLongProperty(PaeonConfig.PAEON_CFG_REVISIONS_SIZE, 0) * MB;
+        if (limit <= 0) {
+            return null;
+        }
+        LOG.info("Revision store: {} MB", limit / MB);
+        return new RevisionStore(limit);
+    }
+
+    /**
+     * Returns the annotations of the sentences of a revision, by sentence text, or null if
+     * the revision is not known or was annotated by other stages.
+     *
+     * @param profile the name of the memo part the revision was annotated with
+     */
+    public Map<String, CasFragment> get(String id, String profile) {
+        long start = System.nanoTime();
+        Revision revision;
+        synchronized (this) {
+            revision = revisions.get(id);
+        }
+        boolean hit = revision != null && revision.profile.equals(profile);
+        PaeonMetrics.histogram(hit ? REVISION_HIT : REVISION_MISS).recordSince(start);
+        return hit ? revision.sentences : null;
+    }
+
+    /**
+     * Keeps the annotations of the sentences of a revision, replacing the previous revision.
+     */
+    public synchronized void put(String id, String profile, Map<String, CasFragment> sentences) {
+        Revision revision = new Revision(id, profile, sentences);
+        Revision previous = revisions.remove(id);
+        if (previous != null) {
+            size -= previous.size;
+        }
+        if (revision.size > limit) {
+            return;
+        }
+        revisions.put(id, revision);
+        size += revision.size;
+        Iterator<Revision> it = revisions.values().iterator();
+        while (size > limit && it.hasNext()) {
+            size -= it.next().size;
+            it.remove();
+        }
+    }
+
+    public synchronized int getCount() {
+        return revisions.size();
+    }
+
+    /**
+     * Returns the estimated heap taken by the revisions, in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Splits long documents into chunks at section headings.
+ * <p>
+ * Headings are recognized with the MITRE zoner section patterns, e.g. the bundled
+ * {@code section_regex.xml} and {@code mayo_sections.xml}: {@code <fragment>}s are expanded
+ * into the {@code <section><regex>}s that reference them, and a heading only counts
+ * if it starts a line. Consecutive sections are grouped into chunks of about the target
+ * size; a section longer than twice the target is further split at blank lines.
+ */
+public class SectionSplitter {
+    private static final Logger LOG = LoggerFactory.getLogger(SectionSplitter.class);
+
+    public static final String DEFAULT_SECTIONS = "org/mitre/medfacts/uima/section_regex.xml";
+
+    private static final int MAX_NESTING = 16;
+    private static final Pattern PARAGRAPH = Pattern.compile("\\n[ \\t]*\\n");
+
+    private final List<Pattern> headings = new ArrayList<>();
+
+    /**
+     * @param resources comma separated classpath resources with section patterns
+     */
+    public SectionSplitter(String resources) throws IOException {
+        for (String resource : resources.split(",")) {
+            if (!resource.trim().isEmpty()) {
+                load(resource.trim());
+            }
+        }
+    }
+
+    private void load(String resource) throws IOException {
+        InputStream in = SectionSplitter.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Section patterns '" + resource + "' not found");
+        }
+        int loaded = 0;
+        try {
+            Document xml = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+            Map<String, Element> fragments = new HashMap<>();
+            NodeList nodes = xml.getElementsByTagName("fragment");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Element fragment = (Element)nodes.item(i);
+                fragments.put(text(fragment, "name").trim(), child(fragment, "expansion"));
+            }
+            nodes = xml.getElementsByTagName("regex");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Element regex = (Element)nodes.item(i);
+                int flags = Pattern.MULTILINE;
+                if (!"false".equals(regex.getAttribute("ignore-case"))) {
+                    flags |= Pattern.CASE_INSENSITIVE;
+                }
+                String expanded = expand(regex, fragments, 0);
+                try {
+                    headings.add(Pattern.compile(expanded, flags));
+                    loaded++;
+                } catch (PatternSyntaxException e) {
+                    LOG.warn("Ignoring invalid section pattern '{}': {}", expanded, e.getDescription());
+                }
+            }
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new IOException("Failed to read section patterns '" + resource + "'", e);
+        } finally {
+            in.close();
+        }
+        LOG.info("Loaded {} section patterns from {}", loaded, resource);
+    }
+
+    public int getPatternCount() {
+        return headings.size();
+    }
+
+    /**
+     * Returns the offsets where recognized sections start, in increasing order.
+     */
+    public List<Integer> findSections(String text) {
+        TreeSet<Integer> starts = new TreeSet<>();
+        for (Pattern heading : headings) {
+            Matcher m = heading.matcher(text);
+            while (m.find()) {
+                int start = lineStart(text, m.start());
+                if (start >= 0) {
+                    starts.add(start);
+                }
+            }
+        }
+        return new ArrayList<>(starts);
+    }
+
+    /**
+     * Splits the text in chunks of about {@code target} chars, at section starts.
+     *
+     * @return the chunk boundaries: chunk i spans [result[i], result[i + 1])
+     */
+    public int[] split(String text, int target) {
+        List<Integer> cuts = new ArrayList<>();
+        cuts.add(0);
+        List<Integer> sections = findSections(text);
+        sections.add(text.length());
+        int chunkStart = 0;
+        int sectionStart = 0;
+        for (int end : sections) {
+            if (end <= sectionStart) {
+                continue;
+            }
+            if (end - sectionStart > 2 * target) {
+                // an oversized section: close the current chunk, then cut at paragraphs
+                if (sectionStart > chunkStart) {
+                    cuts.add(sectionStart);
+                }
+                chunkStart = splitParagraphs(text, sectionStart, end, target, cuts);
+            } else if (end - chunkStart > target && sectionStart > chunkStart) {
+                cuts.add(sectionStart);
+                chunkStart = sectionStart;
+            }
+            sectionStart = end;
+        }
+        int[] bounds = new int[cuts.size() + 1];
+        for (int i = 0; i < cuts.size(); i++) {
+            bounds[i] = cuts.get(i);
+        }
+        bounds[cuts.size()] = text.length();
+        return bounds;
+    }
+
+    private static int splitParagraphs(String text, int start, int end, int target, List<Integer> cuts) {
+        int chunkStart = start;
+        Matcher m = PARAGRAPH.matcher(text).region(start, end);
+        while (m.find()) {
+            if (m.end() - chunkStart > target && m.end() < end) {
+                cuts.add(m.end());
+                chunkStart = m.end();
+            }
+        }
+        return chunkStart;
+    }
+
+    /**
+     * Returns the start of the line if only blanks precede the offset on its line, else -1.
+     */
+    private static int lineStart(String text, int offset) {
+        int i = offset;
+        while (i > 0) {
+            char c = text.charAt(i - 1);
+            if (c == '\n' || c == '\r') {
+                break;
+            }
+            if (c != ' ' && c != '\t') {
+                return -1;
+            }
+            i--;
+        }
+        return i;
+    }
+
+    private static String expand(Element element, Map<String, Element> fragments, int depth) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        NodeList children = element.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                sb.append(child.getNodeValue());
+            } else if (child.getNodeType() == Node.ELEMENT_NODE && "fragment-ref".equals(child.getNodeName())) {
+                String name = ((Element)child).getAttribute("name");
+                Element fragment = fragments.get(name);
+                if (fragment != null) {
+                    if (depth >= MAX_NESTING) {
+                        throw new IOException("Section fragment '" + name + "' nested too deep, or cyclic");
+                    }
+                    sb.append(expand(fragment, fragments, depth + 1));
+                }
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private static Element child(Element parent, String name) {
+        NodeList nodes = parent.getElementsByTagName(name);
+        return nodes.getLength() == 0 ? parent : (Element)nodes.item(0);
+    }
+
+    private static String text(Element parent, String name) {
+        return child(parent, name).getTextContent();
+    }
+
+}
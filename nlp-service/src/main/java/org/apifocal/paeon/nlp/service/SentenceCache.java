@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LRU cache of the annotations of the sentence local stages, per sentence, see SentenceMemo.
+ * <p>
+ * Entries are keyed by the stages (the name of the memo part of the profile) and the exact
+ * sentence text, and bounded in bytes ({@code paeon.sentence.cache.size}, in MB, 0 disables
+ * memoization). Sentences longer than {@code paeon.sentence.cache.maxlength} chars are
+ * unlikely to repeat, so they are not cached. Lookups are recorded in the
+ * {@code sentence.cache.hit} and {@code sentence.cache.miss} histograms, whose counts
+ * give the hit rate.
+ */
+public class SentenceCache {
+    private static final Logger LOG = LoggerFactory.getLogger(SentenceCache.class);
+
+    public static final String CACHE_HIT = "sentence.cache.hit";
+    public static final String CACHE_MISS = "sentence.cache.miss";
+
+    private static final long MB = 1024 * 1024;
+    private static final int DEFAULT_MAX_LENGTH = 400;
+    // heap taken by an entry besides its key chars and encoded bytes: map entry, key, fragment
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long limit;
+    private final int maxLength;
+
+    // in access order, guarded by this
+    private final LinkedHashMap<String, CasFragment> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long size;
+
+    /**
+     * @param limit max bytes taken by the entries
+     * @param maxLength max chars of a cached sentence
+     */
+    public SentenceCache(long limit, int maxLength) {
+        this.limit = limit;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Creates the cache configured in {@code paeon.sentence.cache.*}, or returns null if memoization is disabled.
+     */
+    public static SentenceCache create(PaeonConfig config) {
+        if (config == null) {
+            return null;
+        }
+        long limit = config.getLongProperty(PaeonConfig.PAEON_CFG_SENTENCE_CACHE_SIZE, 0) * MB;
+        if (limit <= 0) {
+            return null;
+        }
+        int maxLength = config.getIntProperty(PaeonConfig.PAEON_CFG_SENTENCE_CACHE_MAXLENGTH, DEFAULT_MAX_LENGTH);
+        LOG.info("Sentence cache: {} MB, sentences up to {} chars", limit / MB, maxLength);
+        return new SentenceCache(limit, maxLength);
+    }
+
+    /**
+     * Returns the cache key of a sentence annotated by the stages of a profile.
+     */
+    public static String key(String profile, String sentence) {
+        // profile names are single line
+        return profile + '\n' + sentence;
+    }
+
+    /**
+     * Returns true if sentences of this text are cached.
+     */
+    public boolean accepts(String sentence) {
+        return sentence.length() <= maxLength;
+    }
+
+    /**
+     * Returns the cached fragment for the key, or null.
+     */
+    public CasFragment get(String key) {
+        long start = System.nanoTime();
+        CasFragment fragment;
+        synchronized (this) {
+            fragment = entries.get(key);
+        }
+        PaeonMetrics.histogram(fragment == null ? CACHE_MISS : CACHE_HIT).recordSince(start);
+        return fragment;
+    }
+
+    public synchronized void put(String key, CasFragment fragment) {
+        long entrySize = sizeOf(key, fragment);
+        if (entrySize > limit) {
+            return;
+        }
+        CasFragment previous = entries.put(key, fragment);
+        size += entrySize - (previous == null ? 0 : sizeOf(key, previous));
+        Iterator<Map.Entry<String, CasFragment>> it = entries.entrySet().iterator();
+        while (size > limit && it.hasNext()) {
+            Map.Entry<String, CasFragment> e = it.next();
+            size -= sizeOf(e.getKey(), e.getValue());
+            it.remove();
+        }
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the estimated heap taken by the entries, in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private static long sizeOf(String key, CasFragment fragment) {
+        return ENTRY_OVERHEAD + 2L * key.length() + fragment.size();
+    }
+
+}
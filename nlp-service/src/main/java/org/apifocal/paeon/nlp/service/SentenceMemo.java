@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ctakes.typesystem.type.syntax.BaseToken;
+import org.apache.ctakes.typesystem.type.textspan.Segment;
+import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.util.CasUtil;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the sentence local stages of a profile with memoization: the annotations of a
+ * sentence seen before are replayed from the SentenceCache instead of annotating it again.
+ * <p>
+ * The sentences of a document that are not cached are annotated together on a scratch
+ * CAS, with just their text, so each sentence is annotated the same whatever document it
+ * comes from. Their annotations are then cached and replayed into the document like the
+ * cached ones. If the annotations cannot be told apart by sentence (e.g. one spanning two
+ * sentences), the stages run on the document itself and nothing is cached.
+ * <p>
+ * Document wide counters set by the stages, i.e. the token numbers, are renumbered after
+ * the replay.
+ * <p>
+ * The annotations of the sentences of a document can also be kept by document id, in the
+ * RevisionStore, so a revision of the document replays the sentences it did not change.
+ */
+public class SentenceMemo {
+    private static final Logger LOG = LoggerFactory.getLogger(SentenceMemo.class);
+
+    // as set by SimpleSegmentAnnotator
+    private static final String SEGMENT_ID = "SIMPLE_SEGMENT";
+    // between the sentences on the scratch CAS, so no stage relates them
+    private static final String SEPARATOR = "\n\n";
+
+    private final SentenceCache cache;
+    private final RevisionStore revisions;
+
+    /**
+     * @param cache the sentence cache, or null
+     * @param revisions the revision store, or null
+     */
+    public SentenceMemo(SentenceCache cache, RevisionStore revisions) {
+        this.cache = cache;
+        this.revisions = revisions;
+    }
+
+    /**
+     * Creates the memoization configured in {@code paeon.sentence.cache.*} and {@code paeon.revisions.*},
+     * or returns null if both the sentence cache and the revision store are disabled.
+     */
+    public static SentenceMemo create(PaeonConfig config) {
+        SentenceCache cache = SentenceCache.create(config);
+        RevisionStore revisions = RevisionStore.create(config);
+        return cache == null && revisions == null ? null : new SentenceMemo(cache, revisions);
+    }
+
+    /**
+     * Returns the sentence cache, or null if disabled.
+     */
+    public SentenceCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the revision store, or null if disabled.
+     */
+    public RevisionStore getRevisions() {
+        return revisions;
+    }
+
+    /**
+     * Annotates the sentences of a document with the memo part of a profile.
+     *
+     * @param jcas the document, with its sentences
+     * @param pool the pipeline pool of the memo part
+     * @param profile the name of the memo part
+     * @param documentId the id to keep the annotations of the document under, or null
+     * @param previousId the id of the previous revision of the document, or null
+     * @return false if no pipeline or CAS was available in time
+     */
+    public boolean process(JCas jcas, PipelinePool pool, String profile, String documentId, String previousId)
+            throws AnalysisEngineProcessException {
+        Map<String, CasFragment> previous = revisions == null || previousId == null ? null : revisions.get(previousId, profile);
+        boolean keep = revisions != null && documentId != null;
+        if (cache == null && previous == null && !keep) {
+            // nothing to replay or keep
+            return CtakesProcessor.run(pool, jcas);
+        }
+        List<Sentence> sentences = new ArrayList<>(JCasUtil.select(jcas, Sentence.class));
+        CasFragment[] fragments = new CasFragment[sentences.size()];
+        // the sentences to annotate, by text
+        Map<String, List<Integer>> misses = new LinkedHashMap<>();
+        int unchanged = 0;
+        for (int i = 0; i < sentences.size(); i++) {
+            String text = sentences.get(i).getCoveredText();
+            fragments[i] = previous == null ? null : previous.get(text);
+            if (fragments[i] != null) {
+                unchanged++;
+            } else if (cache != null && cache.accepts(text)) {
+                fragments[i] = cache.get(SentenceCache.key(profile, text));
+            }
+            if (fragments[i] == null) {
+                List<Integer> same = misses.get(text);
+                if (same == null) {
+                    same = new ArrayList<>();
+                    misses.put(text, same);
+                }
+                same.add(i);
+            }
+        }
+
+        if (!misses.isEmpty()) {
+            JCas scratch = pool.borrowCas();
+            if (scratch == null) {
+                LOG.warn("No CAS available after {} ms", pool.getTimeout());
+                return false;
+            }
+            AnalysisEngine engine = pool.borrowEngine();
+            if (engine == null) {
+                LOG.warn("No pipeline available after {} ms", pool.getTimeout());
+                pool.returnCas(scratch);
+                return false;
+            }
+            try {
+                List<String> texts = new ArrayList<>(misses.keySet());
+                List<CasFragment> annotated = annotate(scratch, engine, texts);
+                if (annotated == null) {
+                    LOG.debug("Sentence annotations cannot be memoized; annotating the whole document");
+                    PaeonMetrics.recordStages(engine.process(jcas));
+                    return true;
+                }
+                for (int t = 0; t < texts.size(); t++) {
+                    String text = texts.get(t);
+                    if (cache != null && cache.accepts(text)) {
+                        cache.put(SentenceCache.key(profile, text), annotated.get(t));
+                    }
+                    for (int i : misses.get(text)) {
+                        fragments[i] = annotated.get(t);
+                    }
+                }
+            } finally {
+                pool.returnEngine(engine);
+                pool.returnCas(scratch);
+            }
+        }
+
+        if (previous != null) {
+            LOG.debug("Revision of {}: {} of {} sentences unchanged", previousId, unchanged, sentences.size());
+        }
+        for (int i = 0; i < fragments.length; i++) {
+            fragments[i].replay(jcas.getCas(), sentences.get(i));
+        }
+        if (keep) {
+            Map<String, CasFragment> revision = new LinkedHashMap<>();
+            for (int i = 0; i < fragments.length; i++) {
+                revision.put(sentences.get(i).getCoveredText(), fragments[i]);
+            }
+            revisions.put(documentId, profile, revision);
+        }
+        int number = 0;
+        for (BaseToken token : JCasUtil.select(jcas, BaseToken.class)) {
+            token.setTokenNumber(number++);
+        }
+        return true;
+    }
+
+    /**
+     * Annotates the sentences on the scratch CAS and encodes the annotations of each.
+     *
+     * @return the fragments, in the order of the texts, or null if an annotation is not
+     *         within a sentence or is shared by sentences
+     */
+    static List<CasFragment> annotate(JCas scratch, AnalysisEngine engine, List<String> texts)
+            throws AnalysisEngineProcessException {
+        StringBuilder text = new StringBuilder();
+        int[] begins = new int[texts.size()];
+        for (int i = 0; i < texts.size(); i++) {
+            if (i > 0) {
+                text.append(SEPARATOR);
+            }
+            begins[i] = text.length();
+            text.append(texts.get(i));
+        }
+        scratch.setDocumentText(text.toString());
+        Segment segment = new Segment(scratch, 0, text.length());
+        segment.setId(SEGMENT_ID);
+        segment.addToIndexes();
+        List<Sentence> sentences = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            Sentence sentence = new Sentence(scratch, begins[i], begins[i] + texts.get(i).length());
+            sentence.addToIndexes();
+            sentences.add(sentence);
+        }
+        PaeonMetrics.recordStages(engine.process(scratch));
+
+        CAS cas = scratch.getCas();
+        TypeSystem types = cas.getTypeSystem();
+        Type annotation = cas.getAnnotationType();
+        Type document = types.getType(CAS.TYPE_NAME_DOCUMENT_ANNOTATION);
+        Set<FeatureStructure> given = new HashSet<FeatureStructure>(sentences);
+        given.add(segment);
+        // what the stages added, the annotations by sentence
+        Set<FeatureStructure> indexed = new HashSet<>();
+        List<List<FeatureStructure>> roots = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            roots.add(new ArrayList<FeatureStructure>());
+        }
+        for (FeatureStructure fs : CasUtil.selectAll(cas)) {
+            if (given.contains(fs) || types.subsumes(document, fs.getType())) {
+                continue;
+            }
+            indexed.add(fs);
+            if (types.subsumes(annotation, fs.getType())) {
+                AnnotationFS a = (AnnotationFS)fs;
+                int i = Arrays.binarySearch(begins, a.getBegin());
+                i = i >= 0 ? i : -i - 2;
+                if (i < 0 || a.getEnd() > sentences.get(i).getEnd()) {
+                    return null;
+                }
+                roots.get(i).add(fs);
+            }
+        }
+        List<CasFragment> fragments = new ArrayList<>();
+        Set<FeatureStructure> encoded = new HashSet<>();
+        for (int i = 0; i < texts.size(); i++) {
+            CasFragment fragment = CasFragment.encode(sentences.get(i), roots.get(i), indexed, encoded);
+            if (fragment == null) {
+                return null;
+            }
+            fragments.add(fragment);
+        }
+        // an indexed structure no annotation refers to has no sentence
+        return encoded.containsAll(indexed) ? fragments : null;
+    }
+
+}
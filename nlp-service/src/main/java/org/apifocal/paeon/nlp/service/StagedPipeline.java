@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.jcas.JCas;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pipeline split in consecutive phases, each run by its own worker threads, so several
+ * documents are in the pipeline at once, each in a different phase.
+ * <p>
+ * Each phase has a pool of engines with its stages, one worker thread per engine, and a
+ * bounded hand-off queue in front of it. A full queue blocks the phase before it, so a slow
+ * phase throttles the whole pipeline instead of piling up CASes. The CASes come from the
+ * pool of the first phase. Phases are sized after their cost, e.g. few instances of the
+ * cheap tokenization phase and more of the parsers.
+ */
+public class StagedPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(StagedPipeline.class);
+
+    private final String name;
+    private final List<Phase> phases = new ArrayList<>();
+
+    /**
+     * @param pools the pool of each phase, in pipeline order
+     * @param queueSize capacity of the hand-off queue in front of each phase
+     */
+    public StagedPipeline(String name, List<PipelineProfile> profiles, List<PipelinePool> pools, int queueSize) {
+        this.name = name;
+        for (int i = 0; i < pools.size(); i++) {
+            // phases are named after their first stage
+            phases.add(new Phase(profiles.get(i).getStages().get(0).getName(), pools.get(i), Math.max(1, queueSize)));
+        }
+        for (int i = 0; i < phases.size(); i++) {
+            phases.get(i).start(i + 1 < phases.size() ? phases.get(i + 1) : null);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the pool the CASes are borrowed from.
+     */
+    public PipelinePool getCasPool() {
+        return phases.get(0).pool;
+    }
+
+    public List<PipelinePool> getPools() {
+        List<PipelinePool> pools = new ArrayList<>();
+        for (Phase phase : phases) {
+            pools.add(phase.pool);
+        }
+        return Collections.unmodifiableList(pools);
+    }
+
+    /**
+     * Runs the CAS through all the phases and waits until it comes out of the last one.
+     *
+     * @return false if a phase failed (the phases after it are skipped), or if interrupted
+     *         before the CAS entered the pipeline
+     */
+    public boolean process(JCas jcas) {
+        Job job = new Job(jcas);
+        try {
+            phases.get(0).submit(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        // the CAS is in use until the last phase is done with it, so wait even if interrupted
+        boolean interrupted = false;
+        while (true) {
+            try {
+                job.done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return job.processed;
+    }
+
+    public void destroy() {
+        for (Phase phase : phases) {
+            phase.stop();
+        }
+        for (Phase phase : phases) {
+            phase.pool.destroy();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + phases;
+    }
+
+    private static final class Job {
+        private final JCas jcas;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean processed = true;
+        private long queued;
+
+        Job(JCas jcas) {
+            this.jcas = jcas;
+        }
+
+        void fail() {
+            processed = false;
+            done.countDown();
+        }
+    }
+
+    private static final class Phase {
+        private final String name;
+        private final PipelinePool pool;
+        private final BlockingQueue<Job> queue;
+        private final List<Thread> workers = new ArrayList<>();
+
+        Phase(String name, PipelinePool pool, int queueSize) {
+            this.name = name;
+            this.pool = pool;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        void start(final Phase next) {
+            for (int i = 0; i < pool.getSize(); i++) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        work(next);
+                    }
+                }, "paeon-phase-" + name + "-" + i);
+                t.setDaemon(true);
+                workers.add(t);
+                t.start();
+            }
+        }
+
+        void submit(Job job) throws InterruptedException {
+            job.queued = System.nanoTime();
+            // blocks while the phase is saturated, which throttles the phase before it
+            queue.put(job);
+        }
+
+        private void work(Phase next) {
+            try {
+                while (true) {
+                    Job job = queue.take();
+                    PaeonMetrics.histogram(PaeonMetrics.PHASE_PREFIX + name).recordSince(job.queued);
+                    AnalysisEngine engine = pool.borrowEngine();
+                    if (engine == null) {
+                        LOG.warn("No '{}' pipeline available after {} ms", name, pool.getTimeout());
+                        job.fail();
+                        continue;
+                    }
+                    try {
+                        PaeonMetrics.recordStages(engine.process(job.jcas));
+                    } catch (AnalysisEngineProcessException | RuntimeException e) {
+                        // a worker must survive, or the callers of the documents it takes would wait forever
+                        LOG.error("jCAS: Failed to process text in phase '{}'", name, e);
+                        job.fail();
+                        continue;
+                    } finally {
+                        pool.returnEngine(engine);
+                    }
+                    if (next != null) {
+                        try {
+                            next.submit(job);
+                        } catch (InterruptedException e) {
+                            job.fail();
+                            throw e;
+                        }
+                    } else {
+                        job.done.countDown();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+
+        void stop() {
+            for (Thread t : workers) {
+                t.interrupt();
+            }
+            // release the callers of the documents left behind
+            Job job;
+            while ((job = queue.poll()) != null) {
+                job.fail();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + "x" + workers.size();
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.ArrayDeque;
+import java.util.Enumeration;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+/**
+ * Bounded queue of received documents waiting for a free pipeline.
+ * <p>
+ * The queue is full when it holds {@code maxDepth} documents, when the documents queued
+ * or in process add up to {@code maxBytes}, or when more than {@code maxHeap} percent of
+ * the max heap is used while any document is queued or in process. The receiver waits for
+ * capacity before taking the next message from the broker, so a full queue pauses delivery
+ * and the backlog stays on the broker. A document estimated larger than {@code maxBytes}
+ * on its own is never admitted. Limits of 0 are not enforced.
+ */
+public class WorkQueue {
+
+    private final int maxDepth;
+    private final long maxBytes;
+    private final int maxHeap;
+    private final ArrayDeque<Work> queue = new ArrayDeque<>();
+    // estimated size of the documents queued or in process
+    private long bytes;
+
+    public WorkQueue(int maxDepth, long maxBytes, int maxHeap) {
+        this.maxDepth = Math.max(1, maxDepth);
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxHeap = Math.max(0, maxHeap);
+    }
+
+    /**
+     * Waits until another document can be admitted.
+     *
+     * @return false if the queue is still full after {@code timeout} millis
+     */
+    public synchronized boolean awaitCapacity(long timeout) throws InterruptedException {
+        if (!isFull()) {
+            return true;
+        }
+        long start = System.nanoTime();
+        long deadline = start + timeout * 1000000L;
+        try {
+            while (isFull()) {
+                long left = (deadline - System.nanoTime()) / 1000000L;
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        } finally {
+            PaeonMetrics.histogram(PaeonMetrics.QUEUE_PAUSE).recordSince(start);
+        }
+    }
+
+    private boolean isFull() {
+        if (queue.isEmpty() && bytes == 0) {
+            // nothing queued or in process: always admit, or nothing would ever free memory
+            return false;
+        }
+        if (queue.size() >= maxDepth || (maxBytes > 0 && bytes >= maxBytes)) {
+            return true;
+        }
+        if (maxHeap > 0) {
+            Runtime runtime = Runtime.getRuntime();
+            return (runtime.totalMemory() - runtime.freeMemory()) * 100 > runtime.maxMemory() * maxHeap;
+        }
+        return false;
+    }
+
+    /**
+     * Queues a received message.
+     *
+     * @return false if the message was rejected as too large
+     */
+    public synchronized boolean offer(Message message) throws JMSException {
+        long size = estimate(message);
+        if (maxBytes > 0 && size > maxBytes) {
+            PaeonMetrics.histogram(PaeonMetrics.QUEUE_REJECTED).record(size);
+            return false;
+        }
+        queue.add(new Work(message, size));
+        bytes += size;
+        PaeonMetrics.histogram(PaeonMetrics.QUEUE_DEPTH).record(queue.size());
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Takes the oldest queued document; it counts against the memory limit until released.
+     *
+     * @return the work, or null if none was queued within {@code timeout} millis
+     */
+    public synchronized Work take(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (queue.isEmpty()) {
+            long left = (deadline - System.nanoTime()) / 1000000L;
+            if (left <= 0) {
+                return null;
+            }
+            wait(left);
+        }
+        Work work = queue.poll();
+        PaeonMetrics.histogram(PaeonMetrics.QUEUE_WAIT).recordSince(work.queued);
+        notifyAll();
+        return work;
+    }
+
+    public synchronized void release(Work work) {
+        bytes -= work.size;
+        notifyAll();
+    }
+
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Estimates the heap taken by the documents in a message (2 bytes per char). Map entries
+     * that are not texts are counted by their own size, as they are rejected when processed.
+     */
+    public static long estimate(Message message) throws JMSException {
+        if (message instanceof TextMessage) {
+            String text = ((TextMessage)message).getText();
+            return text == null ? 0 : 2L * text.length();
+        }
+        if (message instanceof MapMessage) {
+            long size = 0;
+            MapMessage map = (MapMessage)message;
+            Enumeration<?> names = map.getMapNames();
+            while (names.hasMoreElements()) {
+                // getString() would fail on byte[] entries
+                Object entry = map.getObject((String)names.nextElement());
+                if (entry instanceof String) {
+                    size += 2L * ((String)entry).length();
+                } else if (entry instanceof byte[]) {
+                    size += ((byte[])entry).length;
+                }
+            }
+            return size;
+        }
+        if (message instanceof BytesMessage) {
+            return ((BytesMessage)message).getBodyLength();
+        }
+        return 0;
+    }
+
+    /**
+     * A queued message.
+     */
+    public static final class Work {
+        private final Message message;
+        private final long size;
+        private final long queued = System.nanoTime();
+
+        Work(Message message, long size) {
+            this.message = message;
+            this.size = size;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+}
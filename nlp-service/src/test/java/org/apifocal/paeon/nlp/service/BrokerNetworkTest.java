@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.Connection;
+import javax.jms.MapMessage;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.network.NetworkConnector;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Service instances on a local network of brokers, as configured in two.xml: requests
+ * are all sent to the first broker and the network forwards them to the instances.
+ */
+public class BrokerNetworkTest {
+    private static final Logger LOG = LoggerFactory.getLogger(BrokerNetworkTest.class);
+    private static final String QUEUE = "paeon.test.network";
+    private static final long PROCESS_MILLIS = 20;
+
+    private final List<BrokerService> brokers = new ArrayList<>();
+    private final List<String> urls = new ArrayList<>();
+    private final List<PaeonService> services = new ArrayList<>();
+
+    @After
+    public void stopNetwork() throws Exception {
+        for (PaeonService service : services) {
+            service.stop();
+        }
+        services.clear();
+        for (BrokerService broker : brokers) {
+            broker.stop();
+            broker.waitUntilStopped();
+        }
+        brokers.clear();
+        urls.clear();
+    }
+
+    private void startNetwork(int size) throws Exception {
+        for (int i = 0; i < size; i++) {
+            BrokerService broker = new BrokerService();
+            broker.setBrokerName("paeon-net-" + i);
+            broker.setPersistent(false);
+            broker.setUseJmx(false);
+            urls.add(broker.addConnector("tcp://localhost:0").getPublishableConnectString());
+            if (i > 0) {
+                NetworkConnector nc = broker.addNetworkConnector("static:(" + urls.get(0) + ")");
+                nc.setDuplex(true);
+                nc.setConduitSubscriptions(false);
+                nc.setDecreaseNetworkConsumerPriority(true);
+                nc.setPrefetchSize(1);
+            }
+            broker.start();
+            broker.waitUntilStarted();
+            brokers.add(broker);
+        }
+    }
+
+    private PaeonService startService(String broker, PaeonConfig config) throws Exception {
+        config.setProperty(PaeonConfig.PAEON_CFG_BROKER, broker);
+        config.setProperty(PaeonConfig.PAEON_CFG_LISTENON, QUEUE);
+        config.setProperty(PaeonConfig.PAEON_CFG_CONSUMERS, "1");
+        config.setProperty(PaeonConfig.PAEON_CFG_PREFETCH, "1");
+        config.setProperty(PaeonConfig.PAEON_CFG_BATCH_SIZE, "1");
+        config.setProperty(PaeonConfig.PAEON_CFG_METRICS_INTERVAL, "0");
+        config.setProperty(PaeonConfig.PAEON_CFG_METRICS_JMX, "false");
+        PaeonService service = new PaeonService(config, new SlowProcessor());
+        services.add(service);
+        service.start();
+        return service;
+    }
+
+    /**
+     * Waits until the first broker sees the consumers of all the instances, local or bridged.
+     */
+    private void awaitConsumers(int count) throws Exception {
+        Destination queue = brokers.get(0).getDestination(new ActiveMQQueue(QUEUE));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getConsumers().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(count, queue.getConsumers().size());
+    }
+
+    private double throughput(int nodes) throws Exception {
+        startNetwork(nodes);
+        for (String url : urls) {
+            startService(url, new PaeonConfig());
+        }
+        awaitConsumers(nodes);
+
+        LoadGenerator load = new LoadGenerator(new ActiveMQConnectionFactory(urls.get(0)), null, null, QUEUE, "aspirin");
+        load.setConcurrency(4 * nodes);
+        load.setDuration(3000);
+        load.setTimeout(10000);
+        LoadGenerator.Report report = load.run();
+        Assert.assertEquals("lost replies", 0, report.getLost());
+        Assert.assertEquals(report.getSent(), report.getReceived());
+        LOG.info("{} instance(s): {}", nodes, report);
+        stopNetwork();
+        return report.getThroughput();
+    }
+
+    @Test
+    public void testNearLinearScaling() throws Exception {
+        int nodes = 3;
+        double single = throughput(1);
+        double scaled = throughput(nodes);
+        LOG.info("Throughput {}/s with 1 instance, {}/s with {} ({}x)", single, scaled, nodes, scaled / single);
+        Assert.assertTrue("throughput " + scaled + "/s with " + nodes + " instances, " + single + "/s with 1",
+            scaled >= 0.7 * nodes * single);
+    }
+
+    @Test
+    public void testFailoverAndLoadReports() throws Exception {
+        startNetwork(2);
+        Connection connection = new ActiveMQConnectionFactory(urls.get(0)).createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer reports = session.createConsumer(session.createTopic(LoadReporter.DEFAULT_TOPIC));
+            connection.start();
+
+            PaeonConfig config = new PaeonConfig();
+            config.setProperty(PaeonConfig.PAEON_CFG_NODE, "node-a");
+            config.setProperty(PaeonConfig.PAEON_CFG_LOAD_INTERVAL, "100");
+            startService(urls.get(0) + ", " + urls.get(1), config);
+            Assert.assertTrue(config.getBrokerUrl().startsWith("failover:("));
+            awaitConsumers(1);
+
+            LoadGenerator load = new LoadGenerator(new ActiveMQConnectionFactory(urls.get(0)), null, null, QUEUE, "aspirin");
+            load.setConcurrency(2);
+            load.setDuration(500);
+            Assert.assertEquals(0, load.run().getLost());
+
+            MapMessage report = (MapMessage)reports.receive(10000);
+            Assert.assertNotNull(report);
+            Assert.assertEquals("node-a", report.getStringProperty(LoadReporter.PAEON_NODE));
+            Assert.assertEquals(1, report.getInt("consumers"));
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Stands in for a CPU bound pipeline, taking the same time for every document.
+     */
+    static class SlowProcessor implements NLPProcessor {
+
+        public String process(String text) {
+            try {
+                Thread.sleep(PROCESS_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return text;
+        }
+
+        public String process(NLPRequest request) {
+            return process(request.getText());
+        }
+
+        public boolean process(NLPRequest request, OutputStream out) throws IOException {
+            out.write(process(request.getText()).getBytes(StandardCharsets.UTF_8));
+            return true;
+        }
+
+        public AnalysisEngine getPipeline() {
+            return null;
+        }
+    }
+
+}
@@ -18,17 +18,6 @@ package org.apifocal.paeon.nlp.service;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.jms.Connection;
-import javax.jms.ConnectionFactory;
-import javax.jms.Destination;
-import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageConsumer;
-import javax.jms.MessageListener;
-import javax.jms.MessageProducer;
-import javax.jms.Session;
-import javax.jms.TextMessage;
-
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.broker.BrokerFactory;
 import org.apache.activemq.broker.BrokerService;
@@ -80,7 +69,10 @@ public class BrokerSetupTest {
         }
 
         // TODO: use Properties for configuring credentials too
-        brokerUrl = PAEON_CONFIG.getProperty(PaeonConfig.PAEON_CFG_BROKER, "nio://localhost:" + PORT_START);
+        brokerUrl = PAEON_CONFIG.getBrokerUrl();
+        if (brokerUrl == null) {
+            brokerUrl = "nio://localhost:" + PORT_START;
+        }
         String testBroker = PAEON_CONFIG.getProperty(PAEON_TEST_BROKER);
         if (testBroker != null) {
             createBroker(testBroker);
@@ -99,66 +91,35 @@ public class BrokerSetupTest {
     }
 
  
+    /**
+     * Capacity test: load from LoadGenerator, configured with {@code paeon.test.load.*};
+     * {@code paeon.test.repeat} caps the requests sent.
+     */
     @Test
     public void testMultipleRequests() throws Exception {
-        final List<String> msgs = new ArrayList<>();
-
-        String cu = PAEON_CONFIG.getProperty(PaeonConfig.PAEON_CFG_USER, "apollo");
-        String cs = PAEON_CONFIG.getProperty(PaeonConfig.PAEON_CFG_PASSWORD, "password");
         String lq = PAEON_CONFIG.getProperty(PaeonConfig.PAEON_CFG_LISTENON, "paeon.nlp.ctakes");
-        
-        ConnectionFactory fc =  new ActiveMQConnectionFactory(brokerUrl);
-        Connection consumerConnection = fc.createConnection(cu, cs);
-        Session consumerSession = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        Destination q = consumerSession.createQueue(lq);
-        MessageConsumer consumer = consumerSession.createConsumer(q);
-        consumer.setMessageListener(new PaeonMessageListener(consumerSession));
-        consumerConnection.start();
+
+        PaeonService service = new PaeonService(PAEON_CONFIG);
+        service.start();
+        Assert.assertTrue(service.getConsumerCount() > 0);
 
         String pu = PAEON_CONFIG.getProperty(PAEON_TEST_USER, "artemis");
         String ps = PAEON_CONFIG.getProperty(PAEON_TEST_PASSWORD, "secret");
         String rt = PAEON_CONFIG.getProperty(PAEON_TEST_REPLYTO, "ctakes.replies");
 
-        ConnectionFactory fp =  new ActiveMQConnectionFactory(brokerUrl);
-        Connection producerConnection = fp.createConnection(pu, ps);
-        Session producerSession = producerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        Destination r = producerSession.createQueue(rt);
-        MessageProducer producer = producerSession.createProducer(q);
-        MessageConsumer replies = producerSession.createConsumer(r);
-        replies.setMessageListener(new MessageListener() {
-            public void onMessage(Message message) {
-                try {
-                    LOG.debug("NLP Reply received: '{}'", message.getJMSMessageID());
-                    if (message instanceof TextMessage) {
-                        TextMessage tm = (TextMessage)message;
-                        msgs.add(tm.getText());
-                        LOG.debug("Paeon MessageListener text received: '{}'", tm.getText());
-                    }
-                } catch (JMSException e) {
-                }
-            }
-        });
-        producerConnection.start();
-
         try {
-            String repeat = PAEON_CONFIG.getProperty(PAEON_TEST_REPEAT, "100");
-            int count = Integer.valueOf(repeat);
-
-            for (int i = 0; i < count; i++) {
-                // TODO: add the doctor's note
-                Message message = producerSession.createTextMessage(NOTE_NUTRITIONS);
-                message.setJMSCorrelationID("CID-" + i);
-                message.setJMSReplyTo(r);
-                producer.send(message);
-            }
-            Thread.sleep(40000);
-
-            // Assert.assertEquals(count, msgs.size());
-            // Assert.assertNotNull(msgs.get(0));
-            // Assert.assertTrue(msgs.get(0).contains("result"));
+            LoadGenerator load = new LoadGenerator(new ActiveMQConnectionFactory(brokerUrl), pu, ps, lq, NOTE_NUTRITIONS)
+                .configure(PAEON_CONFIG);
+            load.setReplyTo(rt);
+            load.setMaxRequests(Integer.valueOf(PAEON_CONFIG.getProperty(PAEON_TEST_REPEAT, "100")));
+            LoadGenerator.Report report = load.run();
+
+            Assert.assertTrue(report.getSent() > 0);
+            Assert.assertEquals("lost replies", 0, report.getLost());
+            Assert.assertEquals(report.getSent(), report.getReceived());
+            Assert.assertEquals(0, report.getErrors());
         } finally {
-            producerConnection.stop();
-            consumerConnection.stop();
+            service.stop();
         }
     }
 
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ctakes.core.util.collection.CollectionMap;
+import org.apache.ctakes.core.util.collection.HashSetMap;
+import org.apache.ctakes.dictionary.lookup2.concept.Concept;
+import org.apache.ctakes.dictionary.lookup2.concept.ConceptFactory;
+import org.apache.ctakes.dictionary.lookup2.util.CuiCodeUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class CachingConceptFactoryTest {
+
+    @Test
+    public void testMissingConcepts() throws Exception {
+        final AtomicInteger queried = new AtomicInteger();
+        // only knows the even CUIs
+        ConceptFactory delegate = new ConceptFactory() {
+            public String getName() {
+                return "even";
+            }
+
+            public Concept createConcept(Long cuiCode) {
+                queried.incrementAndGet();
+                if (cuiCode % 2 != 0) {
+                    return null;
+                }
+                CollectionMap<String, String, ? extends Collection<String>> codes = new HashSetMap<>();
+                return new Concept(CuiCodeUtil.getInstance().getAsCui(cuiCode), "even", codes);
+            }
+
+            public Map<Long, Concept> createConcepts(Collection<Long> cuiCodes) {
+                Map<Long, Concept> concepts = new HashMap<>();
+                for (Long cuiCode : cuiCodes) {
+                    Concept concept = createConcept(cuiCode);
+                    if (concept != null) {
+                        concepts.put(cuiCode, concept);
+                    }
+                }
+                return concepts;
+            }
+        };
+        CuiCache<Concept> cache = CachingConceptFactory.cache("test-missing", 64);
+        CachingConceptFactory factory = new CachingConceptFactory("test-missing", delegate, cache);
+
+        Map<Long, Concept> concepts = factory.createConcepts(Arrays.asList(2L, 3L));
+        Assert.assertEquals(1, concepts.size());
+        Assert.assertNotNull(concepts.get(2L));
+        Assert.assertEquals(2, queried.get());
+
+        // the CUI without a concept is not queried again
+        Assert.assertEquals(1, factory.createConcepts(Arrays.asList(2L, 3L)).size());
+        Assert.assertNull(factory.createConcept(3L));
+        Assert.assertEquals(2, queried.get());
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.ctakes.typesystem.type.refsem.UmlsConcept;
+import org.apache.ctakes.typesystem.type.syntax.ConllDependencyNode;
+import org.apache.ctakes.typesystem.type.syntax.WordToken;
+import org.apache.ctakes.typesystem.type.textsem.IdentifiedAnnotation;
+import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.cas.FSArray;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class CasFragmentTest {
+
+    @Test
+    public void testReplay() throws Exception {
+        JCas source = JCasFactory.createJCas();
+        source.setDocumentText("Admit Weight: 53 kg. She takes an aspirin a day.");
+        Sentence sentence = new Sentence(source, 21, 48);
+        sentence.addToIndexes();
+        WordToken token = new WordToken(source, 34, 41);
+        token.setCanonicalForm("aspirin");
+        token.addToIndexes();
+        UmlsConcept concept = new UmlsConcept(source);
+        concept.setCui("C0004057");
+        FSArray concepts = new FSArray(source, 1);
+        concepts.set(0, concept);
+        IdentifiedAnnotation mention = new IdentifiedAnnotation(source, 34, 41);
+        mention.setOntologyConceptArr(concepts);
+        mention.addToIndexes();
+        List<FeatureStructure> roots = Arrays.<FeatureStructure>asList(token, mention);
+        CasFragment fragment = CasFragment.encode(sentence, roots, new HashSet<>(roots), new HashSet<FeatureStructure>());
+        Assert.assertNotNull(fragment);
+
+        // the same sentence elsewhere in another document
+        JCas target = JCasFactory.createJCas();
+        target.setDocumentText("Diet: General. She takes an aspirin a day.");
+        Sentence replayed = new Sentence(target, 15, 42);
+        replayed.addToIndexes();
+        fragment.replay(target.getCas(), replayed);
+
+        List<WordToken> tokens = new ArrayList<>(JCasUtil.select(target, WordToken.class));
+        Assert.assertEquals(1, tokens.size());
+        Assert.assertEquals("aspirin", tokens.get(0).getCoveredText());
+        Assert.assertEquals("aspirin", tokens.get(0).getCanonicalForm());
+        List<IdentifiedAnnotation> mentions = new ArrayList<>(JCasUtil.select(target, IdentifiedAnnotation.class));
+        Assert.assertEquals(1, mentions.size());
+        Assert.assertEquals(28, mentions.get(0).getBegin());
+        Assert.assertEquals("C0004057", ((UmlsConcept)mentions.get(0).getOntologyConceptArr(0)).getCui());
+        Assert.assertTrue("unindexed structures stay unindexed", JCasUtil.select(target, UmlsConcept.class).isEmpty());
+    }
+
+    @Test
+    public void testOutsideReference() throws Exception {
+        JCas source = JCasFactory.createJCas();
+        source.setDocumentText("Admit Weight: 53 kg. She takes an aspirin a day.");
+        Sentence sentence = new Sentence(source, 21, 48);
+        sentence.addToIndexes();
+        ConllDependencyNode outside = new ConllDependencyNode(source, 0, 5);
+        outside.addToIndexes();
+        ConllDependencyNode node = new ConllDependencyNode(source, 21, 24);
+        node.setHead(outside);
+        node.addToIndexes();
+        Set<FeatureStructure> indexed = new HashSet<FeatureStructure>(Arrays.asList(outside, node));
+        Set<FeatureStructure> encoded = new HashSet<>();
+        Assert.assertNull(CasFragment.encode(sentence, Arrays.asList(node), indexed, encoded));
+
+        // nor can two fragments share a structure
+        Sentence first = new Sentence(source, 0, 20);
+        encoded.clear();
+        Assert.assertNotNull(CasFragment.encode(first, Arrays.asList(outside), indexed, encoded));
+        Assert.assertNull(CasFragment.encode(first, Arrays.asList(outside), indexed, encoded));
+    }
+}
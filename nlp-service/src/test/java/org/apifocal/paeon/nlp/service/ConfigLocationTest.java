@@ -45,4 +45,17 @@ public class ConfigLocationTest {
     	Assert.assertEquals(PAEON_LOCAL_CFG, cfg.getConfigPath());
     	Assert.assertEquals(PAEON_DEFAULT_DEST, cfg.getProperty(PaeonConfig.PAEON_CFG_LISTENON));
     }
+
+    @Test
+    public void testBrokerUrl() throws Exception {
+    	PaeonConfig cfg = new PaeonConfig();
+    	cfg.setProperty(PaeonConfig.PAEON_CFG_BROKER, "nio://localhost:60616");
+    	Assert.assertEquals("nio://localhost:60616", cfg.getBrokerUrl());
+    	cfg.setProperty(PaeonConfig.PAEON_CFG_BROKER, "tcp://one:60616, tcp://two:60617");
+    	Assert.assertEquals("failover:(tcp://one:60616,tcp://two:60617)?randomize=true", cfg.getBrokerUrl());
+    	cfg.setProperty(PaeonConfig.PAEON_CFG_BROKER_OPTIONS, "randomize=false&maxReconnectAttempts=10");
+    	Assert.assertEquals("failover:(tcp://one:60616,tcp://two:60617)?randomize=false&maxReconnectAttempts=10", cfg.getBrokerUrl());
+    	cfg.setProperty(PaeonConfig.PAEON_CFG_BROKER, "failover:(tcp://one:60616,tcp://two:60617)");
+    	Assert.assertEquals("failover:(tcp://one:60616,tcp://two:60617)", cfg.getBrokerUrl());
+    }
 }
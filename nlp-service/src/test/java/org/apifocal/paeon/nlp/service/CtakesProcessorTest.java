@@ -15,12 +15,30 @@
  */
 package org.apifocal.paeon.nlp.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.ctakes.typesystem.type.textsem.IdentifiedAnnotation;
+import org.apache.ctakes.typesystem.type.textspan.Sentence;
 import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
 import org.junit.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 
 public class CtakesProcessorTest {
@@ -58,9 +76,320 @@ public class CtakesProcessorTest {
         assertNotNull("We should have received something from the NLP processor", analizedText);
     }
 
+    @Test
+    public void testFastProfile() throws Exception {
+        NLPRequest request = new NLPRequest(noteNutritios);
+        request.setProfile(PipelineProfile.FAST);
+        String analizedText = nlp.process(request);
+        assertNotNull("We should have received something from the fast NLP profile", analizedText);
+    }
+
+    @Test
+    public void testBinaryFormat() throws Exception {
+        NLPRequest request = new NLPRequest(noteNutritios);
+        request.setFormat(OutputFormat.BINARY);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(nlp.process(request, output));
+
+        JCas jcas = BinaryCasFormat.createJCas();
+        BinaryCasFormat.decode(new ByteArrayInputStream(output.toByteArray()), jcas.getCas());
+        assertEquals(noteNutritios, jcas.getDocumentText());
+        assertFalse("Binary CAS should carry the annotations", JCasUtil.select(jcas, Sentence.class).isEmpty());
+    }
+
+    @Test
+    public void testJsonFormat() throws Exception {
+        NLPRequest request = new NLPRequest(noteNutritios);
+        request.setFormat(OutputFormat.JSON);
+        String json = nlp.process(request);
+        assertTrue(json.startsWith("{\"annotations\":["));
+        assertTrue("JSON should carry concepts", json.contains("\"ontologyConceptArr.cui\":[\"C"));
+
+        request.setProjection("Sentence[coveredText]");
+        json = nlp.process(request);
+        assertTrue(json.contains("\"type\":\"Sentence\""));
+        assertFalse(json.contains("\"polarity\""));
+        assertTrue("projected JSON should be much smaller than XMI", json.length() * 10 < nlp.process(noteNutritios).length());
+    }
+
+    @Test
+    public void testChunkedProcess() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            sb.append("HISTORY OF PRESENT ILLNESS:\n").append(noteNutritios).append("\n\n");
+        }
+        String note = sb.toString();
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_PROFILE_DEFAULT, PipelineProfile.FAST);
+        config.setProperty(PaeonConfig.PAEON_CFG_CACHE_HEAP_SIZE, "0");
+        config.setProperty(PaeonConfig.PAEON_CFG_CHUNK_THRESHOLD, "1000");
+        config.setProperty(PaeonConfig.PAEON_CFG_CHUNK_SIZE, String.valueOf(noteNutritios.length()));
+        CtakesProcessor chunked = new CtakesProcessor(config);
+        try {
+            NLPRequest request = new NLPRequest(note);
+            request.setFormat(OutputFormat.BINARY);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            assertTrue(chunked.process(request, output));
+            assertNotNull("chunks should run on the section scoped profile", chunked.getPool("fast/section"));
+
+            JCas jcas = BinaryCasFormat.createJCas();
+            BinaryCasFormat.decode(new ByteArrayInputStream(output.toByteArray()), jcas.getCas());
+            assertEquals(note, jcas.getDocumentText());
+            int aspirin = 0;
+            for (IdentifiedAnnotation concept : JCasUtil.select(jcas, IdentifiedAnnotation.class)) {
+                if ("aspirin".equals(concept.getCoveredText())) {
+                    aspirin++;
+                }
+            }
+            assertTrue("each chunk should contribute its concepts at the right offsets", aspirin >= 4);
+            for (Sentence sentence : JCasUtil.select(jcas, Sentence.class)) {
+                assertTrue(sentence.getEnd() <= note.length());
+                assertFalse("sentences should not span chunks", sentence.getCoveredText().contains("\n\nHISTORY"));
+            }
+        } finally {
+            chunked.destroy();
+        }
+    }
+
+    @Test
+    public void testStagedPipeline() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_PROFILE_DEFAULT, PipelineProfile.FAST);
+        config.setProperty(PaeonConfig.PAEON_CFG_CACHE_HEAP_SIZE, "0");
+        config.setProperty(PaeonConfig.PAEON_CFG_PIPELINE_PHASES, "dictionary,polarity");
+        config.setProperty(PaeonConfig.PAEON_CFG_PIPELINE_PHASE_PREFIX + "dictionary" + PaeonConfig.PAEON_CFG_PROFILE_INSTANCES, "2");
+        final CtakesProcessor staged = new CtakesProcessor(config);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            StagedPipeline pipeline = staged.getStagedPipeline(PipelineProfile.FAST);
+            assertNotNull(pipeline);
+            assertEquals(3, pipeline.getPools().size());
+            assertEquals(2, pipeline.getPools().get(1).getSize());
+
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() {
+                        NLPRequest request = new NLPRequest(noteNutritios);
+                        request.setFormat(OutputFormat.JSON);
+                        return staged.process(request);
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertTrue("concepts come from the second phase", result.get().contains("\"ontologyConceptArr.cui\":[\"C"));
+            }
+            assertEquals("one CAS per worker and queue slot", 4 + 3 * 2, pipeline.getCasPool().getAvailableCases());
+        } finally {
+            executor.shutdown();
+            staged.destroy();
+        }
+    }
+
+    @Test
+    public void testSentenceMemo() throws Exception {
+        // the same template sentences twice in a note
+        String note = noteNutritios + "\n\n" + noteNutritios;
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_PROFILE_DEFAULT, PipelineProfile.FAST);
+        config.setProperty(PaeonConfig.PAEON_CFG_CACHE_HEAP_SIZE, "0");
+        CtakesProcessor plain = new CtakesProcessor(config);
+        config.setProperty(PaeonConfig.PAEON_CFG_SENTENCE_CACHE_SIZE, "16");
+        CtakesProcessor memoized = new CtakesProcessor(config);
+        try {
+            assertNotNull("memo stages should run on their own pool", memoized.getPool("fast/memo"));
+            List<String> expected = concepts(plain, new NLPRequest(note));
+            long hits = PaeonMetrics.histogram(SentenceCache.CACHE_HIT).getCount();
+            assertEquals("annotated sentences should be the same", expected, concepts(memoized, new NLPRequest(note)));
+            assertTrue(memoized.getSentenceCache().getCount() > 0);
+            assertEquals("replayed sentences should be the same", expected, concepts(memoized, new NLPRequest(note)));
+            assertTrue("the second note should hit the cache",
+                    PaeonMetrics.histogram(SentenceCache.CACHE_HIT).getCount() - hits >= memoized.getSentenceCache().getCount());
+        } finally {
+            plain.destroy();
+            memoized.destroy();
+        }
+    }
+
+    @Test
+    public void testIncrementalRevision() throws Exception {
+        String revised = noteNutritios.replace("She takes an aspirin a day", "She takes an ibuprofen twice a day");
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_PROFILE_DEFAULT, PipelineProfile.FAST);
+        config.setProperty(PaeonConfig.PAEON_CFG_CACHE_HEAP_SIZE, "0");
+        CtakesProcessor plain = new CtakesProcessor(config);
+        config.setProperty(PaeonConfig.PAEON_CFG_REVISIONS_SIZE, "16");
+        CtakesProcessor incremental = new CtakesProcessor(config);
+        try {
+            assertNull(incremental.getSentenceCache());
+            NLPRequest first = new NLPRequest(noteNutritios);
+            first.setDocumentId("note-1");
+            assertEquals(concepts(plain, new NLPRequest(noteNutritios)), concepts(incremental, first));
+            assertEquals(1, incremental.getRevisions().getCount());
+
+            long hits = PaeonMetrics.histogram(RevisionStore.REVISION_HIT).getCount();
+            NLPRequest second = new NLPRequest(revised);
+            second.setDocumentId("note-1");
+            List<String> expected = concepts(plain, new NLPRequest(revised));
+            assertEquals("a revision should match a full analysis", expected, concepts(incremental, second));
+            assertEquals(hits + 1, PaeonMetrics.histogram(RevisionStore.REVISION_HIT).getCount());
+            assertEquals("the revision replaces the previous one", 1, incremental.getRevisions().getCount());
+        } finally {
+            plain.destroy();
+            incremental.destroy();
+        }
+    }
+
+    @Test
+    public void testRevisionOfCachedResult() throws Exception {
+        String revised = noteNutritios.replace("She takes an aspirin a day", "She takes an ibuprofen twice a day");
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_PROFILE_DEFAULT, PipelineProfile.FAST);
+        config.setProperty(PaeonConfig.PAEON_CFG_REVISIONS_SIZE, "16");
+        CtakesProcessor cached = new CtakesProcessor(config);
+        try {
+            List<String> expected = concepts(cached, new NLPRequest(noteNutritios));
+            NLPRequest first = new NLPRequest(noteNutritios);
+            first.setDocumentId("note-2");
+            assertEquals(expected, concepts(cached, first));
+            assertEquals("a cached result is still kept as a revision", 1, cached.getRevisions().getCount());
+
+            long hits = PaeonMetrics.histogram(RevisionStore.REVISION_HIT).getCount();
+            NLPRequest second = new NLPRequest(revised);
+            second.setDocumentId("note-2");
+            concepts(cached, second);
+            assertEquals(hits + 1, PaeonMetrics.histogram(RevisionStore.REVISION_HIT).getCount());
+        } finally {
+            cached.destroy();
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_PROFILE_DEFAULT, PipelineProfile.CLINICAL);
+        config.setProperty(PaeonConfig.PAEON_CFG_CACHE_HEAP_SIZE, "0");
+        CtakesProcessor clinical = new CtakesProcessor(config);
+        config.setProperty(PaeonConfig.PAEON_CFG_DEADLINE_MAX_SENTENCE, "20");
+        CtakesProcessor bounded = new CtakesProcessor(config);
+        try {
+            NLPRequest complete = new NLPRequest(noteNutritios);
+            assertNotNull(clinical.process(complete));
+            assertFalse(complete.isPartial());
+
+            NLPRequest late = new NLPRequest(noteNutritios);
+            late.setDeadline(1);
+            assertNotNull(clinical.process(late));
+            assertTrue(late.isPartial());
+            assertEquals(Arrays.asList("semantic-roles", "constituency-parser"), late.getSkipped());
+
+            NLPRequest longSentences = new NLPRequest(noteNutritios);
+            assertNotNull(bounded.process(longSentences));
+            assertTrue(longSentences.getSkipped().isEmpty());
+            assertEquals(Arrays.asList("semantic-roles", "constituency-parser"), longSentences.getBypassed());
+        } finally {
+            clinical.destroy();
+            bounded.destroy();
+        }
+    }
+
+    @Test
+    public void testLanePools() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_PROFILE_DEFAULT, PipelineProfile.FAST);
+        config.setProperty(PaeonConfig.PAEON_CFG_CACHE_HEAP_SIZE, "0");
+        config.setProperty(PaeonConfig.PAEON_CFG_PIPELINE_TIMEOUT, "100");
+        config.setProperty(PaeonConfig.PAEON_CFG_LANES, "interactive,bulk");
+        config.setProperty("paeon.lane.bulk.consumers", "2");
+        CtakesProcessor lanes = new CtakesProcessor(config);
+        PipelinePool bulk = lanes.getPool(PipelineProfile.laneName("bulk", PipelineProfile.FAST));
+        PipelinePool interactive = lanes.getPool(PipelineProfile.laneName("interactive", PipelineProfile.FAST));
+        Assert.assertNotSame(bulk, interactive);
+        // the bulk lane is busy with long notes on all its instances
+        List<AnalysisEngine> busy = new ArrayList<>();
+        try {
+            for (AnalysisEngine engine; (engine = bulk.borrowEngine()) != null;) {
+                busy.add(engine);
+            }
+            Assert.assertEquals(2, busy.size());
+
+            NLPRequest urgent = new NLPRequest(noteNutritios);
+            urgent.setLane("interactive");
+            assertNotNull("the interactive lane does not wait for the bulk lane", lanes.process(urgent));
+
+            NLPRequest queued = new NLPRequest(noteNutritios);
+            queued.setLane("bulk");
+            assertNull(lanes.process(queued));
+            assertNotNull(queued.getError());
+        } finally {
+            for (AnalysisEngine engine : busy) {
+                bulk.returnEngine(engine);
+            }
+            lanes.destroy();
+        }
+    }
+
+    private static List<String> concepts(CtakesProcessor processor, NLPRequest request) throws Exception {
+        request.setFormat(OutputFormat.BINARY);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(processor.process(request, output));
+        JCas jcas = BinaryCasFormat.createJCas();
+        BinaryCasFormat.decode(new ByteArrayInputStream(output.toByteArray()), jcas.getCas());
+        List<String> concepts = new ArrayList<>();
+        for (IdentifiedAnnotation concept : JCasUtil.select(jcas, IdentifiedAnnotation.class)) {
+            concepts.add(concept.getBegin() + "-" + concept.getEnd() + " " + concept.getType().getShortName()
+                    + " " + concept.getPolarity());
+        }
+        return concepts;
+    }
+
+    @Test
+    public void testParallelInitAndWarmUp() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_PROFILE_DEFAULT, PipelineProfile.FAST);
+        config.setProperty(PaeonConfig.PAEON_CFG_PROFILES_PRELOAD, "concepts");
+        config.setProperty("paeon.profile.concepts", "segment,sentence,tokenizer,lookup-windows,dictionary");
+        config.setProperty(PaeonConfig.PAEON_CFG_PIPELINE_INSTANCES, "2");
+        config.setProperty(PaeonConfig.PAEON_CFG_PIPELINE_INIT_THREADS, "2");
+        config.setProperty(PaeonConfig.PAEON_CFG_WARMUP_ITERATIONS, "1");
+        CtakesProcessor warm = new CtakesProcessor(config);
+        try {
+            assertEquals(2, warm.getPool(PipelineProfile.FAST).getSize());
+            assertEquals("warm-up should return engines and CASes", 2, warm.getPool(PipelineProfile.FAST).getAvailableEngines());
+            assertEquals(4, warm.getPool("concepts").getAvailableCases());
+            assertNotNull(warm.process(noteNutritios));
+        } finally {
+            warm.destroy();
+        }
+    }
+
     @Test
     public void testInitialization() throws Exception {
         AnalysisEngine pipeline = nlp.getPipeline();
         assertNotNull("Failed to create a valid cTAKES pipeline", pipeline);
     }
+
+    @Test
+    public void testConcurrentProcess() throws Exception {
+        final CtakesProcessor pooled = new CtakesProcessor(2, 0, 60000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() {
+                        return pooled.process(noteNutritios);
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertNotNull("We should have received something from the NLP processor", result.get());
+            }
+            assertEquals(2, pooled.getPool().getAvailableEngines());
+            assertEquals(4, pooled.getPool().getAvailableCases());
+        } finally {
+            executor.shutdown();
+            pooled.destroy();
+        }
+    }
 }
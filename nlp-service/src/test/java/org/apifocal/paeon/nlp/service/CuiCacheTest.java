@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class CuiCacheTest {
+
+    @Test
+    public void testGetPut() throws Exception {
+        CuiCache<String> cache = new CuiCache<>(1000);
+        Assert.assertEquals(1024, cache.getCapacity());
+        Assert.assertNull(cache.get(4057));
+        cache.put(4057, "aspirin");
+        Assert.assertEquals("aspirin", cache.get(4057));
+        cache.put(4057, "Aspirin");
+        Assert.assertEquals("Aspirin", cache.get(4057));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        CuiCache<Long> cache = new CuiCache<>(64);
+        for (long cui = 0; cui < 10000; cui++) {
+            cache.put(cui, cui);
+        }
+        Assert.assertTrue(cache.size() <= 64);
+        // the last one added is always found
+        Assert.assertEquals(Long.valueOf(9999), cache.get(9999));
+        for (long cui = 0; cui < 10000; cui++) {
+            Long value = cache.get(cui);
+            Assert.assertTrue(value == null || value == cui);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DictionaryIndexTest {
+
+    @Test
+    public void testCompileAndLookup() throws Exception {
+        Class.forName("org.hsqldb.jdbcDriver");
+        Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:paeon-dictionary", "sa", "");
+        try (Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE CUI_TERMS (CUI BIGINT, RINDEX INTEGER, TCOUNT INTEGER, TEXT VARCHAR(255), RWORD VARCHAR(48))");
+            st.execute("CREATE TABLE TUI (CUI BIGINT, TUI INTEGER)");
+            st.execute("CREATE TABLE PREFTERM (CUI BIGINT, PREFWORD VARCHAR(255))");
+            st.execute("CREATE TABLE RXNORM (CUI BIGINT, RXNORM BIGINT)");
+            st.execute("INSERT INTO CUI_TERMS VALUES (11849, 0, 1, 'diabetes', 'diabetes')");
+            st.execute("INSERT INTO CUI_TERMS VALUES (11860, 1, 2, 'type diabetes', 'diabetes')");
+            st.execute("INSERT INTO CUI_TERMS VALUES (4057, 0, 1, 'aspirin', 'aspirin')");
+            st.execute("INSERT INTO TUI VALUES (11849, 47)");
+            st.execute("INSERT INTO PREFTERM VALUES (11849, 'Diabetes Mellitus')");
+            st.execute("INSERT INTO RXNORM VALUES (4057, 1191)");
+        }
+        Path file = Files.createTempFile("paeon", ".pdix");
+        DictionaryIndexCompiler.compile(connection, Arrays.asList("rxnorm"), file);
+        connection.close();
+
+        DictionaryIndex index = DictionaryIndex.open(file, null);
+        Assert.assertSame(index, DictionaryIndex.open(file, null));
+        Assert.assertEquals(2, index.getWordCount());
+        Assert.assertEquals(3, index.getConceptCount());
+        Assert.assertEquals(-1, index.findWord("insulin"));
+
+        int word = index.findWord("diabetes");
+        Assert.assertEquals(2, index.getTermCount(word));
+        int term = index.getFirstTerm(word) + 1;
+        Assert.assertEquals(11860, index.getTermCui(term));
+        Assert.assertEquals("type diabetes", index.getTermText(term));
+        Assert.assertEquals(1, index.getTermRareWordIndex(term));
+        Assert.assertEquals(2, index.getTermTokenCount(term));
+
+        int concept = index.findConcept(11849);
+        Assert.assertEquals("Diabetes Mellitus", index.getPreferredTerm(concept));
+        Assert.assertArrayEquals(new int[] {47}, index.getTuis(concept));
+        Assert.assertEquals(0, index.getCodeCount(concept));
+        Assert.assertNull(index.getPreferredTerm(index.findConcept(11860)));
+
+        concept = index.findConcept(4057);
+        Assert.assertEquals(1, index.getCodeCount(concept));
+        Assert.assertEquals("rxnorm", index.getCodeScheme(index.getFirstCode(concept)));
+        Assert.assertEquals("1191", index.getCode(index.getFirstCode(concept)));
+        Assert.assertEquals(-1, index.findConcept(1));
+    }
+}
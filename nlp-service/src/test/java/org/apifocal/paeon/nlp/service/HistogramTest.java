@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() throws Exception {
+        for (long v : new long[] {0, 1, 7, 8, 9, 15, 16, 100, 1000, 123456789L, Long.MAX_VALUE}) {
+            int b = Histogram.bucket(v);
+            Assert.assertTrue("value above its bucket: " + v, v <= Histogram.upperBound(b));
+            Assert.assertTrue("value below its bucket: " + v, b == 0 || v > Histogram.upperBound(b - 1));
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        Histogram h = new Histogram("test");
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+        Assert.assertEquals(1000, h.getCount());
+        Assert.assertEquals(1000, h.getMax());
+        Assert.assertEquals(500.5, h.getMean(), 0.001);
+        // within the 12.5% bucket resolution
+        Assert.assertTrue(h.getP50() >= 500 && h.getP50() <= 563);
+        Assert.assertTrue(h.getP99() >= 990 && h.getP99() <= 1000);
+
+        h.reset();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getP99());
+    }
+}
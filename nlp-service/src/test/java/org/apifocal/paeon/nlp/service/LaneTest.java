@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class LaneTest {
+
+    @Test
+    public void testFromConfig() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_LANES, "interactive, bulk");
+        config.setProperty("paeon.lane.interactive.consumers", "2");
+        config.setProperty("paeon.lane.interactive.priority", "7");
+        config.setProperty("paeon.lane.interactive.maxsize", "20000");
+        config.setProperty("paeon.lane.bulk.profile", "fast");
+        List<Lane> lanes = Lane.fromConfig(config);
+        Assert.assertEquals(2, lanes.size());
+        Assert.assertEquals("interactive", lanes.get(0).getName());
+        Assert.assertEquals(2, lanes.get(0).getConsumers());
+        Assert.assertEquals(7, lanes.get(0).getPriority());
+        Assert.assertEquals(20000, lanes.get(0).getMaxSize());
+        Assert.assertEquals(1, lanes.get(1).getConsumers());
+        Assert.assertEquals(-1, lanes.get(1).getPriority());
+        Assert.assertEquals("fast", lanes.get(1).getProfile());
+        Assert.assertTrue(Lane.fromConfig(new PaeonConfig()).isEmpty());
+    }
+
+    @Test
+    public void testSelectors() {
+        Lane urgent = new Lane("urgent", 1, 9, 0, null);
+        Lane interactive = new Lane("interactive", 1, 5, 0, null);
+        Lane bulk = new Lane("bulk", 1, -1, 0, null);
+        List<Lane> lanes = Arrays.asList(urgent, interactive, bulk);
+        Assert.assertEquals("PaeonLane = 'urgent' OR (PaeonLane IS NULL AND JMSPriority >= 9)", urgent.selector(lanes));
+        Assert.assertEquals("PaeonLane = 'interactive' OR (PaeonLane IS NULL AND JMSPriority < 9 AND JMSPriority >= 5)",
+                interactive.selector(lanes));
+        Assert.assertEquals("PaeonLane = 'bulk' OR (PaeonLane IS NULL AND JMSPriority < 9 AND JMSPriority < 5)"
+                + " OR PaeonLane NOT IN ('urgent', 'interactive', 'bulk')", bulk.selector(lanes));
+    }
+
+    @Test
+    public void testCatchAllLane() {
+        Lane small = new Lane("small", 1, -1, 1000, null);
+        Lane large = new Lane("large", 1, -1, 0, null);
+        List<Lane> lanes = Arrays.asList(small, large);
+        Assert.assertEquals("PaeonLane = 'small' OR (PaeonLane IS NULL)", small.selector(lanes));
+        // the unassigned messages are all taken by the first lane
+        Assert.assertEquals("PaeonLane = 'large' OR PaeonLane NOT IN ('small', 'large')", large.selector(lanes));
+        Assert.assertTrue(small.accepts(1000));
+        Assert.assertFalse(small.accepts(1001));
+        Assert.assertSame(large, small.next(lanes, 5000));
+        Assert.assertNull(large.next(lanes, 5000));
+    }
+
+    @Test
+    public void testLastLaneTakesTheRest() {
+        Lane urgent = new Lane("urgent", 1, 9, 0, null);
+        Lane normal = new Lane("normal", 1, 4, 0, null);
+        List<Lane> lanes = Arrays.asList(urgent, normal);
+        Assert.assertEquals("PaeonLane = 'normal' OR (PaeonLane IS NULL AND JMSPriority < 9)"
+                + " OR PaeonLane NOT IN ('urgent', 'normal')", normal.selector(lanes));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidName() {
+        new Lane("bad' OR 1=1", 1, -1, 0, null);
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Request/reply load against a running PaeonService, for capacity tests.
+ * <p>
+ * Requests are sent by {@code concurrency} senders, for {@code duration} millis or up to
+ * {@code maxRequests}. With a {@code rate}, requests are sent open loop at that many per
+ * second overall, whatever the replies; latency is then measured from the time a request
+ * was due, so a service falling behind shows in the percentiles. Without a rate, each
+ * sender waits for the reply to its request before the next one (closed loop).
+ * <p>
+ * Documents are a mix of sizes, {@code mult:weight,...}: each is the base note repeated
+ * {@code mult} times, picked with the given weight. Replies are matched to requests by
+ * JMSCorrelationID; the ones still missing {@code timeout} millis after the last request
+ * are reported as lost.
+ */
+public class LoadGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+
+    public static final String PAEON_TEST_LOAD_CONCURRENCY = "paeon.test.load.concurrency";
+    public static final String PAEON_TEST_LOAD_RATE = "paeon.test.load.rate";
+    public static final String PAEON_TEST_LOAD_DURATION = "paeon.test.load.duration";
+    public static final String PAEON_TEST_LOAD_MIX = "paeon.test.load.mix";
+    public static final String PAEON_TEST_LOAD_TIMEOUT = "paeon.test.load.timeout";
+
+    private final ConnectionFactory factory;
+    private final String user;
+    private final String password;
+    private final String queue;
+    private final String note;
+
+    private int concurrency = 4;
+    private double rate;
+    private long duration = 30000;
+    private long maxRequests;
+    private long timeout = 60000;
+    private String replyTo;
+    private String[] documents;
+    private int[] weights;
+
+    public LoadGenerator(ConnectionFactory factory, String user, String password, String queue, String note) {
+        this.factory = factory;
+        this.user = user;
+        this.password = password;
+        this.queue = queue;
+        this.note = note;
+        setMix("1:1");
+    }
+
+    /**
+     * Configures the generator from the {@code paeon.test.load.*} properties; system properties
+     * take precedence, so a run can be tuned with e.g. {@code -Dpaeon.test.load.rate=20}.
+     */
+    public LoadGenerator configure(PaeonConfig config) {
+        concurrency = Integer.parseInt(property(config, PAEON_TEST_LOAD_CONCURRENCY, String.valueOf(concurrency)));
+        rate = Double.parseDouble(property(config, PAEON_TEST_LOAD_RATE, String.valueOf(rate)));
+        duration = Long.parseLong(property(config, PAEON_TEST_LOAD_DURATION, String.valueOf(duration)));
+        timeout = Long.parseLong(property(config, PAEON_TEST_LOAD_TIMEOUT, String.valueOf(timeout)));
+        setMix(property(config, PAEON_TEST_LOAD_MIX, "1:1"));
+        return this;
+    }
+
+    private static String property(PaeonConfig config, String key, String def) {
+        return System.getProperty(key, config.getProperty(key, def)).trim();
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * @param rate requests per second, or 0 for closed loop
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public void setDuration(long millis) {
+        this.duration = millis;
+    }
+
+    /**
+     * @param maxRequests max requests sent, or 0 for as many as fit in the duration
+     */
+    public void setMaxRequests(long maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    public void setTimeout(long millis) {
+        this.timeout = millis;
+    }
+
+    /**
+     * @param replyTo queue for the replies, or null for a temporary queue
+     */
+    public void setReplyTo(String replyTo) {
+        this.replyTo = replyTo;
+    }
+
+    public void setMix(String mix) {
+        List<String> docs = new ArrayList<>();
+        List<Integer> cumulative = new ArrayList<>();
+        int total = 0;
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            int mult = Integer.parseInt(parts[0].trim());
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            if (mult < 1 || weight < 1) {
+                throw new IllegalArgumentException("Invalid document mix '" + mix + "'");
+            }
+            StringBuilder doc = new StringBuilder(note);
+            for (int i = 1; i < mult; i++) {
+                doc.append("\n\n").append(note);
+            }
+            total += weight;
+            docs.add(doc.toString());
+            cumulative.add(total);
+        }
+        documents = docs.toArray(new String[docs.size()]);
+        weights = new int[cumulative.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = cumulative.get(i);
+        }
+    }
+
+    private String pick(Random random) {
+        int r = random.nextInt(weights[weights.length - 1]);
+        int i = 0;
+        while (r >= weights[i]) {
+            i++;
+        }
+        return documents[i];
+    }
+
+    public Report run() throws Exception {
+        final Report report = new Report();
+        final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<>();
+        // closed loop: one request in flight per sender
+        final Semaphore window = rate > 0 ? null : new Semaphore(concurrency);
+        Connection connection = factory.createConnection(user, password);
+        ExecutorService senders = Executors.newFixedThreadPool(concurrency);
+        try {
+            Session replySession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            final Destination replies = replyTo == null
+                ? replySession.createTemporaryQueue() : replySession.createQueue(replyTo);
+            replySession.createConsumer(replies).setMessageListener(new MessageListener() {
+                public void onMessage(Message message) {
+                    try {
+                        Long start = pending.remove(message.getJMSCorrelationID());
+                        if (start == null) {
+                            report.unexpected.incrementAndGet();
+                            return;
+                        }
+                        boolean error = message.getStringProperty(PaeonMessageListener.PAEON_ERROR) != null;
+                        String claim = message.getStringProperty(PaeonMessageListener.PAEON_CLAIM_URL);
+                        if (claim != null) {
+                            // a result is only received once fetched
+                            try {
+                                ResultServer.fetch(claim);
+                            } catch (IOException e) {
+                                LOG.warn("Failed to fetch stored result: {}", e.getLocalizedMessage());
+                                error = true;
+                            }
+                        }
+                        report.latency.recordSince(start);
+                        report.last.set(System.nanoTime());
+                        if (error) {
+                            report.errors.incrementAndGet();
+                        }
+                        if (window != null) {
+                            window.release();
+                        }
+                    } catch (JMSException e) {
+                        LOG.warn("Failed to read reply: {}", e.getLocalizedMessage());
+                    }
+                }
+            });
+            connection.start();
+
+            final Connection c = connection;
+            final long begin = System.nanoTime();
+            final long end = begin + TimeUnit.MILLISECONDS.toNanos(duration);
+            final long interval = rate > 0 ? (long)(1e9 / rate) : 0;
+            final AtomicLong sequence = new AtomicLong();
+            report.begin = begin;
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int s = 0; s < concurrency; s++) {
+                final Random random = new Random(s);
+                futures.add(senders.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        Session session = c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                        MessageProducer producer = session.createProducer(session.createQueue(queue));
+                        while (true) {
+                            long i = sequence.getAndIncrement();
+                            if (maxRequests > 0 && i >= maxRequests) {
+                                break;
+                            }
+                            long start;
+                            if (interval > 0) {
+                                start = begin + i * interval;
+                                if (start >= end) {
+                                    break;
+                                }
+                                long wait = start - System.nanoTime();
+                                if (wait > 0) {
+                                    TimeUnit.NANOSECONDS.sleep(wait);
+                                }
+                            } else {
+                                if (!window.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                                    LOG.warn("No reply in {} ms; sender giving up", timeout);
+                                    break;
+                                }
+                                start = System.nanoTime();
+                                if (start >= end) {
+                                    break;
+                                }
+                            }
+                            Message message = session.createTextMessage(pick(random));
+                            String cid = "CID-" + i;
+                            message.setJMSCorrelationID(cid);
+                            message.setJMSReplyTo(replies);
+                            pending.put(cid, start);
+                            producer.send(message);
+                            report.sent.incrementAndGet();
+                        }
+                        session.close();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            report.lost = pending.size();
+        } finally {
+            senders.shutdownNow();
+            connection.close();
+        }
+        LOG.info("Load test: {}", report);
+        return report;
+    }
+
+    /**
+     * Outcome of a run; latencies are in micros.
+     */
+    public static class Report {
+        private final Histogram latency = new Histogram("latency");
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong unexpected = new AtomicLong();
+        private final AtomicLong last = new AtomicLong();
+        private volatile long begin;
+        private volatile long lost;
+
+        public long getSent() {
+            return sent.get();
+        }
+
+        public long getReceived() {
+            return latency.getCount();
+        }
+
+        /**
+         * Returns the requests without a reply.
+         */
+        public long getLost() {
+            return lost;
+        }
+
+        /**
+         * Returns the replies with a {@code PaeonError}.
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * Returns the replies not matching a request of this run.
+         */
+        public long getUnexpected() {
+            return unexpected.get();
+        }
+
+        /**
+         * Returns the replies per second, from the first request to the last reply.
+         */
+        public double getThroughput() {
+            double secs = (last.get() - begin) / 1e9;
+            return secs <= 0 ? 0 : getReceived() / secs;
+        }
+
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent=%d received=%d lost=%d errors=%d unexpected=%d throughput=%.2f/s"
+                + " p50=%.1f p95=%.1f p99=%.1f max=%.1f (ms)",
+                getSent(), getReceived(), getLost(), getErrors(), getUnexpected(), getThroughput(),
+                latency.getP50() / 1000.0, latency.getPercentile(95) / 1000.0,
+                latency.getPercentile(99) / 1000.0, latency.getMax() / 1000.0);
+        }
+    }
+
+}
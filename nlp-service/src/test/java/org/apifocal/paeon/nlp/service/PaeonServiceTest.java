@@ -0,0 +1,415 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class PaeonServiceTest {
+    private static final String QUEUE = "paeon.test.nlp";
+    private static final String URL = "vm://paeon-test?create=false";
+
+    private BrokerService broker;
+    private PaeonService service;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private Destination replyTo;
+    private MessageConsumer replies;
+
+    @Before
+    public void startBroker() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("paeon-test");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        broker.waitUntilStarted();
+
+        connection = new ActiveMQConnectionFactory(URL).createConnection();
+        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        producer = session.createProducer(session.createQueue(QUEUE));
+        replyTo = session.createTemporaryQueue();
+        replies = session.createConsumer(replyTo);
+        connection.start();
+    }
+
+    @After
+    public void stopBroker() throws Exception {
+        connection.close();
+        if (service != null) {
+            service.stop();
+        }
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    private void startService(int batchSize) throws Exception {
+        startService(batchSize, new PaeonConfig());
+    }
+
+    private void startService(int batchSize, PaeonConfig config) throws Exception {
+        config.setProperty(PaeonConfig.PAEON_CFG_BROKER, URL);
+        config.setProperty(PaeonConfig.PAEON_CFG_LISTENON, QUEUE);
+        config.setProperty(PaeonConfig.PAEON_CFG_CONSUMERS, "2");
+        config.setProperty(PaeonConfig.PAEON_CFG_BATCH_SIZE, String.valueOf(batchSize));
+        config.setProperty(PaeonConfig.PAEON_CFG_METRICS_INTERVAL, "0");
+        config.setProperty(PaeonConfig.PAEON_CFG_METRICS_JMX, "false");
+        service = new PaeonService(config, new UpperCaseProcessor());
+        service.start();
+    }
+
+    @Test
+    public void testAggregatedBatch() throws Exception {
+        startService(1);
+        MapMessage batch = session.createMapMessage();
+        batch.setString("note-1", "aspirin");
+        batch.setString("note-2", "knee pain");
+        batch.setJMSCorrelationID("CID-batch");
+        batch.setJMSReplyTo(replyTo);
+        producer.send(batch);
+
+        Message reply = replies.receive(10000);
+        Assert.assertTrue(reply instanceof MapMessage);
+        Assert.assertEquals("CID-batch", reply.getJMSCorrelationID());
+        Assert.assertEquals("ASPIRIN", ((MapMessage)reply).getString("note-1"));
+        Assert.assertEquals("KNEE PAIN", ((MapMessage)reply).getString("note-2"));
+    }
+
+    @Test
+    public void testStreamedBatch() throws Exception {
+        startService(1);
+        MapMessage batch = session.createMapMessage();
+        batch.setString("note-1", "aspirin");
+        batch.setString("note-2", "knee pain");
+        batch.setStringProperty(PaeonMessageListener.PAEON_BATCH_REPLY, PaeonMessageListener.BATCH_REPLY_STREAM);
+        batch.setJMSReplyTo(replyTo);
+        producer.send(batch);
+
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 2; i++) {
+            Message reply = replies.receive(10000);
+            Assert.assertTrue(reply instanceof TextMessage);
+            ids.add(reply.getStringProperty(PaeonMessageListener.PAEON_ID));
+        }
+        Assert.assertTrue(ids.contains("note-1") && ids.contains("note-2"));
+    }
+
+    @Test
+    public void testNotProcessed() throws Exception {
+        startService(1);
+        Message message = session.createTextMessage(FAIL + " this note");
+        message.setJMSReplyTo(replyTo);
+        producer.send(message);
+        Message reply = replies.receive(10000);
+        Assert.assertEquals(FAIL, reply.getStringProperty(PaeonMessageListener.PAEON_ERROR));
+        Assert.assertEquals("", ((TextMessage)reply).getText());
+
+        MapMessage batch = session.createMapMessage();
+        batch.setString("note-1", "aspirin");
+        batch.setString("note-2", FAIL + " this note");
+        batch.setJMSReplyTo(replyTo);
+        producer.send(batch);
+        MapMessage aggregated = (MapMessage)replies.receive(10000);
+        Assert.assertEquals("ASPIRIN", aggregated.getString("note-1"));
+        Assert.assertNull(aggregated.getString(PaeonMessageListener.PAEON_ERROR + ":note-1"));
+        Assert.assertEquals(FAIL, aggregated.getString(PaeonMessageListener.PAEON_ERROR + ":note-2"));
+    }
+
+    @Test
+    public void testClaimCheck() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_STORE_DIR, Files.createTempDirectory("paeon-store").toString());
+        config.setProperty(PaeonConfig.PAEON_CFG_STORE_THRESHOLD, "20");
+        config.setProperty(PaeonConfig.PAEON_CFG_STORE_PORT, String.valueOf(port));
+        config.setProperty(PaeonConfig.PAEON_CFG_STORE_URL, "http://localhost:" + port + ResultServer.PATH);
+        startService(1, config);
+
+        Message message = session.createTextMessage("a note too large for the broker");
+        message.setJMSReplyTo(replyTo);
+        producer.send(message);
+        Message reply = replies.receive(10000);
+        Assert.assertEquals("", ((TextMessage)reply).getText());
+        Assert.assertNotNull(reply.getStringProperty(PaeonMessageListener.PAEON_CLAIM));
+        Assert.assertEquals(31, reply.getLongProperty(PaeonMessageListener.PAEON_CLAIM_SIZE));
+        byte[] result = ResultServer.fetch(reply.getStringProperty(PaeonMessageListener.PAEON_CLAIM_URL));
+        Assert.assertEquals("A NOTE TOO LARGE FOR THE BROKER", new String(result, StandardCharsets.UTF_8));
+
+        message = session.createTextMessage("a small note");
+        message.setJMSReplyTo(replyTo);
+        producer.send(message);
+        reply = replies.receive(10000);
+        Assert.assertEquals("A SMALL NOTE", ((TextMessage)reply).getText());
+        Assert.assertNull(reply.getStringProperty(PaeonMessageListener.PAEON_CLAIM));
+
+        LoadGenerator load = new LoadGenerator(new ActiveMQConnectionFactory(URL), null, null, QUEUE, "a note too large for the broker");
+        load.setRate(0);
+        load.setMaxRequests(5);
+        load.setTimeout(10000);
+        LoadGenerator.Report report = load.run();
+        Assert.assertEquals(5, report.getReceived());
+        Assert.assertEquals(0, report.getErrors());
+    }
+
+    @Test
+    public void testClaimCheckNotServed() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_STORE_DIR, Files.createTempDirectory("paeon-store").toString());
+        config.setProperty(PaeonConfig.PAEON_CFG_STORE_THRESHOLD, "1");
+        startService(1, config);
+
+        Message message = session.createTextMessage("a note");
+        message.setJMSReplyTo(replyTo);
+        producer.send(message);
+        Message reply = replies.receive(10000);
+        Assert.assertEquals("without a server, results are replied inline", "A NOTE", ((TextMessage)reply).getText());
+        Assert.assertNull(reply.getStringProperty(PaeonMessageListener.PAEON_CLAIM));
+    }
+
+    @Test
+    public void testInvalidBatchEntries() throws Exception {
+        startService(1);
+        assertInvalidBatchEntries();
+    }
+
+    @Test
+    public void testInvalidBatchEntriesQueued() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_QUEUE_DEPTH, "2");
+        startService(1, config);
+        assertInvalidBatchEntries();
+    }
+
+    @Test
+    public void testInvalidBatchEntriesInLanes() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_LANES, "interactive,bulk");
+        config.setProperty("paeon.lane.interactive.maxsize", "100");
+        startService(1, config);
+        assertInvalidBatchEntries();
+    }
+
+    private void assertInvalidBatchEntries() throws Exception {
+        MapMessage batch = session.createMapMessage();
+        batch.setString("note-1", "aspirin");
+        batch.setBytes("note-2", new byte[] {1, 2, 3});
+        batch.setString("note-3", null);
+        batch.setString("note-4", "knee pain");
+        batch.setJMSReplyTo(replyTo);
+        producer.send(batch);
+
+        MapMessage reply = (MapMessage)replies.receive(10000);
+        Assert.assertNotNull("one bad entry does not abort the batch", reply);
+        Assert.assertEquals("ASPIRIN", reply.getString("note-1"));
+        Assert.assertEquals(PaeonMessageListener.INVALID_ENTRY, reply.getString(PaeonMessageListener.PAEON_ERROR + ":note-2"));
+        Assert.assertEquals(PaeonMessageListener.INVALID_ENTRY, reply.getString(PaeonMessageListener.PAEON_ERROR + ":note-3"));
+        Assert.assertEquals("KNEE PAIN", reply.getString("note-4"));
+        Assert.assertNull(reply.getString(PaeonMessageListener.PAEON_ERROR + ":note-4"));
+    }
+
+    @Test
+    public void testMicroBatching() throws Exception {
+        startService(10);
+        int count = 25;
+        for (int i = 0; i < count; i++) {
+            Message message = session.createTextMessage("note " + i);
+            message.setJMSCorrelationID("CID-" + i);
+            message.setJMSReplyTo(replyTo);
+            producer.send(message);
+        }
+        Set<String> cids = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            Message reply = replies.receive(10000);
+            Assert.assertNotNull("missing reply " + i, reply);
+            cids.add(reply.getJMSCorrelationID());
+        }
+        Assert.assertEquals(count, cids.size());
+    }
+
+    @Test
+    public void testQueuedConsumers() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_QUEUE_DEPTH, "2");
+        config.setProperty(PaeonConfig.PAEON_CFG_QUEUE_MEMORY, "1");
+        startService(1, config);
+        int count = 25;
+        for (int i = 0; i < count; i++) {
+            Message message = session.createTextMessage("note " + i);
+            message.setJMSCorrelationID("CID-" + i);
+            message.setJMSReplyTo(replyTo);
+            producer.send(message);
+        }
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 1024 * 1024) {
+            large.append("aspirin ");
+        }
+        Message tooLarge = session.createTextMessage(large.toString());
+        tooLarge.setJMSCorrelationID("CID-large");
+        tooLarge.setJMSReplyTo(replyTo);
+        producer.send(tooLarge);
+
+        Set<String> cids = new HashSet<>();
+        for (int i = 0; i <= count; i++) {
+            Message reply = replies.receive(10000);
+            Assert.assertNotNull("missing reply " + i, reply);
+            cids.add(reply.getJMSCorrelationID());
+            if ("CID-large".equals(reply.getJMSCorrelationID())) {
+                Assert.assertEquals(QueueingConsumer.REJECTED_TOO_LARGE, reply.getStringProperty(PaeonMessageListener.PAEON_ERROR));
+                Assert.assertEquals("", ((TextMessage)reply).getText());
+            } else {
+                Assert.assertTrue(((TextMessage)reply).getText().startsWith("NOTE "));
+            }
+        }
+        Assert.assertEquals(count + 1, cids.size());
+        Assert.assertTrue(PaeonMetrics.histogram(PaeonMetrics.QUEUE_WAIT).getCount() >= count);
+
+        // every message was acknowledged: nothing is left for redelivery
+        service.stop();
+        service = null;
+        MessageConsumer redelivered = session.createConsumer(session.createQueue(QUEUE));
+        Assert.assertNull(redelivered.receive(1000));
+    }
+
+    @Test
+    public void testLanes() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_LANES, "interactive,bulk");
+        config.setProperty("paeon.lane.interactive.priority", "7");
+        config.setProperty("paeon.lane.interactive.maxsize", "100");
+        startService(1, config);
+        long interactive = PaeonMetrics.histogram(PaeonMetrics.LANE_PREFIX + "interactive").getCount();
+        long bulk = PaeonMetrics.histogram(PaeonMetrics.LANE_PREFIX + "bulk").getCount();
+
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 1000) {
+            large.append("aspirin ");
+        }
+        String[] texts = {"urgent note", large.toString(), "routine note"};
+        int[] priorities = {9, 9, 4};
+        for (int i = 0; i < texts.length; i++) {
+            Message message = session.createTextMessage(texts[i]);
+            message.setJMSCorrelationID("CID-" + i);
+            message.setJMSReplyTo(replyTo);
+            producer.send(message, DeliveryMode.NON_PERSISTENT, priorities[i], 0);
+        }
+        Set<String> cids = new HashSet<>();
+        for (int i = 0; i < texts.length; i++) {
+            Message reply = replies.receive(10000);
+            Assert.assertNotNull("missing reply " + i, reply);
+            cids.add(reply.getJMSCorrelationID());
+        }
+        Assert.assertEquals(texts.length, cids.size());
+        // the large urgent note is moved to the bulk lane; lane times are recorded after the reply
+        service.stop();
+        Assert.assertEquals(interactive + 1, PaeonMetrics.histogram(PaeonMetrics.LANE_PREFIX + "interactive").getCount());
+        Assert.assertEquals(bulk + 2, PaeonMetrics.histogram(PaeonMetrics.LANE_PREFIX + "bulk").getCount());
+    }
+
+    @Test
+    public void testLoadGenerator() throws Exception {
+        startService(1);
+        LoadGenerator load = new LoadGenerator(new ActiveMQConnectionFactory(URL), null, null, QUEUE, "aspirin");
+        load.setConcurrency(2);
+        load.setRate(50);
+        load.setDuration(1000);
+        load.setTimeout(10000);
+        load.setMix("1:3,4:1");
+        LoadGenerator.Report report = load.run();
+        Assert.assertEquals(50, report.getSent());
+        Assert.assertEquals(0, report.getLost());
+        Assert.assertEquals(report.getSent(), report.getReceived());
+        Assert.assertTrue(report.getThroughput() > 0);
+
+        load.setRate(0);
+        load.setMaxRequests(20);
+        report = load.run();
+        Assert.assertEquals(20, report.getSent());
+        Assert.assertEquals(20, report.getReceived());
+    }
+
+    @Test
+    public void testReadiness() throws Exception {
+        Path readyFile = Files.createTempDirectory("paeon").resolve("ready");
+        PaeonConfig config = new PaeonConfig();
+        config.setProperty(PaeonConfig.PAEON_CFG_READY_FILE, readyFile.toString());
+        startService(1, config);
+        Assert.assertTrue(service.isReady());
+        Assert.assertTrue(Files.exists(readyFile));
+        Assert.assertEquals(1, PaeonMetrics.histogram(PaeonMetrics.STARTUP_READY).getCount());
+        Assert.assertFalse("startup events are recorded once", PaeonMetrics.recordStartup(PaeonMetrics.STARTUP_READY));
+
+        service.stop();
+        Assert.assertFalse(service.isReady());
+        Assert.assertFalse(Files.exists(readyFile));
+        Files.delete(readyFile.getParent());
+    }
+
+    /** Texts starting with this are not processed */
+    static final String FAIL = "fail";
+
+    static class UpperCaseProcessor implements NLPProcessor {
+
+        public String process(String text) {
+            return text.toUpperCase();
+        }
+
+        public String process(NLPRequest request) {
+            return process(request.getText());
+        }
+
+        public boolean process(NLPRequest request, OutputStream out) throws IOException {
+            if (request.getText().startsWith(FAIL)) {
+                request.setError(FAIL);
+                return false;
+            }
+            out.write(process(request.getText()).getBytes(StandardCharsets.UTF_8));
+            return true;
+        }
+
+        public AnalysisEngine getPipeline() {
+            return null;
+        }
+    }
+}
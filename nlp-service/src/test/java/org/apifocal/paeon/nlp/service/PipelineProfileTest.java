@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class PipelineProfileTest {
+    private static final String PAEON_LOCAL_CFG = "src/test/resources/META-INF/org.apifocal.paeon/paeon-nlp.cfg";
+
+    @Test
+    public void testBuiltinProfiles() throws Exception {
+        List<PipelineStage> fast = PipelineProfile.lookup(null, PipelineProfile.FAST).getStages();
+        Assert.assertTrue(fast.contains(PipelineStage.DICTIONARY));
+        Assert.assertTrue(fast.contains(PipelineStage.POLARITY));
+        Assert.assertFalse(fast.contains(PipelineStage.CONSTITUENCY_PARSER));
+        Assert.assertFalse(fast.contains(PipelineStage.DOCTIMEREL));
+
+        List<PipelineStage> full = PipelineProfile.lookup(null, PipelineProfile.FULL_TEMPORAL).getStages();
+        Assert.assertEquals(PipelineStage.values().length, full.size());
+        Assert.assertEquals(PipelineProfile.FULL_TEMPORAL, PipelineProfile.defaultName(null));
+        Assert.assertNull(PipelineProfile.lookup(null, "unknown"));
+    }
+
+    @Test
+    public void testConfiguredProfile() throws Exception {
+        PaeonConfig cfg = new PaeonConfig();
+        cfg.setConfigPath(PAEON_LOCAL_CFG);
+
+        List<PipelineStage> concepts = PipelineProfile.lookup(cfg, "concepts").getStages();
+        Assert.assertEquals(11, concepts.size());
+        Assert.assertEquals(PipelineStage.SEGMENT, concepts.get(0));
+        Assert.assertEquals(PipelineStage.DICTIONARY, concepts.get(concepts.size() - 1));
+        Assert.assertEquals(Collections.singleton("concepts"), PipelineProfile.configuredNames(cfg));
+    }
+
+    @Test
+    public void testStageOrder() throws Exception {
+        List<PipelineStage> stages = new PipelineProfile("any",
+                Arrays.asList(PipelineStage.DICTIONARY, PipelineStage.TOKENIZER, PipelineStage.SEGMENT)).getStages();
+        Assert.assertEquals(PipelineStage.SEGMENT, stages.get(0));
+        Assert.assertEquals(PipelineStage.TOKENIZER, stages.get(1));
+        Assert.assertEquals(PipelineStage.DICTIONARY, stages.get(2));
+        Assert.assertEquals(PipelineStage.DEPENDENCY_PARSER, PipelineStage.fromName("dependency-parser"));
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        PipelineProfile fast = PipelineProfile.lookup(null, PipelineProfile.FAST);
+        List<PipelineProfile> phases = fast.split(EnumSet.of(PipelineStage.SEGMENT, PipelineStage.DICTIONARY, PipelineStage.TIME));
+        Assert.assertEquals(2, phases.size());
+        Assert.assertEquals("fast@segment", phases.get(0).getName());
+        Assert.assertEquals(PipelineStage.REMOVE_ENCLOSED_WINDOWS, phases.get(0).getStages().get(phases.get(0).getStages().size() - 1));
+        Assert.assertEquals("fast@dictionary", phases.get(1).getName());
+        Assert.assertEquals(fast.getStages().size(), phases.get(0).getStages().size() + phases.get(1).getStages().size());
+
+        Assert.assertEquals(1, fast.split(EnumSet.noneOf(PipelineStage.class)).size());
+    }
+
+    @Test
+    public void testMemoParts() throws Exception {
+        PipelineProfile fast = PipelineProfile.lookup(null, PipelineProfile.FAST);
+        PipelineProfile head = PipelineProfile.lookup(null, "fast/head");
+        PipelineProfile memo = PipelineProfile.lookup(null, "fast/memo");
+        PipelineProfile tail = PipelineProfile.lookup(null, "fast/tail");
+        Assert.assertEquals(Arrays.asList(PipelineStage.SEGMENT, PipelineStage.SENTENCE), head.getStages());
+        Assert.assertEquals(PipelineStage.TOKENIZER, memo.getStages().get(0));
+        Assert.assertEquals(PipelineStage.DEPENDENCY_PARSER, memo.getStages().get(memo.getStages().size() - 1));
+        Assert.assertEquals(Arrays.asList(PipelineStage.POLARITY, PipelineStage.UNCERTAINTY), tail.getStages());
+        Assert.assertEquals(fast.getStages().size(), head.getStages().size() + memo.getStages().size() + tail.getStages().size());
+        Assert.assertEquals("fast/memo", memo.getName());
+
+        Assert.assertNull(new PipelineProfile("tokens", EnumSet.range(PipelineStage.SEGMENT, PipelineStage.TOKENIZER))
+                .memoPart(PipelineProfile.TAIL));
+        Assert.assertNull(PipelineProfile.lookup(null, "fast/unknown"));
+    }
+
+    @Test
+    public void testLaneNames() throws Exception {
+        String name = PipelineProfile.laneName("bulk", PipelineProfile.FAST);
+        Assert.assertEquals("bulk:fast", name);
+        Assert.assertEquals(PipelineProfile.FAST, PipelineProfile.laneName(null, PipelineProfile.FAST));
+        Assert.assertEquals("bulk", PipelineProfile.laneOf(name));
+        Assert.assertEquals(PipelineProfile.FAST, PipelineProfile.baseName(name));
+        Assert.assertEquals(PipelineProfile.lookup(null, PipelineProfile.FAST).getStages(), PipelineProfile.lookup(null, name).getStages());
+        PipelineProfile memo = PipelineProfile.lookup(null, PipelineProfile.partName(name, PipelineProfile.MEMO));
+        Assert.assertEquals("bulk:fast/memo", memo.getName());
+        Assert.assertEquals("fast/memo", PipelineProfile.baseName(memo.getName()));
+        Assert.assertNull(PipelineProfile.lookup(null, "bulk:unknown"));
+    }
+}
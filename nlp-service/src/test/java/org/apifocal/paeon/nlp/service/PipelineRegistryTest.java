@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class PipelineRegistryTest {
+
+    @After
+    public void tearDown() throws Exception {
+        PipelineRegistry.reset();
+    }
+
+    @Test
+    public void testSharedProcessor() throws Exception {
+        NLPProcessor stub = new NLPProcessor() {
+            public String process(String text) {
+                return text;
+            }
+
+            public String process(NLPRequest request) {
+                return request.getText();
+            }
+
+            public boolean process(NLPRequest request, OutputStream out) throws IOException {
+                out.write(request.getText().getBytes(StandardCharsets.UTF_8));
+                return true;
+            }
+
+            public AnalysisEngine getPipeline() {
+                return null;
+            }
+        };
+        PipelineRegistry.setProcessor(stub);
+
+        Assert.assertSame(stub, PipelineRegistry.getProcessor());
+        Assert.assertSame(stub, PipelineRegistry.getProcessor(new PaeonConfig()));
+    }
+
+    @Test
+    public void testSharedResourceManager() throws Exception {
+        Assert.assertNotNull(PipelineRegistry.getResourceManager());
+        Assert.assertSame(PipelineRegistry.getResourceManager(), PipelineRegistry.getResourceManager());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.StringWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ProjectionTest {
+
+    @Test
+    public void testParse() throws Exception {
+        Projection projection = new Projection(Projection.DEFAULT_SPEC);
+        Assert.assertEquals(Projection.DEFAULT_SPEC, projection.getSpec());
+        new Projection("Sentence; EventMention[ event.properties.docTimeRel ]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnclosed() throws Exception {
+        new Projection("IdentifiedAnnotation[polarity");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmpty() throws Exception {
+        new Projection(" ; ");
+    }
+
+    @Test
+    public void testEscape() throws Exception {
+        StringWriter out = new StringWriter();
+        JsonCasWriter.writeString("a\"b\\c\nd\u0001", out);
+        Assert.assertEquals("\"a\\\"b\\\\c\\nd\\u0001\"", out.toString());
+    }
+}
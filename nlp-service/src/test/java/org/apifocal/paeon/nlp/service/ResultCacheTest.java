@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ResultCacheTest {
+
+    @Test
+    public void testKey() throws Exception {
+        String fast = ResultCache.fingerprint(null, PipelineProfile.lookup(null, PipelineProfile.FAST));
+        NLPRequest request = new NLPRequest("Patient has diabetes.");
+        String key = ResultCache.key(request, fast, null);
+        Assert.assertEquals(64, key.length());
+        Assert.assertEquals(key, ResultCache.key(new NLPRequest("Patient has diabetes."), fast, null));
+        Assert.assertNotEquals(key, ResultCache.key(request, ResultCache.fingerprint(null, PipelineProfile.full()), null));
+        request.setFormat(OutputFormat.JSON);
+        Assert.assertNotEquals(key, ResultCache.key(request, fast, null));
+        Assert.assertNotEquals("the projection changes JSON results",
+                ResultCache.key(request, fast, "concepts"), ResultCache.key(request, fast, "concepts,tokens"));
+    }
+
+    @Test
+    public void testFingerprint() throws Exception {
+        PaeonConfig config = new PaeonConfig();
+        String fast = ResultCache.fingerprint(config, PipelineProfile.lookup(config, PipelineProfile.FAST));
+        Assert.assertEquals(fast, ResultCache.fingerprint(config, PipelineProfile.lookup(config, PipelineProfile.FAST)));
+        config.setProperty(PaeonConfig.PAEON_CFG_DICTIONARY, PipelineStage.MAPPED_DICTIONARY);
+        Assert.assertNotEquals("a new dictionary", fast, ResultCache.fingerprint(config, PipelineProfile.lookup(config, PipelineProfile.FAST)));
+        config.setProperty(PaeonConfig.PAEON_CFG_PROFILE_PREFIX + PipelineProfile.FAST, "segment,sentence,tokenizer");
+        String redefined = ResultCache.fingerprint(config, PipelineProfile.lookup(config, PipelineProfile.FAST));
+        config.setProperty(PaeonConfig.PAEON_CFG_DICTIONARY, PipelineStage.DEFAULT_DICTIONARY);
+        Assert.assertNotEquals("a redefined profile", fast, ResultCache.fingerprint(config, PipelineProfile.lookup(config, PipelineProfile.FAST)));
+        Assert.assertNotEquals(redefined, fast);
+    }
+
+    @Test
+    public void testHeapEviction() throws Exception {
+        ResultCache cache = new ResultCache(100, null, 0, 0);
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        // touch 'a' so 'b' is the least recently used
+        Assert.assertTrue(cache.get("a", new ByteArrayOutputStream()));
+        cache.put("c", new byte[40]);
+        Assert.assertTrue(cache.get("a", new ByteArrayOutputStream()));
+        Assert.assertFalse(cache.get("b", new ByteArrayOutputStream()));
+        Assert.assertEquals(80, cache.getHeapSize());
+    }
+
+    @Test
+    public void testDiskTier() throws Exception {
+        Path dir = Files.createTempDirectory("paeon-cache");
+        String key = ResultCache.key(new NLPRequest("text"), ResultCache.fingerprint(null, PipelineProfile.full()), null);
+        ResultCache cache = new ResultCache(1024, dir, 1024, 0);
+        cache.put(key, "result".getBytes("UTF-8"));
+
+        // a new cache, e.g. after a restart, finds the entry on disk
+        cache = new ResultCache(1024, dir, 1024, 0);
+        Assert.assertEquals(1, cache.getDiskEntries());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(cache.get(key, out));
+        Assert.assertEquals("result", out.toString("UTF-8"));
+
+        cache.clear();
+        Assert.assertEquals(0, cache.getDiskEntries());
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        ResultCache cache = new ResultCache(1024, null, 0, 1);
+        cache.put("a", new byte[1]);
+        Thread.sleep(10);
+        Assert.assertFalse(cache.get("a", new ByteArrayOutputStream()));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ResultStoreTest {
+
+    @Test
+    public void testPutGet() throws Exception {
+        Path dir = Files.createTempDirectory("paeon-store");
+        ResultStore store = new ResultStore(dir, 10, 1024, 4096, 0);
+        Assert.assertFalse(store.accepts(9));
+        Assert.assertTrue(store.accepts(10));
+        byte[] data = "__a stored result__".getBytes(StandardCharsets.UTF_8);
+        String first = store.put(data, 2, data.length - 4);
+        String second = store.put(data, 0, data.length);
+        Assert.assertEquals("a stored result", string(store.get(first)));
+        Assert.assertEquals("__a stored result__", string(store.get(second)));
+        Assert.assertNull(store.get(ResultStore.reference(1, 4, 0)));
+        Assert.assertNull(store.get("not-a-reference"));
+        // a reference to a result is not guessed from another
+        String[] parts = second.split("-");
+        Assert.assertNull(store.get(parts[0] + "-" + parts[1] + "-0"));
+        store.close();
+
+        // a new store, e.g. after a restart, finds the results and appends to a new segment
+        store = new ResultStore(dir, 10, 1024, 4096, 0);
+        Assert.assertEquals("a stored result", string(store.get(first)));
+        String third = store.put(data, 0, data.length);
+        Assert.assertEquals(2, store.getSegments());
+        Assert.assertEquals("__a stored result__", string(store.get(third)));
+        store.close();
+    }
+
+    @Test
+    public void testRetention() throws Exception {
+        Path dir = Files.createTempDirectory("paeon-store");
+        // two results per segment, three segments at most
+        ResultStore store = new ResultStore(dir, 1, 2 * (ResultStore.HEADER + 100), 6 * (ResultStore.HEADER + 100), 0);
+        String first = store.put(new byte[100], 0, 100);
+        String last = null;
+        for (int i = 0; i < 6; i++) {
+            last = store.put(new byte[100], 0, 100);
+        }
+        Assert.assertNull("the oldest segment is dropped", store.get(first));
+        Assert.assertEquals(100, store.get(last).remaining());
+        Assert.assertEquals(3, store.getSegments());
+        Assert.assertEquals(5 * (ResultStore.HEADER + 100), store.getSize());
+        store.close();
+
+        // expired segments are dropped, but for the one being written
+        store = new ResultStore(dir, 1, 2 * (ResultStore.HEADER + 100), 6 * (ResultStore.HEADER + 100), 1);
+        Thread.sleep(10);
+        store.put(new byte[100], 0, 100);
+        Assert.assertEquals(1, store.getSegments());
+        Assert.assertNull(store.get(last));
+
+        // expired without new results, the segment being written too
+        Thread.sleep(10);
+        store.expire();
+        Assert.assertEquals(0, store.getSegments());
+        Assert.assertEquals(0, store.getSize());
+        store.close();
+    }
+
+    @Test
+    public void testGrowingSegment() throws Exception {
+        ResultStore store = new ResultStore(Files.createTempDirectory("paeon-store"), 1, 1024, 4096, 0);
+        String first = store.put("first".getBytes(StandardCharsets.UTF_8), 0, 5);
+        Assert.assertEquals("first", string(store.get(first)));
+        String second = store.put("second".getBytes(StandardCharsets.UTF_8), 0, 6);
+        Assert.assertEquals("second", string(store.get(second)));
+        Assert.assertEquals("first", string(store.get(first)));
+        store.close();
+        // sealed, then mapped whole
+        Assert.assertEquals("second", string(store.get(second)));
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        ResultStore store = new ResultStore(Files.createTempDirectory("paeon-store"), 1, 1024, 4096, 0);
+        byte[] data = "a stored result".getBytes(StandardCharsets.UTF_8);
+        String reference = store.put(data, 0, data.length);
+        ResultServer server = new ResultServer(store, "localhost", 0, null);
+        server.start();
+        try {
+            HttpURLConnection connection = (HttpURLConnection)new URL(server.getUrl(reference)).openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] b = new byte[1024];
+                for (int n; (n = in.read(b)) > 0;) {
+                    out.write(b, 0, n);
+                }
+            }
+            Assert.assertEquals("a stored result", out.toString("UTF-8"));
+            connection = (HttpURLConnection)new URL(server.getUrl(ResultStore.reference(9, 0, 0))).openConnection();
+            Assert.assertEquals(404, connection.getResponseCode());
+        } finally {
+            server.stop();
+            store.close();
+        }
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
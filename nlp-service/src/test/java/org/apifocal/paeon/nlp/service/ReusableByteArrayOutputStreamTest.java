@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ReusableByteArrayOutputStreamTest {
+
+    @Test
+    public void testReuse() throws Exception {
+        ReusableByteArrayOutputStream out = new ReusableByteArrayOutputStream(16, 64);
+        out.write(new byte[32]);
+        byte[] buf = out.getBuffer();
+        Assert.assertEquals(32, out.size());
+
+        // capacity is kept below the retained limit
+        out.reset();
+        Assert.assertEquals(0, out.size());
+        Assert.assertSame(buf, out.getBuffer());
+
+        // but not once a large document grew it past the limit
+        out.write(new byte[100]);
+        out.reset();
+        Assert.assertEquals(16, out.getBuffer().length);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class RevisionStoreTest {
+
+    private static Map<String, CasFragment> sentences(int bytes) {
+        return Collections.singletonMap("Diet: General", new CasFragment(new byte[bytes]));
+    }
+
+    @Test
+    public void testLatestRevision() throws Exception {
+        RevisionStore store = new RevisionStore(4096);
+        Map<String, CasFragment> first = sentences(10);
+        Map<String, CasFragment> second = sentences(20);
+        store.put("note-1", "fast/memo", first);
+        store.put("note-1", "fast/memo", second);
+        Assert.assertSame(second, store.get("note-1", "fast/memo"));
+        Assert.assertEquals(1, store.getCount());
+        Assert.assertNull("annotated by other stages", store.get("note-1", "clinical/memo"));
+        Assert.assertNull(store.get("note-2", "fast/memo"));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        RevisionStore store = new RevisionStore(1024);
+        store.put("a", "fast/memo", sentences(100));
+        store.put("b", "fast/memo", sentences(100));
+        // touch 'a' so 'b' is the least recently used
+        Assert.assertNotNull(store.get("a", "fast/memo"));
+        store.put("c", "fast/memo", sentences(100));
+        Assert.assertNotNull(store.get("a", "fast/memo"));
+        Assert.assertNull(store.get("b", "fast/memo"));
+        Assert.assertTrue(store.getSize() <= 1024);
+
+        store.put("d", "fast/memo", sentences(2048));
+        Assert.assertNull("revisions over the limit are not kept", store.get("d", "fast/memo"));
+    }
+}
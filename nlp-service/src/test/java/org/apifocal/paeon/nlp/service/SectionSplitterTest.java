@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SectionSplitterTest {
+    private static final String SECTIONS = "HISTORY OF PRESENT ILLNESS:\nShe has knee pain.\n\n"
+            + "MEDICATIONS:\naspirin 81 mg daily\n\n"
+            + "ALLERGIES: none\n";
+
+    private static SectionSplitter splitter;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        splitter = new SectionSplitter(SectionSplitter.DEFAULT_SECTIONS);
+    }
+
+    @Test
+    public void testFindSections() {
+        List<Integer> sections = splitter.findSections(SECTIONS);
+        assertEquals(Arrays.asList(0, SECTIONS.indexOf("MEDICATIONS"), SECTIONS.indexOf("ALLERGIES")), sections);
+    }
+
+    @Test
+    public void testHeadingMustStartLine() {
+        assertTrue(splitter.findSections("Reviewed her medications: no changes.\n").isEmpty());
+        assertEquals(Arrays.asList(5), splitter.findSections("Note\n  Medications: none\n"));
+    }
+
+    @Test
+    public void testMultipleResources() throws Exception {
+        SectionSplitter both = new SectionSplitter(SectionSplitter.DEFAULT_SECTIONS + ",org/mitre/medfacts/uima/mayo_sections.xml");
+        assertTrue(both.getPatternCount() > splitter.getPatternCount());
+        assertEquals(Arrays.asList(0), both.findSections("[start section id=\"20103\"]\nknee pain\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCyclicFragments() throws Exception {
+        new SectionSplitter("org/apifocal/paeon/nlp/service/cyclic_sections.xml");
+    }
+
+    @Test
+    public void testSplit() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            sb.append(SECTIONS);
+        }
+        String text = sb.toString();
+        int[] bounds = splitter.split(text, 500);
+        assertEquals(0, bounds[0]);
+        assertEquals(text.length(), bounds[bounds.length - 1]);
+        assertTrue(bounds.length > 3);
+        for (int i = 1; i < bounds.length; i++) {
+            assertTrue(bounds[i] > bounds[i - 1]);
+            assertTrue("chunks are at most twice the target", bounds[i] - bounds[i - 1] <= 1000);
+            if (i < bounds.length - 1) {
+                assertTrue("chunks start at sections", splitter.findSections(text).contains(bounds[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testSplitLongSection() {
+        StringBuilder sb = new StringBuilder("HOSPITAL COURSE:\n");
+        for (int i = 0; i < 100; i++) {
+            sb.append("Day ").append(i).append(": stable, continued on aspirin.\n\n");
+        }
+        String text = sb.toString();
+        int[] bounds = splitter.split(text, 400);
+        assertTrue(bounds.length > 3);
+        for (int i = 1; i < bounds.length - 1; i++) {
+            assertTrue("long sections are split at paragraphs", text.startsWith("Day ", bounds[i]));
+        }
+    }
+
+    @Test
+    public void testShortText() {
+        assertEquals(2, splitter.split(SECTIONS, 16384).length);
+        assertEquals(2, splitter.split("no sections here", 4).length);
+    }
+
+}
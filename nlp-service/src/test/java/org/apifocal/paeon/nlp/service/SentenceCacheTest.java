@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class SentenceCacheTest {
+
+    @Test
+    public void testKey() throws Exception {
+        Assert.assertEquals(SentenceCache.key("fast/memo", "Diet: General"), SentenceCache.key("fast/memo", "Diet: General"));
+        Assert.assertNotEquals(SentenceCache.key("fast/memo", "Diet: General"), SentenceCache.key("clinical/memo", "Diet: General"));
+        Assert.assertNotEquals(SentenceCache.key("fast/memo", "Diet: General"), SentenceCache.key("fast/memo", "Diet: general"));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        // room for two entries of a one char key and 100 bytes
+        SentenceCache cache = new SentenceCache(2 * (128 + 2 + 100) + 10, 10);
+        cache.put("a", new CasFragment(new byte[100]));
+        cache.put("b", new CasFragment(new byte[100]));
+        // touch 'a' so 'b' is the least recently used
+        Assert.assertNotNull(cache.get("a"));
+        cache.put("c", new CasFragment(new byte[100]));
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(2, cache.getCount());
+        Assert.assertEquals(2 * (128 + 2 + 100), cache.getSize());
+
+        cache.put("d", new CasFragment(new byte[1000]));
+        Assert.assertNull("entries over the limit are not cached", cache.get("d"));
+    }
+
+    @Test
+    public void testMaxLength() throws Exception {
+        SentenceCache cache = new SentenceCache(1024, 10);
+        Assert.assertTrue(cache.accepts("Diet: none"));
+        Assert.assertFalse(cache.accepts("Diet: General"));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 apifocal LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apifocal.paeon.nlp.service;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class WorkQueueTest {
+
+    private static Message text(int length) throws JMSException {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append('x');
+        }
+        message.setText(sb.toString());
+        return message;
+    }
+
+    @Test
+    public void testDepthLimit() throws Exception {
+        WorkQueue queue = new WorkQueue(2, 0, 0);
+        Assert.assertTrue(queue.awaitCapacity(0));
+        Assert.assertTrue(queue.offer(text(10)));
+        Assert.assertTrue(queue.awaitCapacity(0));
+        Assert.assertTrue(queue.offer(text(10)));
+        Assert.assertFalse("a full queue pauses delivery", queue.awaitCapacity(10));
+
+        WorkQueue.Work work = queue.take(0);
+        Assert.assertNotNull(work);
+        Assert.assertEquals(1, queue.getDepth());
+        Assert.assertTrue(queue.awaitCapacity(0));
+        queue.release(work);
+        Assert.assertEquals(20, queue.getBytes());
+    }
+
+    @Test
+    public void testMemoryLimit() throws Exception {
+        WorkQueue queue = new WorkQueue(100, 100, 0);
+        Assert.assertTrue(queue.offer(text(30)));
+        WorkQueue.Work work = queue.take(0);
+        Assert.assertTrue(queue.offer(text(30)));
+        Assert.assertEquals("documents in process count until released", 120, queue.getBytes());
+        Assert.assertFalse(queue.awaitCapacity(10));
+        queue.release(work);
+        Assert.assertTrue(queue.awaitCapacity(0));
+    }
+
+    @Test
+    public void testRejectTooLarge() throws Exception {
+        WorkQueue queue = new WorkQueue(100, 100, 0);
+        long rejected = PaeonMetrics.histogram(PaeonMetrics.QUEUE_REJECTED).getCount();
+        Assert.assertFalse(queue.offer(text(51)));
+        Assert.assertEquals(0, queue.getDepth());
+        Assert.assertEquals(rejected + 1, PaeonMetrics.histogram(PaeonMetrics.QUEUE_REJECTED).getCount());
+    }
+
+    @Test
+    public void testAdmitWhenIdle() throws Exception {
+        // the heap limit never blocks an idle queue
+        WorkQueue queue = new WorkQueue(1, 0, 1);
+        Assert.assertTrue(queue.awaitCapacity(0));
+        Assert.assertNull(queue.take(10));
+    }
+
+    @Test
+    public void testTakeWakesUp() throws Exception {
+        final WorkQueue queue = new WorkQueue(1, 0, 0);
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    queue.offer(text(1));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        producer.start();
+        Assert.assertNotNull(queue.take(10000));
+        producer.join();
+    }
+
+}